@@ -0,0 +1,382 @@
+package client;
+
+import server.ChatServer;
+import server.ServerConfig;
+import shared.Constants;
+import shared.LatencyHistogram;
+import shared.Message;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load driver for capacity planning. Opens many ChatClient sessions (no GUI), spreads them
+ * over rooms, and has them send text and file messages at fixed rates. Every session records how
+ * long each message from its room took to arrive, so the report shows end-to-end delivery latency
+ * (p50/p99/p99.9) and throughput as the server sees real fan-out.
+ *
+ * Messages are stamped with the time they were scheduled to go out, not the time the sender got
+ * round to it, so a stalled server shows up as latency instead of quietly lowering the send rate.
+ * Sender and receivers run in this JVM, so their clocks agree; the server can be anywhere.
+ *
+ * Usage: LoadGenerator [-host h] [-port p] [-server blocking|virtual|nio] [-sessions n] [-rooms n]
+ *        [-rate msgs/s] [-file-rate files/s] [-file-size bytes] [-message-size bytes]
+ *        [-connect-rate sessions/s] [-warmup s] [-duration s] [-threads n]
+ */
+public class LoadGenerator {
+    private static final String TEXT_PREFIX = "lg:";
+    private static final String FILE_PREFIX = "lg-";
+    
+    private String host = Constants.DEFAULT_HOST;
+    private int port = Constants.DEFAULT_PORT;
+    private ChatServer.ServerMode embeddedMode; // null: use a server that is already running
+    private int sessionCount = 1000;
+    private int roomCount = 20;
+    private double messageRate = 500;
+    private double fileRate = 0;
+    private int fileSize = 64 * 1024;
+    private int messageSize = 100;
+    private double connectRate = 500;
+    private int warmupSeconds = 5;
+    private int durationSeconds = 30;
+    private int senderThreads = 4;
+    
+    private final List<Session> sessions = new ArrayList<>();
+    private final LatencyHistogram textLatency = new LatencyHistogram();
+    private final LatencyHistogram fileLatency = new LatencyHistogram();
+    private final LatencyHistogram intervalLatency = new LatencyHistogram();
+    private final AtomicLong textsSent = new AtomicLong();
+    private final AtomicLong filesSent = new AtomicLong();
+    private final AtomicLong expectedDeliveries = new AtomicLong();
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private volatile long measureFrom = Long.MAX_VALUE; // nanoTime; sends scheduled earlier are warmup
+    private volatile boolean sending;
+    private File fileDirectory;
+    private PrintStream report;
+    
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        if (!generator.parse(args)) {
+            System.err.println("Usage: LoadGenerator [-host h] [-port p] [-server blocking|virtual|nio] [-sessions n] [-rooms n]\n" +
+                             "       [-rate msgs/s] [-file-rate files/s] [-file-size bytes] [-message-size bytes]\n" +
+                             "       [-connect-rate sessions/s] [-warmup s] [-duration s] [-threads n]");
+            return;
+        }
+        generator.run();
+    }
+    
+    private boolean parse(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "-host": host = value; break;
+                    case "-port": port = Integer.parseInt(value); break;
+                    case "-server": embeddedMode = ChatServer.ServerMode.valueOf(value.toUpperCase()); break;
+                    case "-sessions": sessionCount = Integer.parseInt(value); break;
+                    case "-rooms": roomCount = Integer.parseInt(value); break;
+                    case "-rate": messageRate = Double.parseDouble(value); break;
+                    case "-file-rate": fileRate = Double.parseDouble(value); break;
+                    case "-file-size": fileSize = Integer.parseInt(value); break;
+                    case "-message-size": messageSize = Integer.parseInt(value); break;
+                    case "-connect-rate": connectRate = Double.parseDouble(value); break;
+                    case "-warmup": warmupSeconds = Integer.parseInt(value); break;
+                    case "-duration": durationSeconds = Integer.parseInt(value); break;
+                    case "-threads": senderThreads = Integer.parseInt(value); break;
+                    default: return false;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            return false;
+        }
+        return sessionCount > 0 && roomCount > 0 && senderThreads > 0 && connectRate > 0;
+    }
+    
+    private void run() throws Exception {
+        // Clients and an embedded server print every event; keep that out of the report
+        report = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        
+        ChatServer server = null;
+        if (embeddedMode != null) {
+            server = startServer();
+        }
+        fileDirectory = Files.createTempDirectory("chatwave-load").toFile();
+        try {
+            report.printf(Locale.ROOT, "%d sessions in %d rooms against %s:%d%s; %.0f msgs/s of %d bytes, %.1f files/s of %d bytes%n",
+                          sessionCount, roomCount, host, port, embeddedMode != null ? " (embedded " + embeddedMode.name().toLowerCase() + ")" : "",
+                          messageRate, messageSize, fileRate, fileSize);
+            if (!connectAll()) {
+                return;
+            }
+            runLoad();
+        } finally {
+            for (Session session : sessions) {
+                session.disconnect();
+            }
+            if (server != null) {
+                server.stop();
+            }
+            deleteFiles();
+        }
+    }
+    
+    private ChatServer startServer() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        host = "localhost";
+        ServerConfig config = new ServerConfig();
+        config.setPort(port);
+        config.setMode(embeddedMode);
+        config.setHistorySize(0);
+        // The load is deliberate, so the flood limits would only measure themselves
+        config.setUserMessageRate(0);
+        config.setUserByteRate(0);
+        config.setServerMessageRate(0);
+        config.setServerByteRate(0);
+        ChatServer server = new ChatServer(config);
+        Thread thread = new Thread(server::start, "embedded-server");
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(500);
+        return server;
+    }
+    
+    /**
+     * Opens the sessions at the connect rate and puts each in its room
+     */
+    private boolean connectAll() {
+        long start = System.nanoTime();
+        long interval = (long) (1e9 / connectRate);
+        for (int i = 0; i < sessionCount; i++) {
+            LockSupport.parkNanos(start + i * interval - System.nanoTime());
+            Session session = new Session("load" + i, "#load-" + (i % roomCount));
+            if (!session.connect()) {
+                report.println("Could only open " + i + " sessions");
+                return false;
+            }
+            sessions.add(session);
+        }
+        for (Session session : sessions) {
+            session.sendMessage(Constants.COMMAND_JOIN + " " + session.room);
+        }
+        report.printf(Locale.ROOT, "Connected %d sessions in %.1fs%n", sessionCount, (System.nanoTime() - start) / 1e9);
+        sleep(1000); // Let the logins and joins settle before timing anything
+        return true;
+    }
+    
+    private void runLoad() throws InterruptedException {
+        sending = true;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < senderThreads; t++) {
+            int first = t;
+            threads.add(startPaced("text-sender-" + t, messageRate / senderThreads, first, this::sendText));
+        }
+        if (fileRate > 0) {
+            threads.add(startPaced("file-sender", fileRate, 0, this::sendFile));
+        }
+        
+        report.printf(Locale.ROOT, "Warming up for %ds%n", warmupSeconds);
+        sleep(warmupSeconds * 1000L);
+        intervalLatency.drain();
+        measureFrom = System.nanoTime();
+        
+        report.printf(Locale.ROOT, "%8s %12s %12s %12s %12s %12s%n",
+                      "time (s)", "sent/s", "delivered/s", "p50 (ms)", "p99 (ms)", "p99.9 (ms)");
+        long lastDelivered = 0;
+        long lastSent = 0;
+        for (int second = 5; second <= durationSeconds; second += 5) {
+            sleep(5000);
+            long delivered = deliveries.get();
+            long sent = textsSent.get() + filesSent.get();
+            LatencyHistogram interval = intervalLatency.drain();
+            report.printf(Locale.ROOT, "%8d %12.0f %12.0f %12.2f %12.2f %12.2f%n", second,
+                          (sent - lastSent) / 5.0, (delivered - lastDelivered) / 5.0,
+                          interval.getValueAtPercentile(50) / 1e6, interval.getValueAtPercentile(99) / 1e6,
+                          interval.getValueAtPercentile(99.9) / 1e6);
+            lastDelivered = delivered;
+            lastSent = sent;
+        }
+        long measuredNanos = System.nanoTime() - measureFrom;
+        
+        sending = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (deliveries.get() < expectedDeliveries.get() && System.currentTimeMillis() < deadline) {
+            sleep(50); // Let what is still in flight arrive
+        }
+        printSummary(measuredNanos);
+    }
+    
+    private interface Send {
+        void send(Session session, long scheduledNanos);
+    }
+    
+    /**
+     * A thread that sends at a fixed rate, taking sessions in turn starting from the given one
+     */
+    private Thread startPaced(String name, double rate, int firstSession, Send send) {
+        Thread thread = new Thread(() -> {
+            long interval = (long) (1e9 / rate);
+            long start = System.nanoTime();
+            int next = firstSession;
+            for (long n = 0; sending; n++) {
+                long scheduled = start + n * interval;
+                LockSupport.parkNanos(scheduled - System.nanoTime()); // Returns at once when behind
+                send.send(sessions.get(next % sessions.size()), scheduled);
+                next += senderThreads;
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+    
+    private void sendText(Session session, long scheduledNanos) {
+        String stamp = TEXT_PREFIX + scheduledNanos + ":";
+        char[] padding = new char[Math.max(0, messageSize - stamp.length())];
+        Arrays.fill(padding, 'x');
+        if (session.send(stamp + new String(padding), scheduledNanos) && scheduledNanos >= measureFrom) {
+            textsSent.incrementAndGet();
+        }
+    }
+    
+    private void sendFile(Session session, long scheduledNanos) {
+        File file = new File(fileDirectory, FILE_PREFIX + scheduledNanos + ".bin");
+        try {
+            byte[] data = new byte[fileSize];
+            Arrays.fill(data, (byte) scheduledNanos); // Different content each time, so nothing is deduplicated
+            Files.write(file.toPath(), data);
+        } catch (IOException e) {
+            sendFailures.incrementAndGet();
+            return;
+        }
+        if (session.upload(file, scheduledNanos) && scheduledNanos >= measureFrom) {
+            filesSent.incrementAndGet();
+        }
+    }
+    
+    private void printSummary(long measuredNanos) {
+        double seconds = measuredNanos / 1e9;
+        long expected = expectedDeliveries.get();
+        long delivered = Math.min(deliveries.get(), expected);
+        report.println();
+        report.printf(Locale.ROOT, "Sent %d messages and %d files in %.1fs (%.0f/s); %d send failures%n",
+                      textsSent.get(), filesSent.get(), seconds, (textsSent.get() + filesSent.get()) / seconds, sendFailures.get());
+        report.printf(Locale.ROOT, "Delivered %d of %d (%.2f%%), %.0f deliveries/s%n", delivered, expected,
+                      expected == 0 ? 100.0 : delivered * 100.0 / expected, delivered / seconds);
+        report.println();
+        report.println("Text delivery latency:");
+        textLatency.printPercentiles(report, 1e6, "ms");
+        if (fileLatency.getCount() > 0) {
+            report.println();
+            report.println("File delivery latency (announcement after upload):");
+            fileLatency.printPercentiles(report, 1e6, "ms");
+        }
+    }
+    
+    private void deleteFiles() {
+        File[] files = fileDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        fileDirectory.delete();
+    }
+    
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * One simulated user: a normal ChatClient that measures what arrives instead of displaying it
+     */
+    private class Session extends ChatClient {
+        private final String room;
+        
+        Session(String username, String room) {
+            super(host, port, username);
+            this.room = room;
+        }
+        
+        boolean send(String content, long scheduledNanos) {
+            if (!isConnected()) {
+                sendFailures.incrementAndGet();
+                return false;
+            }
+            sendMessage(content);
+            countExpected(scheduledNanos);
+            return true;
+        }
+        
+        boolean upload(File file, long scheduledNanos) {
+            if (!isConnected()) {
+                sendFailures.incrementAndGet();
+                return false;
+            }
+            sendFile(file);
+            countExpected(scheduledNanos);
+            return true;
+        }
+        
+        private void countExpected(long scheduledNanos) {
+            if (scheduledNanos >= measureFrom) {
+                expectedDeliveries.addAndGet(sessionsIn(room)); // Everyone in the room gets it, the sender included
+            }
+        }
+        
+        @Override
+        public void handleReceivedMessage(Message message) {
+            long now = System.nanoTime();
+            if (message.getType() == Message.MessageType.TEXT && message.getContent() != null
+                    && message.getContent().startsWith(TEXT_PREFIX)) {
+                String content = message.getContent();
+                record(textLatency, now, Long.parseLong(content.substring(TEXT_PREFIX.length(), content.indexOf(':', TEXT_PREFIX.length()))));
+            } else if (message.getType() == Message.MessageType.FILE && message.getFilename() != null
+                    && message.getFilename().startsWith(FILE_PREFIX)) {
+                String name = message.getFilename();
+                record(fileLatency, now, Long.parseLong(name.substring(FILE_PREFIX.length(), name.indexOf('.'))));
+            } else if (message.getType() == Message.MessageType.FILE_RESUME || message.getType() == Message.MessageType.PRESENCE) {
+                super.handleReceivedMessage(message); // Needed for uploads and the roster; nothing is displayed
+            }
+        }
+        
+        private void record(LatencyHistogram histogram, long now, long scheduledNanos) {
+            if (scheduledNanos < measureFrom) {
+                return; // Sent during warmup
+            }
+            histogram.record(now - scheduledNanos);
+            intervalLatency.record(now - scheduledNanos);
+            deliveries.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Sessions are dealt out to rooms in turn, so the first sessionCount % roomCount rooms have one more
+     */
+    private int sessionsIn(String room) {
+        int index = Integer.parseInt(room.substring("#load-".length()));
+        return sessionCount / roomCount + (index < sessionCount % roomCount ? 1 : 0);
+    }
+}
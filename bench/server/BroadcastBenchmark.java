@@ -0,0 +1,132 @@
+package server;
+
+import shared.FrameCodec;
+import shared.Message;
+import java.io.IOException;
+
+/**
+ * Measures the CPU cost of one broadcast as the room grows, comparing the old
+ * encode-per-recipient path with ChatServer.broadcastMessage's encode-once path.
+ * Recipients are in-memory sinks, so only encoding and queueing are measured.
+ */
+public class BroadcastBenchmark {
+    private static final int[] ROOM_SIZES = {10, 100, 1000};
+    
+    public static void main(String[] args) throws IOException {
+        Message text = new Message(repeat('x', 200), "alice", Message.MessageType.TEXT);
+        Message file = new Message("report.bin", new byte[1024 * 1024], "alice");
+        
+        System.out.printf("%-8s %8s %20s %20s%n", "payload", "room", "per-recipient (us)", "encode-once (us)");
+        for (int roomSize : ROOM_SIZES) {
+            ChatServer server = createRoom(roomSize);
+            report("text", roomSize, server, text, 2000);
+            report("1MB file", roomSize, server, file, roomSize >= 1000 ? 3 : 20);
+        }
+    }
+    
+    private static void report(String label, int roomSize, ChatServer server, Message message, int iterations) throws IOException {
+        // Warm up both paths before timing them
+        perRecipient(roomSize, message, Math.max(1, iterations / 10));
+        encodeOnce(server, message, Math.max(1, iterations / 10));
+        
+        double perRecipient = perRecipient(roomSize, message, iterations);
+        double encodeOnce = encodeOnce(server, message, iterations);
+        System.out.printf("%-8s %8d %20.1f %20.1f%n", label, roomSize, perRecipient, encodeOnce);
+    }
+    
+    /**
+     * The pre-change behavior: every recipient serializes the message again
+     */
+    private static double perRecipient(int roomSize, Message message, int iterations) throws IOException {
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (int r = 0; r < roomSize; r++) {
+                bytes += FrameCodec.SERIALIZED.encode(message).length;
+            }
+        }
+        return micros(start, iterations, bytes);
+    }
+    
+    private static double encodeOnce(ChatServer server, Message message, int iterations) {
+        SinkTransport.bytesWritten = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            server.broadcastMessage(message, null);
+        }
+        return micros(start, iterations, SinkTransport.bytesWritten);
+    }
+    
+    private static double micros(long start, int iterations, long bytes) {
+        if (bytes == 0) {
+            throw new IllegalStateException("nothing was written");
+        }
+        return (System.nanoTime() - start) / 1000.0 / iterations;
+    }
+    
+    private static ChatServer createRoom(int roomSize) {
+        ChatServer server = new ChatServer(0);
+        for (int i = 0; i < roomSize; i++) {
+            new SinkTransport(server, "user" + i);
+        }
+        return server;
+    }
+    
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * Transport that drains its queue synchronously and only counts the bytes it would write
+     */
+    static class SinkTransport implements ClientTransport {
+        static long bytesWritten;
+        
+        private OutboundQueue queue;
+        private final ClientHandler handler;
+        
+        SinkTransport(ChatServer server, String username) {
+            handler = new ClientHandler(this, server);
+            handler.handleIncoming(new Message(username, username, Message.MessageType.TEXT));
+        }
+        
+        ClientHandler getHandler() {
+            return handler;
+        }
+        
+        @Override
+        public void execute(Runnable task) {
+            task.run(); // No cluster, so logins complete before this could be needed
+        }
+        
+        @Override
+        public void startWriter(OutboundQueue queue) {
+            this.queue = queue;
+            queue.setReadyListener(this::drain);
+        }
+        
+        private void drain() {
+            EncodedMessage message;
+            while ((message = queue.poll()) != null) {
+                try {
+                    bytesWritten += message.getFrame(FrameCodec.SERIALIZED).length;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        
+        @Override
+        public int getFeatures() {
+            return 0;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package server;
+
+import client.ChatClient;
+import shared.Message;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures socket writes per delivered message and end-to-end latency under load, with and without
+ * write coalescing. A few senders post to #general at a steady rate while every client, senders
+ * included, records how long each message took to arrive. Everything runs in one JVM over loopback.
+ *
+ * Usage: CoalescingBenchmark [clients] [senders] [messages per sender] [send interval us]
+ */
+public class CoalescingBenchmark {
+    private static final String PREFIX = "t:";
+    
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        long intervalMicros = args.length > 3 ? Long.parseLong(args[3]) : 1000;
+        
+        System.out.printf("%d clients, %d senders x %d messages, one every %dus each%n",
+                          clients, senders, messages, intervalMicros);
+        System.out.printf("%-9s %-20s %12s %10s %10s %10s%n",
+                          "mode", "coalescing", "writes/msg", "p50 (us)", "p99 (us)", "max (us)");
+        for (ChatServer.ServerMode mode : new ChatServer.ServerMode[] {ChatServer.ServerMode.BLOCKING, ChatServer.ServerMode.NIO}) {
+            run(mode, 1, 0, "off (flush each)", clients, senders, messages, intervalMicros);
+            run(mode, 32 * 1024, 0, "32KB, no delay", clients, senders, messages, intervalMicros);
+            run(mode, 32 * 1024, 1000, "32KB, 1ms delay", clients, senders, messages, intervalMicros);
+        }
+    }
+    
+    private static void run(ChatServer.ServerMode mode, int flushBytes, long flushDelayMicros, String label,
+                            int clientCount, int senderCount, int messages, long intervalMicros) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // Keep the server's and clients' chatter out of the results
+            }
+        }));
+        
+        ServerConfig config = new ServerConfig();
+        config.setPort(freePort());
+        config.setMode(mode);
+        config.setQueueCapacity(64 * 1024);
+        config.setHistorySize(0);
+        config.setFlushBytes(flushBytes);
+        config.setFlushDelayMicros(flushDelayMicros);
+        ChatServer server = new ChatServer(config);
+        Thread serverThread = new Thread(server::start, "bench-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(300);
+        
+        long expected = (long) clientCount * senderCount * messages;
+        long[] latencies = new long[(int) expected];
+        AtomicInteger received = new AtomicInteger();
+        List<ChatClient> clients = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            ChatClient client = new ChatClient("localhost", config.getPort(), "user" + i) {
+                @Override
+                public void handleReceivedMessage(Message message) {
+                    String content = message.getContent();
+                    if (message.getType() == Message.MessageType.TEXT && content != null && content.startsWith(PREFIX)) {
+                        long latency = System.nanoTime() - Long.parseLong(content.substring(PREFIX.length()));
+                        int index = received.getAndIncrement();
+                        if (index < latencies.length) {
+                            latencies[index] = latency;
+                        }
+                    }
+                }
+            };
+            if (!client.connect()) {
+                throw new IOException("Could not connect client " + i);
+            }
+            clients.add(client);
+        }
+        Thread.sleep(500); // Let the join announcements settle
+        long writesBefore = server.getSocketWriteCount();
+        long enqueuedBefore = server.getEnqueuedMessageCount();
+        
+        List<Thread> senders = new ArrayList<>();
+        for (int s = 0; s < senderCount; s++) {
+            ChatClient sender = clients.get(s);
+            Thread thread = new Thread(() -> {
+                for (int m = 0; m < messages; m++) {
+                    sender.sendMessage(PREFIX + System.nanoTime());
+                    LockSupport.parkNanos(intervalMicros * 1000);
+                }
+            });
+            senders.add(thread);
+            thread.start();
+        }
+        for (Thread thread : senders) {
+            thread.join();
+        }
+        long deadline = System.currentTimeMillis() + 30000;
+        while (received.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        
+        long writes = server.getSocketWriteCount() - writesBefore;
+        long enqueued = server.getEnqueuedMessageCount() - enqueuedBefore;
+        for (ChatClient client : clients) {
+            client.disconnect();
+        }
+        server.stop();
+        Thread.sleep(300); // Disconnect messages are printed asynchronously
+        System.setOut(out);
+        
+        int count = (int) Math.min(received.get(), expected);
+        if (count < expected) {
+            System.out.printf("%-9s %-20s only %d of %d messages arrived%n", mode, label, count, expected);
+            return;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%-9s %-20s %12.3f %10d %10d %10d%n", mode, label, (double) writes / enqueued,
+                          percentile(latencies, 0.50), percentile(latencies, 0.99), latencies[latencies.length - 1] / 1000);
+    }
+    
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[(int) Math.min(sorted.length - 1, (long) (sorted.length * fraction))] / 1000;
+    }
+    
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package server;
+
+import shared.Constants;
+import shared.FrameCodec;
+import shared.FrameCompressor;
+import shared.Message;
+import shared.MessageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Time per operation on the server's hot paths: message serialization, compression, broadcast fan-out,
+ * timestamp formatting and command parsing. Run it on every build to be deployed, keep the CSV,
+ * and pass the previous one as the baseline to see what changed.
+ *
+ * Usage: HotPathBenchmark [-quick] [-out results.csv] [-baseline previous.csv]
+ */
+public class HotPathBenchmark {
+    private static final int[] FAN_OUT = {10, 1000, 10000};
+    
+    public static void main(String[] args) throws Exception {
+        boolean quick = false;
+        String out = null;
+        String baseline = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-quick":
+                    quick = true;
+                    break;
+                case "-out":
+                    out = args[++i];
+                    break;
+                case "-baseline":
+                    baseline = args[++i];
+                    break;
+                default:
+                    System.err.println("Usage: HotPathBenchmark [-quick] [-out results.csv] [-baseline previous.csv]");
+                    return;
+            }
+        }
+        
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                // Keep the server's chatter out of the results
+            }
+        }));
+        MicroBenchmark bench = quick ? new MicroBenchmark(report, 2, 3, 200) : new MicroBenchmark(report, 5, 10, 1000);
+        report.println("Java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " CPUs");
+        serialization(bench);
+        compression(bench, report);
+        timestamps(bench);
+        commands(bench);
+        fanOut(bench);
+        System.setOut(report);
+        
+        if (out != null) {
+            bench.writeCsv(Paths.get(out));
+            System.out.println("Results written to " + out);
+        }
+        if (baseline != null) {
+            bench.compareWith(Paths.get(baseline));
+        }
+    }
+    
+    /**
+     * Message through a fresh ObjectOutputStream and back, as the legacy and serialized frame paths do,
+     * with the binary codec alongside for comparison
+     */
+    private static void serialization(MicroBenchmark bench) throws Exception {
+        Message message = new Message("The quick brown fox jumps over the lazy dog", "alice", Message.MessageType.TEXT);
+        message.setRoom("#general");
+        byte[] serialized = serialize(message);
+        byte[] binary = FrameCodec.BINARY.encode(message);
+        
+        bench.run("serialize.objectStream", () -> serialize(message));
+        bench.run("deserialize.objectStream", () -> {
+            try (MessageInputStream input = new MessageInputStream(new ByteArrayInputStream(serialized))) {
+                return input.readObject();
+            }
+        });
+        bench.run("serialize.binary", () -> FrameCodec.BINARY.encode(message));
+        bench.run("deserialize.binary", () -> FrameCodec.BINARY.decode(binary, FrameCodec.HEADER_SIZE, binary.length - FrameCodec.HEADER_SIZE));
+    }
+    
+    private static byte[] serialize(Message message) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Per-connection compression of varied chat frames through the shared stream context, and of file chunks
+     * that do and don't compress. The sizes show what each costs in bytes next to its time per operation.
+     */
+    private static void compression(MicroBenchmark bench, PrintStream report) throws Exception {
+        String[] words = {"the", "build", "is", "green", "again", "deploy", "at", "noon", "who", "has", "the", "report",
+                          "lunch", "meeting", "moved", "to", "3pm", "ok", "thanks", "see", "you", "there"};
+        Random random = new Random(42);
+        byte[][] frames = new byte[256][];
+        for (int i = 0; i < frames.length; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0, count = 4 + random.nextInt(12); w < count; w++) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            Message message = new Message(text.toString().trim(), "user" + random.nextInt(20), Message.MessageType.TEXT);
+            message.setRoom("general");
+            message.setSequence(i + 1);
+            frames[i] = FrameCodec.BINARY.encode(message);
+        }
+        StringBuilder csv = new StringBuilder();
+        while (csv.length() < Constants.FILE_CHUNK_SIZE) {
+            csv.append(random.nextInt(100000)).append(",user").append(random.nextInt(500)).append(",2026-10-18T")
+               .append(10 + random.nextInt(10)).append(':').append(random.nextInt(60)).append(",OK\n");
+        }
+        byte[] csvChunk = csv.substring(0, Constants.FILE_CHUNK_SIZE).getBytes(StandardCharsets.US_ASCII);
+        byte[] randomChunk = new byte[Constants.FILE_CHUNK_SIZE];
+        random.nextBytes(randomChunk);
+        
+        FrameCompressor sender = new FrameCompressor(new FrameCompressor.Stats());
+        FrameCompressor receiver = new FrameCompressor(new FrameCompressor.Stats());
+        int[] next = {0};
+        bench.run("compress.chatFrame", () -> sender.compress(frames[next[0]++ & 255]));
+        FrameCompressor pairedSender = new FrameCompressor(new FrameCompressor.Stats());
+        bench.run("compress+decompress.chatFrame", () -> {
+            byte[] compressed = pairedSender.compress(frames[next[0]++ & 255]);
+            return receiver.decompress(compressed, FrameCodec.HEADER_SIZE, compressed.length - FrameCodec.HEADER_SIZE);
+        });
+        byte[] compressedCsv = sender.compress(csvChunk, 0, csvChunk.length);
+        bench.run("compress.csvChunk", () -> sender.compress(csvChunk, 0, csvChunk.length));
+        bench.run("decompress.csvChunk", () -> receiver.decompress(compressedCsv, FrameCodec.HEADER_SIZE,
+                                                                   compressedCsv.length - FrameCodec.HEADER_SIZE));
+        bench.run("compress.randomChunk", () -> sender.compress(randomChunk, 0, randomChunk.length));
+        
+        FrameCompressor.Stats sizes = new FrameCompressor.Stats();
+        FrameCompressor sizer = new FrameCompressor(sizes);
+        for (byte[] frame : frames) {
+            sizer.compress(frame);
+        }
+        report.printf("  chat frames: %d bytes -> %d on the wire%n", sizes.getPlainBytesSent(), sizes.getWireBytesSent());
+        report.printf("  csv chunk: %d bytes -> %d, random chunk: %d bytes -> %d%n", csvChunk.length, compressedCsv.length,
+                      randomChunk.length, sender.compress(randomChunk, 0, randomChunk.length).length);
+    }
+    
+    private static void timestamps(MicroBenchmark bench) throws Exception {
+        Message message = new Message("hi", "alice", Message.MessageType.TEXT);
+        bench.run("message.getFormattedTimestamp", message::getFormattedTimestamp);
+    }
+    
+    /**
+     * One command each, parsed and answered by a logged-in handler; replies go to an in-memory sink
+     */
+    private static void commands(MicroBenchmark bench) throws Exception {
+        ChatServer server = createServer();
+        ClientHandler handler = null;
+        for (int i = 0; i < 10; i++) {
+            handler = new BroadcastBenchmark.SinkTransport(server, "user" + i).getHandler();
+        }
+        ClientHandler sender = handler;
+        for (String command : new String[] {"/help", "/users user", "/msg user1 hello", "/nosuch"}) {
+            Message message = new Message(command, "user9", Message.MessageType.TEXT);
+            bench.run("handleMessage." + command.split(" ")[0].substring(1), () -> {
+                sender.handleIncoming(message);
+                return message;
+            });
+        }
+        server.stop();
+    }
+    
+    /**
+     * ChatServer.broadcastMessage of one text message to n in-memory sinks
+     */
+    private static void fanOut(MicroBenchmark bench) throws Exception {
+        for (int recipients : FAN_OUT) {
+            ChatServer server = createServer();
+            for (int i = 0; i < recipients; i++) {
+                new BroadcastBenchmark.SinkTransport(server, "user" + i);
+            }
+            Message message = new Message("The quick brown fox jumps over the lazy dog", "alice", Message.MessageType.TEXT);
+            bench.run("broadcastMessage." + recipients, () -> {
+                server.broadcastMessage(message, null);
+                return message;
+            });
+            server.stop();
+        }
+    }
+    
+    private static ChatServer createServer() {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setHistorySize(0);
+        // Each command runs far past any per-user rate, which would only measure the flood limits
+        config.setUserMessageRate(0);
+        config.setUserByteRate(0);
+        config.setServerMessageRate(0);
+        config.setServerByteRate(0);
+        return new ChatServer(config);
+    }
+}
@@ -0,0 +1,157 @@
+package server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A small JMH-style harness: each benchmark runs for a few timed warmup iterations, then for the
+ * measured ones. It reports the mean time per operation and a 99.9% confidence interval. Operations
+ * return a value that is folded into a sink, so the JIT can't drop the work as dead code.
+ *
+ * Results can be saved as CSV and compared with an earlier run, to track the hot paths release to release.
+ */
+class MicroBenchmark {
+    /**
+     * One benchmarked operation. Whatever it returns is consumed so the work can't be optimized away.
+     */
+    interface Operation {
+        Object run() throws Exception;
+    }
+    
+    /**
+     * Mean and spread of one benchmark, in nanoseconds per operation
+     */
+    static final class Result {
+        final String name;
+        final double nanosPerOp;
+        final double error;
+        
+        Result(String name, double nanosPerOp, double error) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.error = error;
+        }
+    }
+    
+    // Student's t for 99.9% two-sided, by degrees of freedom 1..10; later iterations use the normal value
+    private static final double[] T_999 = {636.6, 31.60, 12.92, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587};
+    
+    private static volatile int sink;
+    
+    private final PrintStream report;
+    private final int warmupIterations;
+    private final int measuredIterations;
+    private final long iterationNanos;
+    private final List<Result> results;
+    
+    MicroBenchmark(PrintStream report, int warmupIterations, int measuredIterations, long iterationMillis) {
+        this.report = report;
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = measuredIterations;
+        this.iterationNanos = iterationMillis * 1_000_000;
+        this.results = new ArrayList<>();
+    }
+    
+    /**
+     * Runs one benchmark and prints its line of the report
+     */
+    Result run(String name, Operation operation) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation);
+        }
+        double[] samples = new double[measuredIterations];
+        for (int i = 0; i < measuredIterations; i++) {
+            samples[i] = iteration(operation);
+        }
+        
+        double mean = 0;
+        for (double sample : samples) {
+            mean += sample;
+        }
+        mean /= samples.length;
+        double variance = 0;
+        for (double sample : samples) {
+            variance += (sample - mean) * (sample - mean);
+        }
+        double error = 0;
+        if (samples.length > 1) {
+            double t = samples.length - 1 <= T_999.length ? T_999[samples.length - 2] : 3.291;
+            error = t * Math.sqrt(variance / (samples.length - 1) / samples.length);
+        }
+        
+        Result result = new Result(name, mean, error);
+        results.add(result);
+        report.printf(Locale.ROOT, "%-40s %14.1f +- %10.1f ns/op%n", name, mean, error);
+        return result;
+    }
+    
+    /**
+     * Runs the operation in batches until the iteration time is used up; returns nanoseconds per operation
+     */
+    private double iteration(Operation operation) throws Exception {
+        int hash = 0;
+        long operations = 0;
+        int batch = 1;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < batch; i++) {
+                Object value = operation.run();
+                hash += value != null ? value.hashCode() : 0;
+            }
+            operations += batch;
+            if (batch < 1024) {
+                batch *= 2;
+            }
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        sink += hash;
+        return (double) elapsed / operations;
+    }
+    
+    void writeCsv(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println("benchmark,ns_per_op,error");
+            for (Result result : results) {
+                out.printf(Locale.ROOT, "%s,%.1f,%.1f%n", result.name, result.nanosPerOp, result.error);
+            }
+        }
+    }
+    
+    /**
+     * Prints each result next to the same benchmark in an earlier CSV. Differences within the
+     * two runs' combined error are reported as unchanged.
+     */
+    void compareWith(Path baselineFile) throws IOException {
+        Map<String, double[]> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(baselineFile, StandardCharsets.UTF_8)) {
+            String[] fields = line.split(",");
+            if (fields.length == 3 && !fields[0].equals("benchmark")) {
+                baseline.put(fields[0], new double[] {Double.parseDouble(fields[1]), Double.parseDouble(fields[2])});
+            }
+        }
+        
+        report.println();
+        report.printf("%-40s %14s %14s %9s%n", "compared with " + baselineFile.getFileName(), "before", "now", "change");
+        for (Result result : results) {
+            double[] before = baseline.get(result.name);
+            if (before == null) {
+                report.printf(Locale.ROOT, "%-40s %14s %14.1f %9s%n", result.name, "-", result.nanosPerOp, "new");
+                continue;
+            }
+            double change = (result.nanosPerOp - before[0]) / before[0] * 100;
+            boolean significant = Math.abs(result.nanosPerOp - before[0]) > result.error + before[1];
+            report.printf(Locale.ROOT, "%-40s %14.1f %14.1f %9s%n", result.name, before[0], result.nanosPerOp,
+                              significant ? String.format(Locale.ROOT, "%+.1f%%", change) : "~");
+        }
+    }
+}
@@ -0,0 +1,19 @@
+@echo off
+echo Running ChatWave benchmarks...
+
+rem Benchmarks run against the compiled classes
+call compile.bat
+if %ERRORLEVEL% NEQ 0 exit /b 1
+
+if not exist bench-classes mkdir bench-classes
+javac -d bench-classes -cp classes bench\server\*.java bench\client\*.java
+
+if %ERRORLEVEL% EQU 0 (
+    java -cp classes;bench-classes server.BroadcastBenchmark
+    java -cp classes;bench-classes server.CoalescingBenchmark
+    java -cp classes;bench-classes server.HotPathBenchmark %*
+) else (
+    echo Benchmark compilation failed!
+)
+
+pause
@@ -0,0 +1,17 @@
+@echo off
+echo Running ChatWave load generator...
+
+rem The load generator runs against the compiled classes
+call compile.bat
+if %ERRORLEVEL% NEQ 0 exit /b 1
+
+if not exist bench-classes mkdir bench-classes
+javac -d bench-classes -cp classes bench\server\*.java bench\client\*.java
+
+if %ERRORLEVEL% EQU 0 (
+    java -cp classes;bench-classes client.LoadGenerator %*
+) else (
+    echo Load generator compilation failed!
+)
+
+pause
@@ -13,6 +13,6 @@ if not exist files mkdir files
 
 rem Run the server
 echo Server will start on port %1 (default: 12345)
-java -cp classes server.ChatServer %1
+java -cp classes server.ChatServer %*
 
 pause
@@ -2,48 +2,112 @@ package client;
 
 import shared.Message;
 import shared.Constants;
+import shared.FrameCodec;
+import shared.FrameCompressor;
+import shared.TimingWheel;
 import java.io.*;
 import java.net.Socket;
 import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Chat client that connects to the server and handles communication
  */
 public class ChatClient {
+    private static final long HEARTBEAT_MILLIS = TimeUnit.SECONDS.toMillis(Constants.HEARTBEAT_SECONDS);
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(Constants.IDLE_TIMEOUT_SECONDS);
+    private static final int MAX_SHARED_FILES = 1000; // the oldest announcements are forgotten past this
+    
+    /**
+     * One wheel for every client in the process, started on first use; a load generator
+     * running thousands of sessions still has a single heartbeat thread
+     */
+    private static class Heartbeats {
+        static final TimingWheel WHEEL = new TimingWheel("client-heartbeats", 100, 1024);
+        
+        static {
+            WHEEL.start();
+        }
+    }
+    
     private Socket socket;
-    private ObjectInputStream input;
-    private ObjectOutputStream output;
+    private DataInputStream input;
+    private DataOutputStream output;
+    private FrameCodec codec;
+    private volatile FrameCompressor compressor; // null unless the server accepted compression
+    private final FrameCompressor.Stats compressionStats;
     private String username;
     private String host;
     private int port;
     private boolean isConnected;
     private ChatClientGUI gui;
     private MessageReceiver messageReceiver;
+    private final Map<String, CompletableFuture<Message>> pendingOffers;
+    private final Set<File> unfinishedUploads;
+    private final Map<String, Message> sharedFiles; // by hash, in the order they were announced
+    private final Map<String, FileDownload> pendingDownloads;
+    private final Roster roster;
+    private final DeliveryTracker deliveryTracker;
+    private volatile long lastHeard; // System.nanoTime() of the last message from the server
+    private volatile TimingWheel.Timeout heartbeatCheck; // null unless the server accepted heartbeats
     
     public ChatClient(String host, int port, String username) {
         this.host = host;
         this.port = port;
         this.username = username;
         this.isConnected = false;
+        this.pendingOffers = new ConcurrentHashMap<>();
+        this.unfinishedUploads = ConcurrentHashMap.newKeySet();
+        this.sharedFiles = Collections.synchronizedMap(new LinkedHashMap<String, Message>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Message> eldest) {
+                return size() > MAX_SHARED_FILES;
+            }
+        });
+        this.pendingDownloads = new ConcurrentHashMap<>();
+        this.roster = new Roster();
+        this.deliveryTracker = new DeliveryTracker();
+        this.compressionStats = new FrameCompressor.Stats();
     }
     
     public boolean connect() {
         try {
             socket = new Socket(host, port);
-            output = new ObjectOutputStream(socket.getOutputStream());
-            input = new ObjectInputStream(socket.getInputStream());
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
             
-            // Send username to server
+            // Agree on the wire format, then send username to server
+            int features = FrameCodec.clientHandshake(output, input);
+            codec = FrameCodec.forFeatures(features);
+            compressor = (features & FrameCodec.FEATURE_COMPRESSION) != 0 ? new FrameCompressor(compressionStats) : null;
+            roster.clear(); // Rebuilt from the snapshot sent after login
+            deliveryTracker.clear();
+            deliveryTracker.joined(Constants.DEFAULT_ROOM);
             Message usernameMessage = new Message(username, username, Message.MessageType.TEXT);
-            output.writeObject(usernameMessage);
-            output.flush();
+            writeMessage(usernameMessage);
             
             isConnected = true;
             
             // Start message receiver thread
-            messageReceiver = new MessageReceiver(input, this);
+            messageReceiver = new MessageReceiver(input, codec, compressor, this);
             new Thread(messageReceiver).start();
             
+            if ((features & FrameCodec.FEATURE_HEARTBEAT) != 0) {
+                lastHeard = System.nanoTime();
+                heartbeatCheck = Heartbeats.WHEEL.schedule(this::checkHeartbeat, HEARTBEAT_MILLIS);
+            }
             return true;
         } catch (ConnectException e) {
             System.err.println("Could not connect to server at " + host + ":" + port);
@@ -58,6 +122,7 @@ public class ChatClient {
     public void disconnect() {
         if (isConnected) {
             isConnected = false;
+            stopHeartbeat();
             
             try {
                 if (messageReceiver != null) {
@@ -79,8 +144,8 @@ public class ChatClient {
         if (isConnected && content != null && !content.trim().isEmpty()) {
             try {
                 Message message = new Message(content, username, Message.MessageType.TEXT);
-                output.writeObject(message);
-                output.flush();
+                trackRoomChange(content);
+                writeMessage(message);
             } catch (IOException e) {
                 System.err.println("Error sending message: " + e.getMessage());
                 disconnect();
@@ -88,30 +153,227 @@ public class ChatClient {
         }
     }
     
-    public void sendFile(String filename, byte[] fileData) {
-        if (isConnected && filename != null && fileData != null) {
+    /**
+     * Uploads a file in the background. It is streamed in chunks, so text messages
+     * sent meanwhile go out between chunks instead of waiting for the whole file.
+     */
+    public void sendFile(File file) {
+        if (isConnected && file != null) {
+            if (file.length() > Constants.MAX_FILE_SIZE) {
+                showLocalMessage("File too large. Maximum size is " + 
+                               (Constants.MAX_FILE_SIZE / 1024 / 1024) + "MB");
+                return;
+            }
+            
+            unfinishedUploads.add(file);
+            new Thread(new FileUpload(this, file), "upload-" + file.getName()).start();
+        }
+    }
+    
+    /**
+     * Restarts uploads left unfinished by an earlier connection; each continues where the server left off
+     */
+    public void resumeUploads(Collection<File> files) {
+        for (File file : files) {
+            if (file.isFile()) {
+                showLocalMessage("Resuming upload of " + file.getName());
+                sendFile(file);
+            }
+        }
+    }
+    
+    /**
+     * Files whose upload was interrupted, to hand to the next connection's resumeUploads
+     */
+    public List<File> getUnfinishedUploads() {
+        return new ArrayList<>(unfinishedUploads);
+    }
+    
+    /**
+     * Announces an upload and waits for the server to say which offset to continue from.
+     * A negative offset means the server refused the file.
+     */
+    long offerFile(String transferId, String filename, long fileSize) throws IOException {
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        pendingOffers.put(transferId, reply);
+        try {
+            Message offer = new Message(null, username, Message.MessageType.FILE_OFFER);
+            offer.setTransferId(transferId);
+            offer.setFilename(filename);
+            offer.setFileSize(fileSize);
+            writeMessage(offer);
+            
+            return reply.get(30, TimeUnit.SECONDS).getOffset();
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException("No reply from server for " + filename);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while offering " + filename);
+        } finally {
+            pendingOffers.remove(transferId);
+        }
+    }
+    
+    void sendChunk(String transferId, long offset, byte[] data) throws IOException {
+        Message chunk = new Message(null, username, Message.MessageType.FILE_CHUNK);
+        chunk.setTransferId(transferId);
+        chunk.setOffset(offset);
+        chunk.setFileData(data);
+        writeMessage(chunk);
+    }
+    
+    void uploadFinished(File file) {
+        unfinishedUploads.remove(file);
+    }
+    
+    /**
+     * Asks the server for a shared file announced earlier. The contents arrive on the
+     * receiver thread and are written to destination as they come in.
+     */
+    public void downloadFile(Message sharedFile, File destination) {
+        if (isConnected && sharedFile != null && sharedFile.getFileHash() != null) {
+            String hash = sharedFile.getFileHash();
+            if (pendingDownloads.putIfAbsent(hash, new FileDownload(sharedFile.getFilename(), destination)) != null) {
+                showLocalMessage(sharedFile.getFilename() + " is already being downloaded");
+                return;
+            }
+            
             try {
-                if (fileData.length > Constants.MAX_FILE_SIZE) {
-                    if (gui != null) {
-                        gui.displayMessage(new Message("File too large. Maximum size is " + 
-                                                     (Constants.MAX_FILE_SIZE / 1024 / 1024) + "MB", 
-                                                     Constants.SERVER_NAME, 
-                                                     Message.MessageType.SERVER_MESSAGE));
-                    }
-                    return;
-                }
-                
-                Message fileMessage = new Message(filename, fileData, username);
-                output.writeObject(fileMessage);
-                output.flush();
+                Message request = new Message(null, username, Message.MessageType.FILE_DOWNLOAD);
+                request.setFileHash(hash);
+                writeMessage(request);
             } catch (IOException e) {
-                System.err.println("Error sending file: " + e.getMessage());
+                pendingDownloads.remove(hash);
+                System.err.println("Error requesting file: " + e.getMessage());
                 disconnect();
             }
         }
     }
     
+    /**
+     * Files shared in this session that can be downloaded, oldest first
+     */
+    public List<Message> getSharedFiles() {
+        synchronized (sharedFiles) {
+            return new ArrayList<>(sharedFiles.values());
+        }
+    }
+    
+    /**
+     * Called by the receiver when a download reply arrives; the file bytes follow it on input
+     */
+    void receiveDownload(Message header, DataInputStream input) throws IOException {
+        FileDownload download = pendingDownloads.remove(header.getFileHash());
+        if (download == null) {
+            download = new FileDownload(header.getFileHash(), null); // Nobody asked, just skip the bytes
+        }
+        
+        String outcome = download.receive(header, input, compressor);
+        if (outcome != null) {
+            showLocalMessage(outcome);
+        }
+    }
+    
+    /**
+     * Restarts sequence tracking for a room we join or leave, so its numbering doesn't look like a gap
+     */
+    private void trackRoomChange(String content) {
+        String[] parts = content.trim().split("\\s+", 2);
+        if (parts.length == 2 && (parts[0].equalsIgnoreCase(Constants.COMMAND_JOIN) || parts[0].equalsIgnoreCase(Constants.COMMAND_LEAVE))) {
+            String room = parts[1].trim().toLowerCase(Locale.ROOT);
+            deliveryTracker.joined(room.startsWith("#") ? room.substring(1) : room);
+        }
+    }
+    
+    private void showLocalMessage(String text) {
+        handleReceivedMessage(new Message(text, "SYSTEM", Message.MessageType.SERVER_MESSAGE));
+    }
+    
+    private synchronized void writeMessage(Message message) throws IOException {
+        codec.writeMessage(output, message, compressor);
+    }
+    
+    /**
+     * Called by the receiver for every message from the server
+     */
+    void heard() {
+        lastHeard = System.nanoTime();
+    }
+    
+    /**
+     * Answers the server's PING; a PONG needs nothing more than having been heard
+     */
+    void answerHeartbeat(Message message) {
+        if (message.getType() == Message.MessageType.PING) {
+            sendHeartbeat(Message.MessageType.PONG);
+        }
+    }
+    
+    /**
+     * Runs on the heartbeat wheel and schedules its own next run. Pings the server once it has been
+     * quiet for a while and closes the connection if it stays quiet, so a server that vanished without
+     * closing its end (a dropped network, a crashed host) shows up as a disconnection instead of silence.
+     */
+    private void checkHeartbeat() {
+        if (!isConnected) {
+            return;
+        }
+        long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHeard);
+        if (quiet >= IDLE_TIMEOUT_MILLIS) {
+            System.err.println("Nothing heard from the server for " + quiet / 1000 + " s, closing the connection");
+            try {
+                socket.close(); // The receiver sees the connection end and reports the disconnection
+            } catch (IOException e) {
+                // Already closed
+            }
+            return;
+        }
+        long delay;
+        if (quiet >= HEARTBEAT_MILLIS) {
+            // Off the wheel thread: the write waits behind any upload chunk being written
+            CompletableFuture.runAsync(() -> sendHeartbeat(Message.MessageType.PING));
+            delay = IDLE_TIMEOUT_MILLIS - quiet;
+        } else {
+            delay = HEARTBEAT_MILLIS - quiet;
+        }
+        heartbeatCheck = Heartbeats.WHEEL.schedule(this::checkHeartbeat, delay);
+    }
+    
+    private void sendHeartbeat(Message.MessageType type) {
+        try {
+            writeMessage(new Message("", username, type));
+        } catch (IOException e) {
+            // The receiver notices the broken connection and reports it
+        }
+    }
+    
+    private void stopHeartbeat() {
+        TimingWheel.Timeout check = heartbeatCheck;
+        if (check != null) {
+            check.cancel();
+        }
+    }
+    
     public void handleReceivedMessage(Message message) {
+        if (message.getType() == Message.MessageType.FILE_RESUME) {
+            CompletableFuture<Message> reply = pendingOffers.get(message.getTransferId());
+            if (reply != null) {
+                reply.complete(message);
+            }
+            return;
+        }
+        if (!deliveryTracker.record(message)) {
+            return; // A room message we already have
+        }
+        if (message.getType() == Message.MessageType.PRESENCE) {
+            roster.apply(message); // Kept quietly; the joined/left announcements are shown instead
+            return;
+        }
+        if (message.getType() == Message.MessageType.FILE && message.getFileHash() != null) {
+            sharedFiles.remove(message.getFileHash()); // Re-shared content moves to the end
+            sharedFiles.put(message.getFileHash(), message);
+        }
+        
         if (gui != null) {
             gui.displayMessage(message);
         } else {
@@ -120,8 +382,33 @@ public class ChatClient {
         }
     }
     
+    /**
+     * Who is online, kept up to date by the server's presence feed
+     */
+    public Roster getRoster() {
+        return roster;
+    }
+    
+    /**
+     * Latency and sequence gaps of the messages received on this connection
+     */
+    public DeliveryTracker getDeliveryTracker() {
+        return deliveryTracker;
+    }
+    
+    /**
+     * Bytes before and after compression on this client's connections, and the time it took
+     */
+    public FrameCompressor.Stats getCompressionStats() {
+        return compressionStats;
+    }
+    
     public void handleDisconnection() {
         isConnected = false;
+        stopHeartbeat();
+        for (CompletableFuture<Message> reply : pendingOffers.values()) {
+            reply.completeExceptionally(new EOFException("Disconnected"));
+        }
         if (gui != null) {
             gui.handleDisconnection();
         }
@@ -143,6 +430,7 @@ public class ChatClient {
         String host = Constants.DEFAULT_HOST;
         int port = Constants.DEFAULT_PORT;
         String username = "User" + System.currentTimeMillis() % 1000;
+        int scrollback = ChatClientGUI.DEFAULT_SCROLLBACK_LINES;
         
         // Parse command line arguments
         for (int i = 0; i < args.length; i++) {
@@ -169,6 +457,15 @@ public class ChatClient {
                         username = args[++i];
                     }
                     break;
+                case "-scrollback":
+                    if (i + 1 < args.length) {
+                        try {
+                            scrollback = Math.max(1, Integer.parseInt(args[++i]));
+                        } catch (NumberFormatException e) {
+                            System.err.println("Invalid scrollback line count: " + args[i]);
+                        }
+                    }
+                    break;
                 case "-console":
                 case "-c":
                     // Console mode
@@ -185,8 +482,9 @@ public class ChatClient {
         final String finalHost = host;
         final int finalPort = port;
         final String finalUsername = username;
+        final int finalScrollback = scrollback;
         javax.swing.SwingUtilities.invokeLater(() -> {
-            new ChatClientGUI(finalHost, finalPort, finalUsername);
+            new ChatClientGUI(finalHost, finalPort, finalUsername, finalScrollback);
         });
     }
 }
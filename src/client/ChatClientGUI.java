@@ -9,30 +9,53 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.geom.Rectangle2D;
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.time.format.DateTimeFormatter;
 
 /**
  * GUI interface for the chat client using Swing
  */
 public class ChatClientGUI extends JFrame {
+    public static final int DEFAULT_SCROLLBACK_LINES = 5000;
+    private static final int FRAME_MILLIS = 16; // queued messages are drawn at most this often
+    private static final int MAX_MESSAGES_PER_FRAME = 2000; // a backlog is drawn over several frames, so input stays live
+    private static final Map<Message.MessageType, AttributeSet> STYLES = createStyles();
+    private static final int FOLLOW_SLACK_PIXELS = 16; // this close to the bottom still counts as following new messages
+    
     private ChatClient client;
     private JTextPane chatArea;
+    private JScrollPane scrollPane;
+    private final int scrollbackLines; // older lines are dropped from the chat area
     private JTextField messageField;
     private JButton sendButton;
     private JButton sendFileButton;
+    private JButton downloadButton;
     private JButton connectButton;
     private JTextField hostField;
     private JTextField portField;
     private JTextField usernameField;
     private JPanel connectionPanel;
     private JPanel chatPanel;
-    private StyledDocument doc;
+    private ChatDocument doc;
+    private final ConcurrentLinkedQueue<Message> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean renderScheduled = new AtomicBoolean();
+    private Timer renderTimer;
     
     public ChatClientGUI(String defaultHost, int defaultPort, String defaultUsername) {
+        this(defaultHost, defaultPort, defaultUsername, DEFAULT_SCROLLBACK_LINES);
+    }
+    
+    public ChatClientGUI(String defaultHost, int defaultPort, String defaultUsername, int scrollbackLines) {
         super("ChatWave - Real-Time Chat Application");
+        this.scrollbackLines = scrollbackLines;
         
         initializeGUI(defaultHost, defaultPort, defaultUsername);
         setupEventHandlers();
@@ -108,12 +131,16 @@ public class ChatClientGUI extends JFrame {
         chatPanel = new JPanel(new BorderLayout());
         
         // Chat area
-        chatArea = new JTextPane();
+        doc = new ChatDocument();
+        chatArea = new JTextPane(doc);
         chatArea.setEditable(false);
         chatArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
-        doc = chatArea.getStyledDocument();
+        // Scrolling is decided per frame, so someone reading older messages isn't pulled to the bottom
+        ((DefaultCaret) chatArea.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        renderTimer = new Timer(FRAME_MILLIS, e -> renderPendingMessages());
+        renderTimer.setRepeats(false);
         
-        JScrollPane scrollPane = new JScrollPane(chatArea);
+        scrollPane = new JScrollPane(chatArea);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
         scrollPane.setPreferredSize(new Dimension(750, 400));
         
@@ -127,10 +154,12 @@ public class ChatClientGUI extends JFrame {
         messageField.setFont(new Font("Arial", Font.PLAIN, 12));
         sendButton = new JButton("Send");
         sendFileButton = new JButton("Send File");
+        downloadButton = new JButton("Download File");
         
         JPanel buttonPanel = new JPanel(new FlowLayout());
         buttonPanel.add(sendButton);
         buttonPanel.add(sendFileButton);
+        buttonPanel.add(downloadButton);
         
         inputPanel.add(messageField, BorderLayout.CENTER);
         inputPanel.add(buttonPanel, BorderLayout.EAST);
@@ -161,6 +190,9 @@ public class ChatClientGUI extends JFrame {
         // Send file button
         sendFileButton.addActionListener(e -> sendFile());
         
+        // Download file button
+        downloadButton.addActionListener(e -> downloadFile());
+        
         // Window closing
         addWindowListener(new WindowAdapter() {
             @Override
@@ -191,6 +223,9 @@ public class ChatClientGUI extends JFrame {
             return;
         }
         
+        // Uploads cut off by a lost connection pick up where they stopped
+        List<File> unfinishedUploads = client != null ? client.getUnfinishedUploads() : Collections.<File>emptyList();
+        
         client = new ChatClient(host, port, username);
         client.setGUI(this);
         
@@ -207,6 +242,7 @@ public class ChatClientGUI extends JFrame {
             setTitle("ChatWave - " + username + " @ " + host + ":" + port);
             
             displaySystemMessage("Connected to " + host + ":" + port + " as " + username);
+            client.resumeUploads(unfinishedUploads);
         } else {
             JOptionPane.showMessageDialog(this, "Could not connect to server.\\nMake sure the server is running.", 
                                         "Connection Error", JOptionPane.ERROR_MESSAGE);
@@ -234,68 +270,169 @@ public class ChatClientGUI extends JFrame {
         if (result == JFileChooser.APPROVE_OPTION) {
             File selectedFile = fileChooser.getSelectedFile();
             
-            try {
-                if (selectedFile.length() > Constants.MAX_FILE_SIZE) {
-                    JOptionPane.showMessageDialog(this, 
-                        "File too large. Maximum size is " + (Constants.MAX_FILE_SIZE / 1024 / 1024) + "MB.", 
-                        "File Too Large", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-                
-                byte[] fileData = Files.readAllBytes(selectedFile.toPath());
-                client.sendFile(selectedFile.getName(), fileData);
-                
-                displaySystemMessage("Sending file: " + selectedFile.getName());
-                
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, "Error reading file: " + e.getMessage(), 
-                                            "File Error", JOptionPane.ERROR_MESSAGE);
+            if (selectedFile.length() > Constants.MAX_FILE_SIZE) {
+                JOptionPane.showMessageDialog(this, 
+                    "File too large. Maximum size is " + (Constants.MAX_FILE_SIZE / 1024 / 1024) + "MB.", 
+                    "File Too Large", JOptionPane.ERROR_MESSAGE);
+                return;
             }
+            
+            // Streamed from disk in chunks by a background upload, never loaded whole
+            client.sendFile(selectedFile);
+            
+            displaySystemMessage("Sending file: " + selectedFile.getName());
+        }
+    }
+    
+    /**
+     * Lets the user pick one of the files shared so far and where to save it
+     */
+    private void downloadFile() {
+        if (client == null || !client.isConnected()) {
+            JOptionPane.showMessageDialog(this, "Not connected to server.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        List<Message> sharedFiles = client.getSharedFiles();
+        if (sharedFiles.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No files have been shared yet.", "Download File", 
+                                        JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        
+        String[] choices = new String[sharedFiles.size()];
+        for (int i = 0; i < choices.length; i++) {
+            Message file = sharedFiles.get(choices.length - 1 - i); // Newest first
+            choices[i] = (i + 1) + ". " + file.getFilename() + " (" + formatSize(file.getFileSize()) + ") from " + file.getUsername();
+        }
+        Object choice = JOptionPane.showInputDialog(this, "Select a file to download:", "Download File", 
+                                                  JOptionPane.QUESTION_MESSAGE, null, choices, choices[0]);
+        if (choice == null) {
+            return;
+        }
+        Message selected = sharedFiles.get(choices.length - 1 - Arrays.asList(choices).indexOf(choice));
+        
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Save File As");
+        fileChooser.setSelectedFile(new File(selected.getFilename()));
+        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            client.downloadFile(selected, fileChooser.getSelectedFile());
+            displaySystemMessage("Downloading file: " + selected.getFilename());
+        }
+    }
+    
+    private static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return (bytes / 1024) + " KB";
         }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
     }
     
+    /**
+     * Colors by message type, made once instead of per message
+     */
+    private static Map<Message.MessageType, AttributeSet> createStyles() {
+        Map<Message.MessageType, AttributeSet> styles = new EnumMap<>(Message.MessageType.class);
+        for (Message.MessageType type : Message.MessageType.values()) {
+            Color color;
+            switch (type) {
+                case SERVER_MESSAGE:
+                case USER_LIST:
+                    color = new Color(70, 130, 180);
+                    break;
+                case USER_JOIN:
+                    color = new Color(34, 139, 34);
+                    break;
+                case USER_LEAVE:
+                    color = new Color(220, 20, 60);
+                    break;
+                case FILE:
+                    color = new Color(255, 140, 0);
+                    break;
+                case PRIVATE:
+                    color = new Color(128, 0, 128);
+                    break;
+                default:
+                    color = Color.BLACK;
+                    break;
+            }
+            SimpleAttributeSet style = new SimpleAttributeSet();
+            StyleConstants.setForeground(style, color);
+            styles.put(type, style);
+        }
+        return styles;
+    }
+    
+    /**
+     * Queues a message for the chat area. Safe to call from any thread: messages are not drawn one
+     * by one but gathered and added together once a frame, so a busy room can't swamp the event thread.
+     */
     public void displayMessage(Message message) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                Style style = null;
-                Color color = Color.BLACK;
-                
-                switch (message.getType()) {
-                    case SERVER_MESSAGE:
-                        color = new Color(70, 130, 180);
-                        break;
-                    case USER_JOIN:
-                        color = new Color(34, 139, 34);
-                        break;
-                    case USER_LEAVE:
-                        color = new Color(220, 20, 60);
-                        break;
-                    case FILE:
-                        color = new Color(255, 140, 0);
-                        break;
-                    default:
-                        color = Color.BLACK;
-                        break;
+        pendingMessages.add(message);
+        if (renderScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(renderTimer::restart);
+        }
+    }
+    
+    /**
+     * Adds the messages queued since the last frame in one document insert, trims the scrollback,
+     * and scrolls to the bottom if that's where the view was
+     */
+    private void renderPendingMessages() {
+        renderScheduled.set(false);
+        JScrollBar scrollBar = scrollPane.getVerticalScrollBar();
+        boolean following = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum() - FOLLOW_SLACK_PIXELS;
+        Message message;
+        for (int count = 0; count < MAX_MESSAGES_PER_FRAME && (message = pendingMessages.poll()) != null; count++) {
+            String line = "[" + message.getFormattedTimestamp() + "] " + message.getRoomLabel() + 
+                          message.getSenderLabel() + ": " + message.getDisplayContent();
+            doc.appendLine(line, STYLES.get(message.getType()));
+        }
+        
+        try {
+            if (doc.flush()) {
+                trimScrollback(following);
+                if (following) {
+                    chatArea.setCaretPosition(doc.getLength()); // Auto-scroll to bottom
                 }
-                
-                style = chatArea.addStyle("MessageStyle", null);
-                StyleConstants.setForeground(style, color);
-                
-                String timestamp = message.getFormattedTimestamp();
-                String formattedMessage = String.format("[%s] %s: %s%n", 
-                                                      timestamp, 
-                                                      message.getUsername(), 
-                                                      message.getContent());
-                
-                doc.insertString(doc.getLength(), formattedMessage, style);
-                
-                // Auto-scroll to bottom
-                chatArea.setCaretPosition(doc.getLength());
-                
-            } catch (BadLocationException e) {
-                System.err.println("Error displaying message: " + e.getMessage());
             }
-        });
+        } catch (BadLocationException e) {
+            System.err.println("Error displaying messages: " + e.getMessage());
+        }
+        
+        if (!pendingMessages.isEmpty() && renderScheduled.compareAndSet(false, true)) {
+            renderTimer.restart(); // The rest of a backlog goes in the next frame
+        }
+    }
+    
+    /**
+     * Drops the oldest lines beyond the scrollback limit, so memory stays flat however long the window
+     * is open. While the view is scrolled up only lines above it are dropped, and the view moves up by
+     * their height so the lines being read stay put; past twice the limit older lines go regardless.
+     */
+    private void trimScrollback(boolean following) throws BadLocationException {
+        int lines = doc.getLineCount();
+        int excess = lines - scrollbackLines;
+        if (excess <= 0) {
+            return;
+        }
+        if (following) {
+            doc.removeOldestLines(excess);
+            return;
+        }
+        JViewport viewport = scrollPane.getViewport();
+        int firstVisible = doc.getDefaultRootElement().getElementIndex(chatArea.viewToModel2D(viewport.getViewPosition()));
+        excess = Math.max(Math.min(excess, firstVisible), lines - 2 * scrollbackLines);
+        if (excess > 0) {
+            Rectangle2D cut = chatArea.modelToView2D(doc.getLineStart(excess));
+            doc.removeOldestLines(excess);
+            if (cut != null) {
+                JScrollBar scrollBar = scrollPane.getVerticalScrollBar();
+                scrollBar.setValue(scrollBar.getValue() - ((int) cut.getY() - chatArea.getInsets().top));
+            }
+        }
     }
     
     private void displaySystemMessage(String message) {
@@ -0,0 +1,85 @@
+package client;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The chat log's document. Lines are gathered with appendLine and added by flush in a single
+ * insert, so a frame's worth of messages takes the document lock once and fires one change event,
+ * and the text pane lays out once, instead of once per message. Old lines are removed the same way,
+ * many at a time, to keep the scrollback bounded.
+ * Used on the event dispatch thread only, like any Swing document behind a visible component.
+ */
+class ChatDocument extends DefaultStyledDocument {
+    private static final long serialVersionUID = 1L;
+    
+    private final List<ElementSpec> batch = new ArrayList<>();
+    
+    /**
+     * Queues a line of text, which may itself span several lines, for the next flush
+     */
+    void appendLine(String text, AttributeSet style) {
+        AttributeSet paragraph = getDefaultRootElement().getElement(0).getAttributes();
+        int start = 0;
+        while (true) {
+            int end = text.indexOf('\n', start);
+            char[] line = (end < 0 ? text.substring(start) + "\n" : text.substring(start, end + 1)).toCharArray();
+            // A paragraph per line, as insertString would have made
+            batch.add(new ElementSpec(style, ElementSpec.ContentType, line, 0, line.length));
+            batch.add(new ElementSpec(null, ElementSpec.EndTagType));
+            batch.add(new ElementSpec(paragraph, ElementSpec.StartTagType));
+            if (end < 0) {
+                return;
+            }
+            start = end + 1;
+        }
+    }
+    
+    /**
+     * Adds every queued line at the end of the document. Returns whether there were any.
+     */
+    boolean flush() throws BadLocationException {
+        if (batch.isEmpty()) {
+            return false;
+        }
+        // The same specs insertString would build for these lines at the end of the document
+        ElementSpec last = batch.get(batch.size() - 1);
+        if (getLength() > 0) {
+            // Close the paragraph of the line before, then the new lines' last paragraph joins the closing one
+            AttributeSet paragraph = getDefaultRootElement().getElement(0).getAttributes();
+            batch.add(0, new ElementSpec(paragraph, ElementSpec.StartTagType));
+            batch.add(0, new ElementSpec(paragraph, ElementSpec.EndTagType));
+            last.setDirection(ElementSpec.JoinNextDirection);
+        } else {
+            last.setDirection(ElementSpec.JoinFractureDirection);
+        }
+        ElementSpec[] specs = batch.toArray(new ElementSpec[0]);
+        batch.clear();
+        insert(getLength(), specs);
+        return true;
+    }
+    
+    /**
+     * Lines shown, counting each line of a multi-line message
+     */
+    int getLineCount() {
+        return getDefaultRootElement().getElementCount() - 1; // The last paragraph is the empty one after the final newline
+    }
+    
+    /**
+     * Offset at which the given line starts
+     */
+    int getLineStart(int line) {
+        return getDefaultRootElement().getElement(line).getStartOffset();
+    }
+    
+    /**
+     * Drops the oldest lines in a single edit
+     */
+    void removeOldestLines(int count) throws BadLocationException {
+        remove(0, getLineStart(Math.min(count, getLineCount())));
+    }
+}
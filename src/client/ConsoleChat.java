@@ -1,11 +1,16 @@
 package client;
 
+import shared.Constants;
+import shared.Message;
+import java.io.File;
 import java.util.Scanner;
 
 /**
  * Console-based chat interface for text-only interaction
  */
 public class ConsoleChat {
+    private static final String DOWNLOADS_DIRECTORY = "downloads";
+    
     private ChatClient client;
     private Scanner scanner;
     
@@ -27,6 +32,18 @@ public class ConsoleChat {
                     if (input.equals("/leave") || input.equals("/quit") || input.equals("/exit")) {
                         break;
                     }
+                    if (input.startsWith(Constants.COMMAND_SEND_FILE + " ")) {
+                        sendFile(input.substring(Constants.COMMAND_SEND_FILE.length() + 1).trim());
+                        continue;
+                    }
+                    if (input.startsWith(Constants.COMMAND_DOWNLOAD + " ")) {
+                        downloadFile(input.substring(Constants.COMMAND_DOWNLOAD.length() + 1).trim());
+                        continue;
+                    }
+                    if (input.trim().equals(Constants.COMMAND_LATENCY)) {
+                        System.out.println(client.getDeliveryTracker().report());
+                        continue;
+                    }
                     client.sendMessage(input);
                 }
             } catch (Exception e) {
@@ -39,4 +56,35 @@ public class ConsoleChat {
         scanner.close();
         System.out.println("Goodbye!");
     }
+    
+    private void sendFile(String path) {
+        File file = new File(path);
+        if (!file.isFile()) {
+            System.out.println("No such file: " + path);
+            return;
+        }
+        System.out.println("Sending file: " + file.getName());
+        client.sendFile(file);
+    }
+    
+    /**
+     * Downloads the most recently shared file with this name into the downloads directory
+     */
+    private void downloadFile(String filename) {
+        Message match = null;
+        for (Message file : client.getSharedFiles()) {
+            if (file.getFilename().equals(filename)) {
+                match = file;
+            }
+        }
+        if (match == null) {
+            System.out.println("No shared file named " + filename);
+            return;
+        }
+        
+        File directory = new File(DOWNLOADS_DIRECTORY);
+        directory.mkdirs();
+        System.out.println("Downloading file: " + filename);
+        client.downloadFile(match, new File(directory, filename));
+    }
 }
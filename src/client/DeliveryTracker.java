@@ -0,0 +1,176 @@
+package client;
+
+import shared.LatencyHistogram;
+import shared.Message;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Delivery statistics from the timestamps and room sequence numbers the server puts on each message:
+ * end-to-end latency (sender's clock to ours), the part of it spent inside the server, and any
+ * sequence numbers a room skipped, delivered late or repeated. Latencies compare clocks on different
+ * machines, so they are only as good as the clocks agree.
+ */
+public class DeliveryTracker {
+    private static final long LATE_WINDOW = 4096; // how far behind the newest a skipped number can still turn up
+    
+    /**
+     * Where a room's numbering has got to: the highest number received, and the ones skipped below it
+     */
+    private static final class RoomSequence {
+        private long highest;
+        private final TreeSet<Long> gaps = new TreeSet<>();
+        
+        RoomSequence(long highest) {
+            this.highest = highest;
+        }
+    }
+    
+    private final Map<String, RoomSequence> sequences; // room -> what has been received in it
+    private final Map<String, Long> joinedAt; // room -> when we (re)joined, by our clock
+    private final LatencyHistogram endToEnd;
+    private final LatencyHistogram inServer;
+    private long received;
+    private long missing;
+    private long outOfOrder;
+    private long repeated;
+    private Message last;
+    
+    public DeliveryTracker() {
+        this.sequences = new HashMap<>();
+        this.joinedAt = new HashMap<>();
+        this.endToEnd = new LatencyHistogram();
+        this.inServer = new LatencyHistogram();
+    }
+    
+    /**
+     * Records a message received from the server. Returns false if it repeats a room message
+     * already received, which the caller should drop.
+     */
+    public synchronized boolean record(Message message) {
+        if (!recordSequence(message)) {
+            repeated++;
+            return false;
+        }
+        
+        if (message.getSentTime() <= 0 || message.getServerReceivedTime() <= 0 || message.getReceivedTime() <= 0
+            || isReplayed(message)) {
+            return true; // Not sent by a user, from a server that doesn't stamp, or history
+        }
+        received++;
+        last = message;
+        endToEnd.record(message.getReceivedTime() - message.getSentTime());
+        if (message.getServerSentTime() > 0) {
+            inServer.record(message.getServerSentTime() - message.getServerReceivedTime());
+        }
+        return true;
+    }
+    
+    /**
+     * Counts a jump in a room's numbering as skipped messages until they turn up late.
+     * Returns false for a number already received.
+     */
+    private boolean recordSequence(Message message) {
+        String room = message.getRoom();
+        long sequence = message.getSequence();
+        if (sequence <= 0 || room == null) {
+            return true;
+        }
+        RoomSequence seen = sequences.get(room);
+        if (seen == null) {
+            sequences.put(room, new RoomSequence(sequence));
+        } else if (sequence > seen.highest) {
+            missing += sequence - seen.highest - 1;
+            for (long gap = Math.max(seen.highest + 1, sequence - LATE_WINDOW); gap < sequence; gap++) {
+                seen.gaps.add(gap);
+            }
+            seen.highest = sequence;
+            seen.gaps.headSet(sequence - LATE_WINDOW).clear(); // Too old to wait for; they stay skipped
+        } else if (seen.gaps.remove(sequence)) {
+            missing--; // Not lost after all, only late
+            outOfOrder++;
+        } else {
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Room history replayed when we joined went out long before we asked for it, so its latency says nothing
+     */
+    private boolean isReplayed(Message message) {
+        Long joined = message.getRoom() == null ? null : joinedAt.get(message.getRoom());
+        return joined != null && message.getServerSentTime() > 0 && message.getServerSentTime() < joined;
+    }
+    
+    /**
+     * Starts a room over, for when we join or leave it: its numbering picks up wherever its history starts
+     */
+    public synchronized void joined(String room) {
+        sequences.remove(room);
+        joinedAt.put(room, System.currentTimeMillis());
+    }
+    
+    /**
+     * Forgets everything, for a new connection
+     */
+    public synchronized void clear() {
+        sequences.clear();
+        joinedAt.clear();
+        endToEnd.drain();
+        inServer.drain();
+        received = 0;
+        missing = 0;
+        outOfOrder = 0;
+        repeated = 0;
+        last = null;
+    }
+    
+    public synchronized long getMissingCount() {
+        return missing;
+    }
+    
+    /**
+     * Sequence numbers that arrived after a higher one, filling a gap
+     */
+    public synchronized long getOutOfOrderCount() {
+        return outOfOrder;
+    }
+    
+    public synchronized long getRepeatedCount() {
+        return repeated;
+    }
+    
+    /**
+     * End-to-end latency percentiles in milliseconds
+     */
+    public long getLatencyAtPercentile(double percentile) {
+        return endToEnd.getValueAtPercentile(percentile);
+    }
+    
+    /**
+     * What has been seen so far, as text for the user
+     */
+    public synchronized String report() {
+        if (received == 0) {
+            return "No timed messages received yet.";
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        out.printf(Locale.ROOT, "%d timed messages; %d skipped, %d late and %d repeated sequence numbers%n",
+                   received, missing, outOfOrder, repeated);
+        out.printf(Locale.ROOT, "Last: %d ms end to end, %d ms in the server%n",
+                   last.getReceivedTime() - last.getSentTime(),
+                   last.getServerSentTime() > 0 ? last.getServerSentTime() - last.getServerReceivedTime() : 0);
+        out.println("End to end:");
+        endToEnd.printPercentiles(out, 1, "ms");
+        out.println("In the server:");
+        inServer.printPercentiles(out, 1, "ms");
+        out.flush();
+        return bytes.toString().trim();
+    }
+}
@@ -0,0 +1,89 @@
+package client;
+
+import shared.Constants;
+import shared.FrameCompressor;
+import shared.Message;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A shared file requested from the server. The reply is a FILE_DOWNLOAD header followed by
+ * the file bytes on the same stream, which are copied to disk a chunk at a time. On a compressed
+ * connection the bytes come as a series of compressed frames, one per chunk.
+ */
+public class FileDownload {
+    private final String filename;
+    private final File destination;
+    
+    public FileDownload(String filename, File destination) {
+        this.filename = filename;
+        this.destination = destination;
+    }
+    
+    /**
+     * Reads the bytes following the header. They are always consumed, even if they can't be saved,
+     * so the next message on the stream still lines up. Returns a line describing the outcome,
+     * or null if there is no destination and the bytes were just discarded.
+     */
+    String receive(Message header, DataInputStream input, FrameCompressor compressor) throws IOException {
+        long remaining = header.getFileSize();
+        if (remaining < 0) {
+            return "Download of " + filename + " failed: " + header.getContent();
+        }
+        
+        String failure = null;
+        OutputStream output = null;
+        try {
+            if (destination != null) {
+                output = new FileOutputStream(destination);
+            }
+        } catch (IOException e) {
+            failure = e.getMessage();
+        }
+        
+        byte[] buffer = new byte[Constants.FILE_CHUNK_SIZE];
+        try {
+            while (remaining > 0) {
+                int read;
+                if (compressor != null) {
+                    buffer = compressor.readFrame(input);
+                    read = buffer.length;
+                    if (read == 0 || read > remaining) {
+                        throw new IOException("Malformed download of " + filename);
+                    }
+                } else {
+                    read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("Connection closed during download of " + filename);
+                    }
+                }
+                remaining -= read;
+                
+                if (output != null) {
+                    try {
+                        output.write(buffer, 0, read);
+                    } catch (IOException e) {
+                        failure = e.getMessage();
+                        output.close();
+                        output = null;
+                    }
+                }
+            }
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+        }
+        
+        if (destination == null) {
+            return null;
+        } else if (failure != null) {
+            return "Could not save " + filename + ": " + failure;
+        }
+        return "Downloaded " + filename + " to " + destination.getPath();
+    }
+}
@@ -0,0 +1,78 @@
+package client;
+
+import shared.Constants;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Sends one file to the server in fixed-size chunks on its own thread.
+ * The server says how much of the file it already has, so an upload cut short by a
+ * disconnect carries on from there the next time the same file is sent.
+ */
+public class FileUpload implements Runnable {
+    private final ChatClient client;
+    private final File file;
+    private final String transferId;
+    
+    public FileUpload(ChatClient client, File file) {
+        this.client = client;
+        this.file = file;
+        this.transferId = transferIdFor(file);
+    }
+    
+    @Override
+    public void run() {
+        long fileSize = file.length();
+        try {
+            long offset = client.offerFile(transferId, file.getName(), fileSize);
+            if (offset < 0) {
+                client.uploadFinished(file); // Refused by the server, which has already said why
+                return;
+            }
+            
+            try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+                input.seek(offset);
+                byte[] buffer = new byte[Constants.FILE_CHUNK_SIZE];
+                while (offset < fileSize && client.isConnected()) {
+                    int read = input.read(buffer, 0, (int) Math.min(buffer.length, fileSize - offset));
+                    if (read < 0) {
+                        throw new EOFException(file.getName() + " changed while it was being sent");
+                    }
+                    
+                    // Each chunk is encoded before sendChunk returns, so the buffer can be reused
+                    client.sendChunk(transferId, offset, read == buffer.length ? buffer : Arrays.copyOf(buffer, read));
+                    offset += read;
+                }
+            }
+            
+            if (offset >= fileSize) {
+                client.uploadFinished(file);
+            }
+        } catch (IOException e) {
+            System.err.println("Error sending file " + file.getName() + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Same file, same id: a resend after reconnecting finds the partial upload on the server
+     */
+    static String transferIdFor(File file) {
+        String key = file.getName() + "|" + file.length() + "|" + file.lastModified();
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder id = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                id.append(String.format("%02x", hash[i]));
+            }
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
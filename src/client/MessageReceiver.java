@@ -1,20 +1,26 @@
 package client;
 
+import shared.FrameCodec;
+import shared.FrameCompressor;
 import shared.Message;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 
 /**
  * Handles receiving messages from the server in a separate thread
  */
 public class MessageReceiver implements Runnable {
-    private ObjectInputStream input;
+    private DataInputStream input;
+    private FrameCodec codec;
+    private FrameCompressor compressor; // null if the connection isn't compressed
     private ChatClient client;
     private boolean isRunning;
     
-    public MessageReceiver(ObjectInputStream input, ChatClient client) {
+    public MessageReceiver(DataInputStream input, FrameCodec codec, FrameCompressor compressor, ChatClient client) {
         this.input = input;
+        this.codec = codec;
+        this.compressor = compressor;
         this.client = client;
         this.isRunning = true;
     }
@@ -23,14 +29,23 @@ public class MessageReceiver implements Runnable {
     public void run() {
         while (isRunning) {
             try {
-                Message message = (Message) input.readObject();
+                Message message = codec.readMessage(input, compressor);
                 if (message != null) {
+                    message.setReceivedTime(System.currentTimeMillis());
+                    client.heard();
+                }
+                if (message != null && message.getType() == Message.MessageType.FILE_DOWNLOAD) {
+                    client.receiveDownload(message, input); // Raw file bytes follow this header
+                } else if (message != null && (message.getType() == Message.MessageType.PING || 
+                                               message.getType() == Message.MessageType.PONG)) {
+                    client.answerHeartbeat(message); // Never shown
+                } else if (message != null) {
                     client.handleReceivedMessage(message);
                 }
             } catch (EOFException e) {
                 // Server closed connection
                 break;
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 if (isRunning) {
                     System.err.println("Error receiving message: " + e.getMessage());
                 }
@@ -0,0 +1,85 @@
+package client;
+
+import shared.Message;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The client's own copy of who is online, kept from the server's PRESENCE feed: the full roster
+ * in pages right after login, then one delta per login or logout, or a batch of them per digest
+ * during a login storm, so the list never has to be downloaded again. Deltas can arrive out of
+ * order, so every name remembers the version of the last change applied to it and anything older
+ * is ignored.
+ */
+public class Roster {
+    private final Map<String, Long> versions; // username -> presence version of its last change, including logouts
+    private final TreeSet<String> online;
+    
+    public Roster() {
+        this.versions = new HashMap<>();
+        this.online = new TreeSet<>();
+    }
+    
+    /**
+     * Applies a PRESENCE message: a snapshot page, a delta, or a batch of deltas
+     */
+    public synchronized void apply(Message presence) {
+        long version = presence.getPresenceVersion();
+        if (presence.getPage() > 0) {
+            if (presence.getContent() == null || presence.getContent().isEmpty()) {
+                return;
+            }
+            for (String username : presence.getContent().split("\n")) {
+                update(username, true, version);
+            }
+        } else if (presence.getContent() != null && presence.getContent().length() > 1) {
+            // A batch: "+version username" or "-version username" per line, each with its own version
+            for (String line : presence.getContent().split("\n")) {
+                int space = line.indexOf(' ');
+                update(line.substring(space + 1), line.startsWith(Message.PRESENCE_ONLINE), 
+                       Long.parseLong(line.substring(1, space)));
+            }
+        } else {
+            update(presence.getUsername(), Message.PRESENCE_ONLINE.equals(presence.getContent()), version);
+        }
+    }
+    
+    private void update(String username, boolean isOnline, long version) {
+        Long known = versions.get(username);
+        if (known != null && known >= version) {
+            return; // Already have newer news about this user
+        }
+        versions.put(username, version);
+        if (isOnline) {
+            online.add(username);
+        } else {
+            online.remove(username);
+        }
+    }
+    
+    /**
+     * Online usernames, sorted
+     */
+    public synchronized List<String> getOnlineUsers() {
+        return new ArrayList<>(online);
+    }
+    
+    public synchronized int size() {
+        return online.size();
+    }
+    
+    public synchronized boolean contains(String username) {
+        return online.contains(username);
+    }
+    
+    /**
+     * Forgets everything, for a new connection; versions restart with the server
+     */
+    public synchronized void clear() {
+        versions.clear();
+        online.clear();
+    }
+}
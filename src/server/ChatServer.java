@@ -2,42 +2,126 @@ package server;
 
 import shared.Message;
 import shared.Constants;
+import shared.FrameCodec;
+import shared.TimingWheel;
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Multi-threaded chat server that handles multiple clients
  */
 public class ChatServer {
+    private static final int USERS_PAGE_SIZE = 50;
+    private static final int ROSTER_PAGE_SIZE = 1000;
+    private static final long HEARTBEAT_TICK_MILLIS = 100;
+    private static final int HEARTBEAT_SLOTS = 1024; // one turn of the wheel covers the default idle timeout
+    private static final int FILE_THREADS = 4; // upload disk work in NIO mode, so the event loops never wait on the disk
+    
+    /**
+     * How client connections are serviced: one blocking platform thread per client,
+     * one blocking virtual thread per client (Java 21+), or a small set of non-blocking selector loops.
+     */
+    public enum ServerMode {
+        BLOCKING, VIRTUAL, NIO
+    }
+    
     private ServerSocket serverSocket;
-    private final Map<String, ClientHandler> clients;
-    private final Set<String> usernames;
-    private boolean isRunning;
+    private NioServer nioServer;
+    private ExecutorService clientExecutor;
+    private ExecutorService fileExecutor; // NIO mode only
+    private final PresenceRegistry presence;
+    private final ConcurrentHashMap<String, Room> rooms;
+    private volatile boolean isRunning;
     private final int port;
+    private final ServerMode mode;
+    private final ServerConfig config;
+    private final ContentStore contentStore;
+    private final MessageLog messageLog; // null when history is turned off
+    private final PresenceAnnouncer announcer;
+    private final AtomicInteger rosterClients; // logged-in clients with FEATURE_PRESENCE
+    private final ServerMetrics metrics;
+    private final ClusterNode cluster; // null unless this server is one node of a cluster
+    private final TokenBucket serverMessages; // shared by every client's RateLimiter; null when off
+    private final TokenBucket serverBytes;
+    private final TimingWheel heartbeats; // every connection's idle check and claim timeouts, so their number costs nothing per tick
     
     public ChatServer(int port) {
-        this.port = port;
-        this.clients = new ConcurrentHashMap<>();
-        this.usernames = ConcurrentHashMap.newKeySet();
+        this(port, ServerMode.BLOCKING);
+    }
+    
+    public ChatServer(int port, ServerMode mode) {
+        this(configFor(port, mode));
+    }
+    
+    public ChatServer(ServerConfig config) {
+        this.config = config;
+        this.port = config.getPort();
+        this.mode = config.getMode();
+        this.metrics = new ServerMetrics(this);
+        this.presence = new PresenceRegistry(this::broadcastPresence);
+        this.rooms = new ConcurrentHashMap<>();
+        this.rosterClients = new AtomicInteger();
+        this.serverMessages = RateLimiter.bucket(config.getServerMessageRate());
+        this.serverBytes = RateLimiter.bucket(config.getServerByteRate());
+        this.contentStore = new ContentStore(Paths.get(Constants.FILES_DIRECTORY, "objects"));
+        this.cluster = config.getClusterMembers().isEmpty() ? null 
+            : new ClusterNode(this, presence, config.getClusterMembers(), config.getClusterNode() - 1);
+        // Nodes of a cluster may share a host, and each writes every room's history itself
+        this.messageLog = config.getHistorySize() <= 0 ? null 
+            : cluster == null ? new MessageLog() 
+            : new MessageLog(Paths.get(Constants.HISTORY_DIRECTORY, "node-" + config.getClusterNode()));
+        if (messageLog != null) {
+            messageLog.start();
+        }
+        this.rooms.put(Constants.DEFAULT_ROOM, newRoom(Constants.DEFAULT_ROOM));
+        this.announcer = new PresenceAnnouncer(this, config.getJoinDigestRate(), config.getJoinDigestIntervalMillis());
+        this.announcer.start();
+        this.heartbeats = new TimingWheel("heartbeats", HEARTBEAT_TICK_MILLIS, HEARTBEAT_SLOTS);
+        this.heartbeats.start();
         this.isRunning = false;
     }
     
     public void start() {
+        if (mode == ServerMode.NIO) {
+            startNio();
+            return;
+        }
+        if (mode == ServerMode.VIRTUAL) {
+            clientExecutor = newVirtualThreadExecutor();
+            if (clientExecutor == null) {
+                System.err.println("Virtual thread mode requires Java 21 or newer.");
+                return;
+            }
+        }
+        
         try {
             serverSocket = new ServerSocket(port);
+            startCluster();
             isRunning = true;
-            System.out.println("ChatWave Server started on port " + port);
+            metrics.register(port);
+            System.out.println("ChatWave Server started on port " + port + " (" + mode.name().toLowerCase() + " mode)");
             System.out.println("Waiting for clients to connect...");
             
             while (isRunning) {
                 try {
                     Socket clientSocket = serverSocket.accept();
+                    clientSocket.setKeepAlive(true); // The only check on clients too old for heartbeats
                     System.out.println("New client connected: " + clientSocket.getInetAddress());
                     
                     ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                    new Thread(clientHandler).start();
+                    execute(clientHandler);
                 } catch (IOException e) {
                     if (isRunning) {
                         System.err.println("Error accepting client connection: " + e.getMessage());
@@ -49,19 +133,152 @@ public class ChatServer {
         }
     }
     
+    /**
+     * Runs a per-client task on a new platform thread, or on a virtual thread in VIRTUAL mode.
+     */
+    void execute(Runnable task) {
+        if (clientExecutor != null) {
+            clientExecutor.execute(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+    
+    /**
+     * Runs a client's upload disk work (writing, hashing, moving into the content store) on the file
+     * threads, away from the event loops. Runs it right here when there are none, as in a server
+     * that was never started.
+     */
+    void executeFileTask(Runnable task) {
+        if (fileExecutor != null) {
+            fileExecutor.execute(task);
+        } else {
+            task.run();
+        }
+    }
+    
+    private static ServerConfig configFor(int port, ServerMode mode) {
+        ServerConfig config = new ServerConfig();
+        config.setPort(port);
+        config.setMode(mode);
+        return config;
+    }
+    
+    ContentStore getContentStore() {
+        return contentStore;
+    }
+    
+    OutboundQueue createOutboundQueue() {
+        return new OutboundQueue(config.getQueueCapacity(), config.getOverflowPolicy(), config.getBlockTimeoutMillis(), 
+                                 config.getFlushBytes(), config.getFlushDelayMicros());
+    }
+    
+    /**
+     * Admission control for a new client: buckets of its own plus the server-wide ones
+     */
+    RateLimiter createRateLimiter() {
+        return new RateLimiter(RateLimiter.bucket(config.getUserMessageRate()), RateLimiter.bucket(config.getUserByteRate()), 
+                               serverMessages, serverBytes);
+    }
+    
+    /**
+     * Runs a connection's idle check or a cluster claim's timeout after the given delay, on the wheel shared
+     * by every connection. The task must not block.
+     */
+    TimingWheel.Timeout schedule(Runnable task, long delayMillis) {
+        return heartbeats.schedule(task, delayMillis);
+    }
+    
+    /**
+     * Quiet time after which a client is pinged, or 0 if heartbeats are off
+     */
+    long getHeartbeatMillis() {
+        return TimeUnit.SECONDS.toMillis(config.getHeartbeatSeconds());
+    }
+    
+    long getIdleTimeoutMillis() {
+        return TimeUnit.SECONDS.toMillis(config.getIdleTimeoutSeconds());
+    }
+    
+    /**
+     * The limits a throttled user is told about
+     */
+    String describeUserLimits() {
+        List<String> limits = new ArrayList<>();
+        if (config.getUserMessageRate() > 0) {
+            limits.add(config.getUserMessageRate() + " messages");
+        }
+        if (config.getUserByteRate() > 0) {
+            limits.add(config.getUserByteRate() >= 1024 ? config.getUserByteRate() / 1024 + " KB" : config.getUserByteRate() + " bytes");
+        }
+        return String.join(" and ", limits) + " per second";
+    }
+    
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Looked up reflectively so the project still compiles and runs on older JDKs
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+    
+    private void startNio() {
+        fileExecutor = Executors.newFixedThreadPool(FILE_THREADS, task -> {
+            Thread thread = new Thread(task, "file-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            nioServer = new NioServer(this, port, Runtime.getRuntime().availableProcessors());
+            startCluster();
+            isRunning = true;
+            metrics.register(port);
+            System.out.println("ChatWave Server started on port " + port + " (NIO mode)");
+            System.out.println("Waiting for clients to connect...");
+            
+            nioServer.start();
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+        }
+    }
+    
+    private void startCluster() throws IOException {
+        if (cluster != null) {
+            cluster.start();
+        }
+    }
+    
     public void stop() {
         isRunning = false;
+        if (cluster != null) {
+            cluster.stop(); // Peers drop our users when the links close, without waiting for each logout
+        }
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (nioServer != null) {
+                nioServer.stop();
+            }
+            if (clientExecutor != null) {
+                clientExecutor.shutdown();
+            }
+            if (fileExecutor != null) {
+                fileExecutor.shutdown();
+            }
             
             // Disconnect all clients
-            for (ClientHandler client : clients.values()) {
-                client.disconnect();
+            for (ClientHandler client : presence.snapshot()) {
+                client.disconnect(ServerMetrics.DisconnectReason.SERVER_STOPPED);
+            }
+            announcer.stop();
+            heartbeats.stop();
+            metrics.unregister();
+            if (messageLog != null) {
+                messageLog.close();
             }
-            clients.clear();
-            usernames.clear();
             
             System.out.println("Server stopped.");
         } catch (IOException e) {
@@ -69,87 +286,596 @@ public class ChatServer {
         }
     }
     
-    public synchronized boolean addClient(String username, ClientHandler clientHandler) {
-        if (usernames.contains(username)) {
+    /**
+     * Reserves a username across the cluster before a login under it. Completes at once without a cluster
+     * or when this node owns the name; otherwise when the owner node answers, which takes a round trip.
+     */
+    CompletableFuture<Boolean> claimUsername(String username) {
+        return cluster != null ? cluster.claim(username) : CompletableFuture.completedFuture(true);
+    }
+    
+    /**
+     * Gives back a claimed username that was never logged in, because its client left while waiting
+     */
+    void releaseUsername(String username) {
+        if (cluster != null) {
+            cluster.loggedOut(username);
+        }
+    }
+    
+    /**
+     * Logs a client in under the given username, claimed first with claimUsername. Returns false if the name is taken.
+     * No server-wide lock is held, so concurrent logins and logouts proceed in parallel.
+     */
+    public boolean addClient(String username, ClientHandler clientHandler) {
+        if (!presence.register(username, clientHandler)) {
             return false; // Username already taken
         }
+        if (clientHandler.supports(FrameCodec.FEATURE_PRESENCE)) {
+            rosterClients.incrementAndGet();
+        }
+        if (cluster != null) {
+            cluster.loggedIn(username);
+        }
         
-        clients.put(username, clientHandler);
-        usernames.add(username);
-        
-        // Notify all clients about new user
-        Message joinMessage = new Message(username + " joined the chat", 
-                                        Constants.SERVER_NAME, 
-                                        Message.MessageType.USER_JOIN);
-        broadcastMessage(joinMessage, null);
-        
-        // Send welcome message to new user
+        // Send welcome message to new user, ahead of the room's history
         Message welcomeMessage = new Message(Constants.WELCOME_MESSAGE, 
                                            Constants.SERVER_NAME, 
                                            Message.MessageType.SERVER_MESSAGE);
         clientHandler.sendMessage(welcomeMessage);
+        subscribe(clientHandler, Constants.DEFAULT_ROOM); // Announced by the server-wide join below
+        
+        // Notify all clients about new user, or count them into a digest during a login storm
+        announcer.joined(username, presence.size());
         
-        // Send list of current users
-        sendUserList(clientHandler);
+        // Send the first page of current users, and the whole roster to clients that keep one
+        sendUserList(clientHandler, "", 1);
+        if (clientHandler.supports(FrameCodec.FEATURE_PRESENCE)) {
+            sendRoster(clientHandler);
+        }
         
-        System.out.println("User '" + username + "' joined. Total users: " + clients.size());
+        System.out.println("User '" + username + "' joined. Total users: " + presence.size());
         return true;
     }
     
-    public synchronized void removeClient(String username) {
-        if (clients.containsKey(username)) {
-            clients.remove(username);
-            usernames.remove(username);
-            
-            // Notify all clients about user leaving
-            Message leaveMessage = new Message(username + " left the chat", 
-                                             Constants.SERVER_NAME, 
-                                             Message.MessageType.USER_LEAVE);
-            broadcastMessage(leaveMessage, null);
-            
-            System.out.println("User '" + username + "' left. Total users: " + clients.size());
+    /**
+     * Logs a client out. Does nothing for a client that never got its username, so a refused
+     * login can't remove the user who holds the name.
+     */
+    public void removeClient(ClientHandler clientHandler) {
+        String username = clientHandler.getUsername();
+        if (!presence.unregister(username, clientHandler)) {
+            return;
+        }
+        if (clientHandler.supports(FrameCodec.FEATURE_PRESENCE)) {
+            rosterClients.decrementAndGet();
         }
+        if (cluster != null) {
+            cluster.loggedOut(username);
+        }
+        for (String room : clientHandler.getRooms()) {
+            unsubscribe(clientHandler, room);
+        }
+        
+        // Notify all clients about user leaving
+        announcer.left(username, presence.size());
+        
+        System.out.println("User '" + username + "' left. Total users: " + presence.size());
     }
     
+    /**
+     * Sends a message to the members of its room, or to every client if it has no room.
+     * In a cluster it is also relayed to the other nodes for their clients.
+     */
     public void broadcastMessage(Message message, String excludeUser) {
-        for (Map.Entry<String, ClientHandler> entry : clients.entrySet()) {
-            if (excludeUser == null || !entry.getKey().equals(excludeUser)) {
-                entry.getValue().sendMessage(message);
+        EncodedMessage encoded = deliver(message, excludeUser, false);
+        if (cluster != null) {
+            cluster.relay(encoded != null ? encoded : new EncodedMessage(message));
+        }
+    }
+    
+    /**
+     * Delivers a broadcast relayed by another node of the cluster to this node's clients
+     */
+    void deliverRelayed(Message message) {
+        deliver(message, null, true);
+    }
+    
+    /**
+     * Sends a message to the local clients it is for. Returns what was sent, or null if its room has no members here.
+     */
+    private EncodedMessage deliver(Message message, String excludeUser, boolean relayed) {
+        Room room = null;
+        if (message.getRoom() != null) {
+            room = rooms.get(message.getRoom());
+            if (room == null) {
+                if (relayed && messageLog != null && isHistory(message)) {
+                    // No members here, but whoever joins later still gets it in the room's history
+                    message.setSequence(0);
+                    messageLog.append(new EncodedMessage(message));
+                }
+                return null; // Everyone left
+            }
+        }
+        
+        long start = System.nanoTime();
+        EncodedMessage encoded = stamp(message);
+        int recipients;
+        if (room != null) {
+            recipients = publish(encoded, room, excludeUser);
+        } else {
+            List<ClientHandler> everyone = presence.snapshot();
+            fanOut(encoded, everyone, excludeUser);
+            recipients = everyone.size();
+        }
+        metrics.broadcast(recipients, System.nanoTime() - start);
+        return encoded;
+    }
+    
+    /**
+     * Sends a message to a room's members in the room's order. Under the room's lock, a text or file
+     * message is numbered and put in the room's ring and the message log, and only then is the member
+     * list read and the message queued for each member. So every member's queue holds the room's messages
+     * in sequence order, and a user joining meanwhile either is in that list or finds the message in the
+     * history subscribe sends it under the same lock. Queueing under the lock never waits: a member whose
+     * queue is full and whose overflow policy would wait or drop it is sent to after the lock is released.
+     * Returns the number of members.
+     */
+    private int publish(EncodedMessage encoded, Room room, String excludeUser) {
+        Message message = encoded.getMessage();
+        List<ClientHandler> members;
+        List<ClientHandler> lagging = null;
+        Lock lock = room.getSequenceLock();
+        lock.lock();
+        try {
+            if (isHistory(message)) {
+                message.setSequence(room.nextSequence());
+                if (messageLog != null) {
+                    room.getRecentMessages().add(encoded);
+                    messageLog.append(encoded); // Only queued; written and synced in batches by the log's own thread
+                }
+            }
+            members = room.getMembers();
+            for (ClientHandler client : members) {
+                if ((excludeUser == null || !excludeUser.equals(client.getUsername())) && !client.trySendMessage(encoded)) {
+                    if (lagging == null) {
+                        lagging = new ArrayList<>();
+                    }
+                    lagging.add(client);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (lagging != null) {
+            for (ClientHandler client : lagging) {
+                client.sendMessage(encoded); // Waits for room or drops the client, as the overflow policy says
+            }
+        }
+        return members.size();
+    }
+    
+    /**
+     * Wraps a message for sending. It is encoded once on first write and shared by every recipient.
+     */
+    private static EncodedMessage stamp(Message message) {
+        message.setServerSentTime(System.currentTimeMillis());
+        return new EncodedMessage(message);
+    }
+    
+    private static void fanOut(EncodedMessage encoded, List<ClientHandler> recipients, String excludeUser) {
+        for (ClientHandler client : recipients) {
+            if (excludeUser == null || !excludeUser.equals(client.getUsername())) {
+                client.sendMessage(encoded);
             }
         }
     }
     
-    public void sendUserList(ClientHandler clientHandler) {
-        StringBuilder userList = new StringBuilder("Online users: ");
-        for (String username : usernames) {
-            userList.append(username).append(", ");
+    private static boolean isHistory(Message message) {
+        return message.getRoom() != null && 
+               (message.getType() == Message.MessageType.TEXT || message.getType() == Message.MessageType.FILE);
+    }
+    
+    /**
+     * Queues a room's recent messages for a client joining it, from memory. The frames already encoded
+     * for the original broadcast are sent again as they are. Runs under the room's lock, so nothing
+     * waits here: once a message doesn't fit the client's queue, it and the rest are left in unsent.
+     */
+    private static void queueHistory(ClientHandler clientHandler, Room room, List<EncodedMessage> unsent) {
+        if (room.getRecentMessages() == null) {
+            return;
+        }
+        List<EncodedMessage> history = room.getRecentMessages().snapshot();
+        if (history.isEmpty()) {
+            return;
         }
-        if (userList.length() > 14) {
-            userList.setLength(userList.length() - 2); // Remove last comma and space
+        Message header = new Message("Recent messages in #" + room.getName() + ":", 
+                                   Constants.SERVER_NAME, 
+                                   Message.MessageType.SERVER_MESSAGE);
+        unsent.add(new EncodedMessage(header));
+        unsent.addAll(history);
+        int queued = 0;
+        while (queued < unsent.size() && clientHandler.trySendMessage(unsent.get(queued))) {
+            queued++;
+        }
+        unsent.subList(0, queued).clear();
+    }
+    
+    /**
+     * A new room, with its recent messages seeded from the message log
+     */
+    private Room newRoom(String name) {
+        if (messageLog == null) {
+            return new Room(name, null, 0);
+        }
+        RecentMessages recentMessages = new RecentMessages(config.getHistorySize());
+        long lastSequence = 0;
+        for (Message message : messageLog.recent(name, config.getHistorySize())) {
+            recentMessages.add(new EncodedMessage(message));
+            lastSequence = Math.max(lastSequence, message.getSequence());
+        }
+        // Carries on from the history so clients that saw it before a restart don't see the numbers go back
+        return new Room(name, recentMessages, lastSequence);
+    }
+    
+    /**
+     * Delivers a private message to its recipient, found by a direct lookup, and echoes it to the sender.
+     * A recipient on another node of the cluster gets it through that node.
+     * Returns false if the recipient is not online.
+     */
+    public boolean sendPrivateMessage(Message message, ClientHandler sender) {
+        ClientHandler recipient = presence.find(message.getRecipient());
+        if (recipient == null) {
+            if (cluster == null || !cluster.forwardPrivate(message)) {
+                return false;
+            }
+            message.setServerSentTime(System.currentTimeMillis());
+            sender.sendMessage(new EncodedMessage(message));
+            return true;
         }
         
-        Message userListMessage = new Message(userList.toString(), 
-                                            Constants.SERVER_NAME, 
-                                            Message.MessageType.SERVER_MESSAGE);
-        clientHandler.sendMessage(userListMessage);
+        message.setServerSentTime(System.currentTimeMillis());
+        EncodedMessage encoded = new EncodedMessage(message);
+        recipient.sendMessage(encoded);
+        if (recipient != sender) {
+            sender.sendMessage(encoded);
+        }
+        return true;
     }
     
-    public Set<String> getUsernames() {
-        return new HashSet<>(usernames);
+    /**
+     * Delivers a private message forwarded by another node of the cluster, if its recipient is still here
+     */
+    void deliverPrivate(Message message) {
+        ClientHandler recipient = presence.find(message.getRecipient());
+        if (recipient != null) {
+            message.setServerSentTime(System.currentTimeMillis());
+            recipient.sendMessage(new EncodedMessage(message));
+        }
     }
     
-    public static void main(String[] args) {
-        int port = Constants.DEFAULT_PORT;
+    /**
+     * Subscribes a client to a room, creating the room if needed, sends it the room's history and tells its members.
+     * Returns false if the client was already a member.
+     */
+    public boolean joinRoom(ClientHandler clientHandler, String name) {
+        if (!subscribe(clientHandler, name)) {
+            return false;
+        }
+        
+        Message joinMessage = new Message(clientHandler.getUsername() + " joined #" + name, 
+                                        Constants.SERVER_NAME, 
+                                        Message.MessageType.USER_JOIN);
+        joinMessage.setRoom(name);
+        broadcastMessage(joinMessage, null);
+        return true;
+    }
+    
+    /**
+     * Unsubscribes a client from a room, removing the room once it is empty (except the default room)
+     */
+    public void leaveRoom(ClientHandler clientHandler, String name) {
+        if (!unsubscribe(clientHandler, name)) {
+            return;
+        }
         
-        if (args.length > 0) {
+        Message leaveMessage = new Message(clientHandler.getUsername() + " left #" + name, 
+                                         Constants.SERVER_NAME, 
+                                         Message.MessageType.USER_LEAVE);
+        leaveMessage.setRoom(name);
+        broadcastMessage(leaveMessage, null);
+    }
+    
+    /**
+     * Adds the client to the room's subscriber set and sends it the room's history.
+     * Returns false if it was already a member.
+     */
+    private boolean subscribe(ClientHandler clientHandler, String name) {
+        if (!clientHandler.getRooms().add(name)) {
+            return false;
+        }
+        // Read from the log up front, not while compute() holds the map bin
+        Room created = rooms.containsKey(name) ? null : newRoom(name);
+        List<EncodedMessage> unsent = new ArrayList<>();
+        // compute() runs atomically per room, so a join can't race with the last member removing the room
+        rooms.compute(name, (key, room) -> {
+            Room joined = room != null ? room : created != null ? created : newRoom(key);
+            // Under the room's lock, each message is either in the history or sent to the new member live after it
+            Lock lock = joined.getSequenceLock();
+            lock.lock();
             try {
-                port = Integer.parseInt(args[0]);
-            } catch (NumberFormatException e) {
-                System.err.println("Invalid port number. Using default port: " + Constants.DEFAULT_PORT);
+                joined.add(clientHandler);
+                queueHistory(clientHandler, joined, unsent);
+            } finally {
+                lock.unlock();
+            }
+            return joined;
+        });
+        for (EncodedMessage message : unsent) {
+            clientHandler.sendMessage(message); // A history longer than the queue; the overflow policy decides
+        }
+        if (!clientHandler.isConnected()) {
+            unsubscribe(clientHandler, name); // Disconnected meanwhile, don't leave a ghost member behind
+            return false;
+        }
+        return true;
+    }
+    
+    private boolean unsubscribe(ClientHandler clientHandler, String name) {
+        if (!clientHandler.getRooms().remove(name)) {
+            return false;
+        }
+        rooms.computeIfPresent(name, (key, room) -> {
+            room.remove(clientHandler);
+            return room.isEmpty() && !key.equals(Constants.DEFAULT_ROOM) ? null : room;
+        });
+        return true;
+    }
+    
+    /**
+     * Room names with their member counts, for /join without an argument
+     */
+    public String describeRooms() {
+        StringBuilder list = new StringBuilder();
+        for (Room room : rooms.values()) {
+            if (list.length() > 0) {
+                list.append(", ");
             }
+            list.append('#').append(room.getName()).append(" (").append(room.size()).append(')');
         }
+        return list.length() > 0 ? list.toString() : "none";
+    }
+    
+    /**
+     * Sends one page of the online users whose names start with prefix (case-insensitive), sorted by name
+     */
+    public void sendUserList(ClientHandler clientHandler, String prefix, int page) {
+        PresenceRegistry.Snapshot snapshot = presence.current();
+        String filter = prefix.toLowerCase(Locale.ROOT);
+        List<String> names = new ArrayList<>();
+        for (ClientHandler client : snapshot.getClients()) {
+            if (client.getUsername().toLowerCase(Locale.ROOT).startsWith(filter)) {
+                names.add(client.getUsername());
+            }
+        }
+        for (String username : snapshot.getRemoteUsernames()) {
+            if (username.toLowerCase(Locale.ROOT).startsWith(filter)) {
+                names.add(username);
+            }
+        }
+        Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
         
-        ChatServer server = new ChatServer(port);
+        int pageCount = Math.max(1, (names.size() + USERS_PAGE_SIZE - 1) / USERS_PAGE_SIZE);
+        int shown = Math.min(Math.max(page, 1), pageCount);
+        int from = (shown - 1) * USERS_PAGE_SIZE;
+        List<String> pageNames = names.subList(from, Math.min(names.size(), from + USERS_PAGE_SIZE));
+        
+        Message userList = new Message(String.join("\n", pageNames), 
+                                     Constants.SERVER_NAME, 
+                                     Message.MessageType.USER_LIST);
+        userList.setPage(shown);
+        userList.setPageCount(pageCount);
+        userList.setUserCount(names.size());
+        userList.setPresenceVersion(snapshot.getVersion());
+        clientHandler.sendMessage(userList);
+    }
+    
+    /**
+     * Sends the whole roster to a client that keeps one, in PRESENCE pages tagged with the
+     * presence version. From then on the client only gets deltas.
+     */
+    private void sendRoster(ClientHandler clientHandler) {
+        PresenceRegistry.Snapshot snapshot = presence.current();
+        List<String> usernames = new ArrayList<>(snapshot.getClients().size() + snapshot.getRemoteUsernames().size());
+        for (ClientHandler client : snapshot.getClients()) {
+            usernames.add(client.getUsername());
+        }
+        usernames.addAll(snapshot.getRemoteUsernames());
+        int pageCount = Math.max(1, (usernames.size() + ROSTER_PAGE_SIZE - 1) / ROSTER_PAGE_SIZE);
+        for (int page = 0; page < pageCount; page++) {
+            StringBuilder names = new StringBuilder();
+            for (int i = page * ROSTER_PAGE_SIZE; i < Math.min(usernames.size(), (page + 1) * ROSTER_PAGE_SIZE); i++) {
+                if (names.length() > 0) {
+                    names.append('\n');
+                }
+                names.append(usernames.get(i));
+            }
+            
+            Message roster = new Message(names.toString(), Constants.SERVER_NAME, Message.MessageType.PRESENCE);
+            roster.setPage(page + 1);
+            roster.setPageCount(pageCount);
+            roster.setPresenceVersion(snapshot.getVersion());
+            clientHandler.sendMessage(roster);
+        }
+    }
+    
+    /**
+     * Tells roster-keeping clients that someone logged in or out. Called by the registry
+     * on the thread that made the change.
+     */
+    private void broadcastPresence(String username, boolean online, long version) {
+        if (announcer.deferPresence(username, online, version, rosterClients.get())) {
+            return; // Goes out in the next digest's PRESENCE batch
+        }
+        Message delta = new Message(online ? Message.PRESENCE_ONLINE : Message.PRESENCE_OFFLINE, 
+                                  username, 
+                                  Message.MessageType.PRESENCE);
+        delta.setPresenceVersion(version);
+        EncodedMessage encoded = new EncodedMessage(delta);
+        for (ClientHandler client : presence.snapshot()) {
+            if (client.supports(FrameCodec.FEATURE_PRESENCE)) {
+                client.sendMessage(encoded);
+            }
+        }
+    }
+    
+    /**
+     * Sends a PRESENCE batch of held-back deltas to roster-keeping clients. Returns how many it was queued for.
+     */
+    int sendPresenceBatch(String deltas, long version) {
+        Message batch = new Message(deltas, Constants.SERVER_NAME, Message.MessageType.PRESENCE);
+        batch.setPresenceVersion(version);
+        EncodedMessage encoded = new EncodedMessage(batch);
+        int sent = 0;
+        for (ClientHandler client : presence.snapshot()) {
+            if (client.supports(FrameCodec.FEATURE_PRESENCE)) {
+                client.sendMessage(encoded);
+                sent++;
+            }
+        }
+        return sent;
+    }
+    
+    /**
+     * Broadcasts a server-wide announcement like broadcastMessage. Returns how many local clients it was queued for.
+     */
+    int announce(Message message) {
+        List<ClientHandler> recipients = presence.snapshot();
+        long start = System.nanoTime();
+        EncodedMessage encoded = stamp(message);
+        fanOut(encoded, recipients, null);
+        metrics.broadcast(recipients.size(), System.nanoTime() - start);
+        if (cluster != null) {
+            cluster.relay(encoded);
+        }
+        return recipients.size();
+    }
+    
+    public Set<String> getUsernames() {
+        return presence.getUsernames();
+    }
+    
+    int getOnlineCount() {
+        return presence.size();
+    }
+    
+    /**
+     * The cluster this server is a node of, or null
+     */
+    ClusterNode getCluster() {
+        return cluster;
+    }
+    
+    /**
+     * Features to accept from a client's handshake offer
+     */
+    int acceptFeatures(int offered) {
+        int accepted = FrameCodec.acceptFeatures(offered);
+        if (!config.isCompression()) {
+            accepted &= ~FrameCodec.FEATURE_COMPRESSION;
+        }
+        if (config.getHeartbeatSeconds() == 0) {
+            accepted &= ~FrameCodec.FEATURE_HEARTBEAT;
+        }
+        return accepted;
+    }
+    
+    /**
+     * Whether the user was named in -admins, and so may unlock admin commands with the admin token
+     */
+    boolean isAdmin(String username) {
+        return username != null && config.getAdmins().contains(username);
+    }
+    
+    /**
+     * Whether the user may use admin commands such as /stats: named in -admins and giving the admin token.
+     * The token is compared in constant time, so response timing doesn't give it away.
+     */
+    boolean verifyAdmin(String username, String token) {
+        String expected = config.getAdminToken();
+        return isAdmin(username) && expected != null && token != null && 
+               MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Join and leave broadcasts avoided by sending digests instead, after subtracting the digests themselves
+     */
+    public long getCoalescedPresenceSavings() {
+        return announcer.getSavedMessageCount();
+    }
+    
+    /**
+     * Messages currently waiting in all outbound queues
+     */
+    public long getQueuedMessageCount() {
+        long total = 0;
+        for (ClientHandler client : presence.snapshot()) {
+            total += client.getOutboundQueue().size();
+        }
+        return total;
+    }
+    
+    /**
+     * Deepest any connected client's outbound queue has been
+     */
+    public int getMaxQueueHighWaterMark() {
+        int max = 0;
+        for (ClientHandler client : presence.snapshot()) {
+            max = Math.max(max, client.getOutboundQueue().getHighWaterMark());
+        }
+        return max;
+    }
+    
+    /**
+     * Messages dropped so far by the overflow policy, across connected clients
+     */
+    public long getDroppedMessageCount() {
+        long total = 0;
+        for (ClientHandler client : presence.snapshot()) {
+            total += client.getOutboundQueue().getDroppedCount();
+        }
+        return total;
+    }
+    
+    /**
+     * Socket writes made for connected clients so far; compare with getEnqueuedMessageCount()
+     * to see how many messages each write carries
+     */
+    public long getSocketWriteCount() {
+        long total = 0;
+        for (ClientHandler client : presence.snapshot()) {
+            total += client.getOutboundQueue().getWriteCount();
+        }
+        return total;
+    }
+    
+    /**
+     * Messages queued for connected clients so far
+     */
+    public long getEnqueuedMessageCount() {
+        long total = 0;
+        for (ClientHandler client : presence.snapshot()) {
+            total += client.getOutboundQueue().getEnqueuedCount();
+        }
+        return total;
+    }
+    
+    public static void main(String[] args) {
+        ChatServer server = new ChatServer(ServerConfig.fromArgs(args));
         
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
@@ -2,99 +2,421 @@ package server;
 
 import shared.Message;
 import shared.Constants;
+import shared.FrameCodec;
+import shared.TimingWheel;
 import java.io.*;
 import java.net.Socket;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Handles individual client connections in separate threads
+ * Handles an individual client connection. In blocking mode it runs on its own thread and
+ * reads from the socket; in NIO mode the event loop feeds it messages through handleIncoming.
  */
 public class ClientHandler implements Runnable {
+    private static final long FILE_WEIGHT_BYTES = 1024 * 1024; // a shared file counts as one more message per MB
+    private static final long THROTTLE_NOTICE_MILLIS = 1000;
+    private static final int FLOOD_LIMIT = 200; // refused without a quiet second between before the client is disconnected
+    
     private Socket clientSocket;
     private ChatServer server;
-    private ObjectInputStream input;
-    private ObjectOutputStream output;
+    private ClientTransport transport;
+    private final OutboundQueue outbound;
+    private volatile FileUploads uploads; // created on the first upload
+    private final Set<String> rooms;
+    private volatile String activeRoom; // where plain text messages go
     private String username;
-    private boolean isConnected;
+    private final AtomicBoolean connected; // cleared once, by whichever disconnect gets there first
+    private volatile boolean loggingIn; // waiting on the cluster for the username; the transport stops reading meanwhile
+    private volatile boolean writingFile; // an upload's disk work is running on the file threads; likewise
+    private boolean isAdmin; // unlocked with /admin and the server's admin token
+    private final RateLimiter rateLimiter;
+    private long lastThrottleNotice; // These three are only touched by the thread reading this client's messages
+    private long lastRefused;
+    private int refusedInFlood;
+    private volatile long lastHeard; // System.nanoTime() of the last message from the client
+    private volatile TimingWheel.Timeout idleCheck;
+    private volatile ServerMetrics.DisconnectReason closedFor; // why the server closed the socket under run()'s read
     
     public ClientHandler(Socket clientSocket, ChatServer server) {
         this.clientSocket = clientSocket;
         this.server = server;
-        this.isConnected = true;
+        this.outbound = server.createOutboundQueue();
+        this.rooms = ConcurrentHashMap.newKeySet();
+        this.activeRoom = Constants.DEFAULT_ROOM;
+        this.connected = new AtomicBoolean(true);
+        this.rateLimiter = server.createRateLimiter();
+        server.getMetrics().connectionOpened();
+        watchIdle();
+    }
+    
+    ClientHandler(ClientTransport transport, ChatServer server) {
+        this.transport = transport;
+        this.server = server;
+        this.outbound = server.createOutboundQueue();
+        this.rooms = ConcurrentHashMap.newKeySet();
+        this.activeRoom = Constants.DEFAULT_ROOM;
+        this.connected = new AtomicBoolean(true);
+        this.rateLimiter = server.createRateLimiter();
+        server.getMetrics().connectionOpened();
+        transport.startWriter(outbound);
+        watchIdle();
     }
     
     @Override
     public void run() {
+        ServerMetrics.DisconnectReason reason = ServerMetrics.DisconnectReason.CLIENT_CLOSED;
         try {
-            // Initialize streams
-            output = new ObjectOutputStream(clientSocket.getOutputStream());
-            input = new ObjectInputStream(clientSocket.getInputStream());
-            
-            // Get username from client
-            Message usernameMessage = (Message) input.readObject();
-            username = usernameMessage.getContent();
+            // Initialize streams and start the writer
+            StreamTransport streamTransport = StreamTransport.open(clientSocket, this, server::execute);
+            transport = streamTransport;
+            transport.startWriter(outbound);
             
-            // Try to add client to server
-            if (!server.addClient(username, this)) {
-                Message errorMessage = new Message("Username '" + username + "' is already taken. Please try again.", 
-                                                 Constants.SERVER_NAME, 
-                                                 Message.MessageType.SERVER_MESSAGE);
-                sendMessage(errorMessage);
-                disconnect();
+            // Get username from client and try to add client to server
+            String requested = requestedUsername(streamTransport.read());
+            if (requested == null || !login(requested, server.claimUsername(requested).join())) {
+                reason = ServerMetrics.DisconnectReason.LOGIN_REFUSED;
                 return;
             }
             
             // Handle client messages
-            while (isConnected) {
+            while (connected.get()) {
                 try {
-                    Message message = (Message) input.readObject();
+                    Message message = streamTransport.read();
                     handleMessage(message);
                 } catch (EOFException | ClassNotFoundException e) {
                     break; // Client disconnected
                 } catch (IOException e) {
-                    if (isConnected) {
+                    if (connected.get() && closedFor == null) {
                         System.err.println("Error reading message from " + username + ": " + e.getMessage());
                     }
+                    reason = ServerMetrics.DisconnectReason.READ_ERROR;
                     break;
                 }
             }
         } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error handling client " + username + ": " + e.getMessage());
+            if (connected.get() && closedFor == null) {
+                System.err.println("Error handling client " + username + ": " + e.getMessage());
+            }
+            reason = ServerMetrics.DisconnectReason.READ_ERROR;
         } finally {
-            disconnect();
+            disconnect(closedFor != null ? closedFor : reason);
+        }
+    }
+    
+    /**
+     * Entry point for transports that do their own reading (NIO event loop).
+     * The first message is the username handshake, the rest are chat messages.
+     * If another cluster node has to grant the username, the login finishes later on the transport's
+     * executor and isReadingPaused tells the transport to read nothing more until then.
+     */
+    void handleIncoming(Message message) {
+        if (username != null) {
+            handleMessage(message);
+            return;
+        }
+        String requested = requestedUsername(message);
+        if (requested == null) {
+            disconnect(ServerMetrics.DisconnectReason.LOGIN_REFUSED);
+            return;
+        }
+        CompletableFuture<Boolean> claim = server.claimUsername(requested);
+        if (claim.isDone()) {
+            finishLogin(requested, claim.join());
+            return;
+        }
+        loggingIn = true;
+        claim.thenAccept(granted -> transport.execute(() -> {
+            loggingIn = false;
+            finishLogin(requested, granted);
+        }));
+    }
+    
+    /**
+     * Whether the transport should read nothing more for now, because the last message is still being handled
+     */
+    boolean isReadingPaused() {
+        return loggingIn || writingFile;
+    }
+    
+    private void finishLogin(String requested, boolean claimed) {
+        if (!login(requested, claimed)) {
+            disconnect(ServerMetrics.DisconnectReason.LOGIN_REFUSED);
+        }
+    }
+    
+    /**
+     * The username the handshake asks for, or null after telling the client it needs one
+     */
+    private String requestedUsername(Message usernameMessage) {
+        server.getMetrics().messageIn(usernameMessage);
+        String requested = usernameMessage.getContent();
+        if (requested == null || requested.trim().isEmpty()) {
+            sendServerMessage("Please choose a username.");
+            return null;
         }
+        return requested;
+    }
+    
+    /**
+     * Logs in under a username the cluster has granted (claimed) or refused
+     */
+    private boolean login(String requested, boolean claimed) {
+        if (!connected.get()) {
+            if (claimed) {
+                server.releaseUsername(requested); // Left while the claim was pending
+            }
+            return false;
+        }
+        username = requested;
+        lastHeard = System.nanoTime(); // After username, so the idle check sees both
+        
+        if (!claimed || !server.addClient(username, this)) {
+            Message errorMessage = new Message("Username '" + username + "' is already taken. Please try again.", 
+                                             Constants.SERVER_NAME, 
+                                             Message.MessageType.SERVER_MESSAGE);
+            sendMessage(errorMessage);
+            username = null; // Don't remove the user who owns this name on disconnect
+            return false;
+        }
+        return true;
     }
     
     private void handleMessage(Message message) {
+        if (!connected.get()) {
+            return; // Read before the client was dropped; it gets no say after that
+        }
+        lastHeard = System.nanoTime();
+        message.setServerReceivedTime(System.currentTimeMillis());
+        server.getMetrics().messageIn(message);
+        if (message.getType() == Message.MessageType.PING) {
+            sendMessage(new Message("", Constants.SERVER_NAME, Message.MessageType.PONG));
+            return;
+        } else if (message.getType() == Message.MessageType.PONG) {
+            return; // Hearing it was the point
+        }
         String content = message.getContent();
+        if (isThrottled(message)) {
+            return;
+        }
         
-        if (content.startsWith("/")) {
-            handleCommand(content);
+        if (message.getType() == Message.MessageType.FILE_OFFER) {
+            handleOnFileThread(() -> handleFileOffer(message));
+        } else if (message.getType() == Message.MessageType.FILE_CHUNK) {
+            handleOnFileThread(() -> handleFileChunk(message));
+        } else if (message.getType() == Message.MessageType.FILE_DOWNLOAD) {
+            handleFileDownload(message);
+        } else if (content == null) {
+            sendServerMessage("Ignored a message with no text.");
+        } else if (message.getType() == Message.MessageType.PRIVATE) {
+            sendPrivateMessage(message.getRecipient(), content, message);
+        } else if (content.startsWith("/")) {
+            handleCommand(content, message);
         } else if (message.getType() == Message.MessageType.FILE) {
-            handleFileMessage(message);
+            handleOnFileThread(() -> handleFileMessage(message));
         } else {
-            // Regular text message - broadcast to all clients
+            // Regular text message - broadcast to the room's members
+            String room = roomFor(message);
+            if (room == null) {
+                sendServerMessage("You are not in any room. Use /join <room> to join one.");
+                return;
+            }
             message.setUsername(username);
+            message.setRoom(room);
             server.broadcastMessage(message, null);
         }
     }
     
-    private void handleCommand(String command) {
+    /**
+     * Admission control, checked before a message can cause any broadcast. Upload chunks and download
+     * requests pass through: they are paced by the transfer itself and only ever reach this client.
+     * A file is charged its declared size, in messages and bytes, when it is offered, since the chunks
+     * that follow go uncounted.
+     * A refused message is dropped and the sender told, at most once a second. A client that keeps
+     * going over its limit, without a second's pause, is disconnected.
+     */
+    private boolean isThrottled(Message message) {
+        if (message.getType() == Message.MessageType.FILE_CHUNK || message.getType() == Message.MessageType.FILE_DOWNLOAD) {
+            return false;
+        }
+        boolean file = message.getType() == Message.MessageType.FILE || message.getType() == Message.MessageType.FILE_OFFER;
+        // Capped so an oversized offer still gets through to be refused with a reason
+        long fileSize = file ? Math.min(Math.max(0, message.getFileSize()), Constants.MAX_FILE_SIZE) : 0;
+        long weight = 1 + fileSize / FILE_WEIGHT_BYTES;
+        long bytes = utf8Length(message.getContent()) + fileSize;
+        RateLimiter.Verdict verdict = rateLimiter.admit(weight, bytes);
+        if (verdict == RateLimiter.Verdict.ADMITTED) {
+            return false;
+        }
+        
+        server.getMetrics().throttled(verdict);
+        long now = System.currentTimeMillis();
+        if (verdict == RateLimiter.Verdict.USER_LIMIT) {
+            refusedInFlood = now - lastRefused > THROTTLE_NOTICE_MILLIS ? 1 : refusedInFlood + 1;
+            lastRefused = now;
+        }
+        if (refusedInFlood > FLOOD_LIMIT) {
+            System.err.println("Disconnecting " + username + " for flooding");
+            sendServerMessage("Disconnected for sending too fast.");
+            disconnect(ServerMetrics.DisconnectReason.FLOODING);
+            return true;
+        }
+        if (now - lastThrottleNotice >= THROTTLE_NOTICE_MILLIS) {
+            lastThrottleNotice = now;
+            sendServerMessage(verdict == RateLimiter.Verdict.USER_LIMIT 
+                ? "You are sending too fast, so some of your messages were dropped. The limit is " + server.describeUserLimits() + "."
+                : "The server is too busy right now, so your message was dropped. Please try again shortly.");
+        }
+        return true;
+    }
+    
+    /**
+     * Bytes the text takes on the wire, counted without encoding it
+     */
+    private static long utf8Length(String text) {
+        if (text == null) {
+            return 0;
+        }
+        long length = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                length += Character.isSurrogate(c) ? 1 : 2; // A surrogate pair is 4 bytes
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+    
+    private void watchIdle() {
+        lastHeard = System.nanoTime();
+        long heartbeat = server.getHeartbeatMillis();
+        idleCheck = server.schedule(this::checkIdle, 
+            heartbeat > 0 ? Math.min(heartbeat, server.getIdleTimeoutMillis()) : server.getIdleTimeoutMillis());
+    }
+    
+    /**
+     * Runs on the server's timing wheel whenever this client may have been quiet for too long, and
+     * schedules its own next run. A client that supports heartbeats is pinged once it goes quiet and
+     * dropped if it stays quiet past the idle timeout, as is a connection that never logs in. A
+     * logged-in client without heartbeats can't be told from an idle user, so TCP keepalive has to do.
+     * The wheel only decides and signals: the ping is queued without waiting, and the teardown, which
+     * can wait on queues and locks, is left to the connection's own thread or event loop.
+     */
+    private void checkIdle() {
+        long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHeard);
+        boolean heartbeat = supports(FrameCodec.FEATURE_HEARTBEAT);
+        if (!connected.get() || (username != null && !heartbeat)) {
+            return;
+        }
+        long idleTimeout = server.getIdleTimeoutMillis();
+        if (quiet >= idleTimeout) {
+            System.err.println("Dropping " + (username != null ? username : "client") + ": nothing heard for " + 
+                             quiet / 1000 + " s");
+            dropIdle();
+            return;
+        }
+        long pingAfter = server.getHeartbeatMillis();
+        long delay;
+        if (pingAfter == 0) {
+            delay = idleTimeout - quiet;
+        } else if (quiet < pingAfter) {
+            delay = pingAfter - quiet;
+        } else if (username != null) {
+            // Only queued, never waited for; a client too far behind to take it is left to the idle timeout
+            trySendMessage(new EncodedMessage(new Message("", Constants.SERVER_NAME, Message.MessageType.PING)));
+            delay = idleTimeout - quiet;
+        } else {
+            delay = Math.min(pingAfter, idleTimeout - quiet); // Still logging in; look again in case it finishes
+        }
+        idleCheck = server.schedule(this::checkIdle, delay);
+    }
+    
+    /**
+     * Drops a client that went quiet without tearing it down on the wheel. In blocking mode closing the
+     * socket is enough: the client's own thread fails out of its read and disconnects. In NIO mode the
+     * teardown runs on the connection's event loop.
+     */
+    private void dropIdle() {
+        if (clientSocket != null) {
+            closedFor = ServerMetrics.DisconnectReason.IDLE;
+            closeTransport();
+        } else {
+            transport.execute(() -> {
+                disconnect(ServerMetrics.DisconnectReason.IDLE);
+                closeTransport(); // A dead peer would never drain what is queued for it
+            });
+        }
+    }
+    
+    /**
+     * The room a message goes to: the one it names if this client is in it, else the active room
+     */
+    private String roomFor(Message message) {
+        String requested = Room.normalizeName(message.getRoom());
+        if (requested != null && rooms.contains(requested)) {
+            return requested;
+        }
+        String room = activeRoom;
+        return room != null && rooms.contains(room) ? room : null;
+    }
+    
+    private void handleCommand(String command, Message request) {
         String[] parts = command.split(" ", 2);
         String cmd = parts[0].toLowerCase();
         
         switch (cmd) {
             case Constants.COMMAND_LIST_USERS:
-                server.sendUserList(this);
+                handleListUsers(parts.length > 1 ? parts[1].trim() : "");
                 break;
                 
             case Constants.COMMAND_HELP:
                 sendHelpMessage();
                 break;
                 
+            case Constants.COMMAND_PRIVATE_MESSAGE:
+                String[] target = parts.length > 1 ? parts[1].trim().split(" ", 2) : new String[0];
+                if (target.length < 2 || target[1].trim().isEmpty()) {
+                    sendServerMessage("Usage: /msg <user> <message>");
+                } else {
+                    sendPrivateMessage(target[0], target[1], request);
+                }
+                break;
+                
+            case Constants.COMMAND_JOIN:
+                handleJoin(parts.length > 1 ? parts[1] : null);
+                break;
+                
             case Constants.COMMAND_LEAVE:
-                disconnect();
+                if (parts.length > 1 && !parts[1].trim().isEmpty()) {
+                    handleLeaveRoom(parts[1]);
+                } else {
+                    disconnect(ServerMetrics.DisconnectReason.LEFT);
+                }
+                break;
+                
+            case Constants.COMMAND_ADMIN:
+                if (server.verifyAdmin(username, parts.length > 1 ? parts[1].trim() : null)) {
+                    isAdmin = true;
+                    sendServerMessage("Admin commands unlocked.");
+                } else {
+                    System.err.println("Refused admin login from " + username);
+                    sendServerMessage("Admin login refused.");
+                }
+                break;
+                
+            case Constants.COMMAND_STATS:
+                if (isAdmin) {
+                    sendServerMessage(server.getMetrics().format());
+                } else {
+                    sendServerMessage("/stats is only available to server admins.");
+                }
                 break;
                 
             default:
@@ -106,44 +428,239 @@ public class ClientHandler implements Runnable {
         }
     }
     
+    /**
+     * Sends text to one user, keeping the send and arrival times of the message that asked for it
+     */
+    private void sendPrivateMessage(String recipient, String text, Message request) {
+        Message message = new Message(text, username, Message.MessageType.PRIVATE);
+        message.setRecipient(recipient);
+        message.setSentTime(request.getSentTime());
+        message.setServerReceivedTime(request.getServerReceivedTime());
+        if (recipient == null || !server.sendPrivateMessage(message, this)) {
+            sendServerMessage("User " + recipient + " is not online");
+        }
+    }
+    
+    /**
+     * /users [prefix] [page]: a lone number is taken as the page
+     */
+    private void handleListUsers(String arguments) {
+        String prefix = "";
+        int page = 1;
+        String[] words = arguments.isEmpty() ? new String[0] : arguments.split("\\s+");
+        try {
+            if (words.length == 1 && words[0].matches("\\d+")) {
+                page = Integer.parseInt(words[0]);
+            } else if (words.length == 1) {
+                prefix = words[0];
+            } else if (words.length == 2) {
+                prefix = words[0];
+                page = Integer.parseInt(words[1]);
+            } else if (words.length > 2) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            sendServerMessage("Usage: /users [prefix] [page]");
+            return;
+        }
+        server.sendUserList(this, prefix, page);
+    }
+    
+    /**
+     * Joins a room (creating it if needed) and makes it the room plain messages go to
+     */
+    private void handleJoin(String roomName) {
+        String room = Room.normalizeName(roomName);
+        if (room == null) {
+            sendServerMessage("Usage: /join <room> (letters, digits, - and _, up to 32 characters). " + 
+                            "Rooms: " + server.describeRooms());
+            return;
+        }
+        
+        server.joinRoom(this, room); // Sends the room's history on joining
+        activeRoom = room;
+        sendServerMessage("You are now talking in #" + room);
+    }
+    
+    private void handleLeaveRoom(String roomName) {
+        String room = Room.normalizeName(roomName);
+        if (room == null || !rooms.contains(room)) {
+            sendServerMessage("You are not in room " + roomName.trim());
+            return;
+        }
+        
+        server.leaveRoom(this, room);
+        if (room.equals(activeRoom)) {
+            // Fall back to the default room if still in it, otherwise any room left
+            activeRoom = rooms.contains(Constants.DEFAULT_ROOM) ? Constants.DEFAULT_ROOM : 
+                         rooms.isEmpty() ? null : rooms.iterator().next();
+        }
+        sendServerMessage("You left #" + room + 
+                        (activeRoom != null ? ". Now talking in #" + activeRoom : ". Use /join <room> to join another room."));
+    }
+    
+    /**
+     * Whole-file upload from a client that predates chunked transfers
+     */
     private void handleFileMessage(Message message) {
         try {
-            // Save file to server's files directory
-            String filename = message.getFilename();
+            // Save file to server's content store
+            String filename = FileUploads.safeFilename(message.getFilename());
             byte[] fileData = message.getFileData();
+            long start = System.nanoTime();
+            String hash = server.getContentStore().store(fileData);
+            server.getMetrics().fileWrite(System.nanoTime() - start);
             
-            File filesDir = new File(Constants.FILES_DIRECTORY);
-            if (!filesDir.exists()) {
-                filesDir.mkdirs();
-            }
-            
-            String safePath = Constants.FILES_DIRECTORY + File.separator + 
-                            System.currentTimeMillis() + "_" + filename;
-            Files.write(Paths.get(safePath), fileData);
-            
-            // Broadcast file message to all clients
-            message.setUsername(username);
-            server.broadcastMessage(message, null);
+            broadcastFile(filename, fileData.length, hash);
             
             System.out.println("File '" + filename + "' received from " + username + 
-                             " and saved as " + safePath);
+                             " and stored as " + hash);
             
         } catch (IOException e) {
-            System.err.println("Error handling file from " + username + ": " + e.getMessage());
-            Message errorMessage = new Message("Error processing file: " + e.getMessage(), 
-                                             Constants.SERVER_NAME, 
-                                             Message.MessageType.SERVER_MESSAGE);
-            sendMessage(errorMessage);
+            sendFileError(e);
+        }
+    }
+    
+    /**
+     * Handles a file message whose disk work could hold up the thread reading it. In blocking mode that
+     * thread is this client's own, so it does the work. An event loop serves many clients, so in NIO mode
+     * the work goes to the server's file threads and the connection reads nothing more until it is done;
+     * a client's chunks are still written in order, and only one is held in memory.
+     */
+    private void handleOnFileThread(Runnable handling) {
+        if (clientSocket != null) {
+            handling.run();
+            return;
+        }
+        writingFile = true;
+        server.executeFileTask(() -> {
+            try {
+                handling.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error handling a file from " + username + ": " + e);
+            } finally {
+                transport.execute(() -> writingFile = false); // Back on the event loop, which reads on from here
+            }
+        });
+    }
+    
+    /**
+     * Starts or resumes a chunked upload and tells the client which offset to send from
+     */
+    private void handleFileOffer(Message message) {
+        String transferId = message.getTransferId();
+        Message reply = new Message(null, Constants.SERVER_NAME, Message.MessageType.FILE_RESUME);
+        reply.setTransferId(transferId);
+        
+        try {
+            if (uploads == null) {
+                uploads = new FileUploads(username, server.getContentStore());
+            }
+            reply.setOffset(uploads.open(transferId, message.getFilename(), message.getFileSize()));
+            sendMessage(reply);
+            
+            if (uploads.isComplete(transferId)) {
+                completeUpload(transferId); // Everything arrived before the last connection dropped
+            }
+        } catch (IOException e) {
+            reply.setOffset(-1); // Tells the client to give up on this file
+            reply.setContent(e.getMessage());
+            sendMessage(reply);
+            sendFileError(e);
+        }
+    }
+    
+    private void handleFileChunk(Message message) {
+        if (uploads == null) {
+            return;
+        }
+        
+        try {
+            long start = System.nanoTime();
+            FileUploads.Upload upload = uploads.write(message.getTransferId(), message.getOffset(), message.getFileData());
+            server.getMetrics().fileWrite(System.nanoTime() - start);
+            if (upload != null) {
+                completeUpload(message.getTransferId());
+            }
+        } catch (IOException e) {
+            sendFileError(e);
+        }
+    }
+    
+    private void completeUpload(String transferId) throws IOException {
+        FileUploads.Upload upload = uploads.complete(transferId);
+        broadcastFile(upload.getFilename(), upload.getFileSize(), upload.getHash());
+        
+        System.out.println("File '" + upload.getFilename() + "' received from " + username + 
+                         " and stored as " + upload.getPath());
+    }
+    
+    /**
+     * Announces a file to everyone. Only the name, size and hash go out; clients download the
+     * contents on demand, so sharing a file doesn't cost its size once per connected client.
+     */
+    private void broadcastFile(String filename, long fileSize, String hash) {
+        String room = activeRoom;
+        if (room == null || !rooms.contains(room)) {
+            sendServerMessage("File stored, but you are not in any room to share it with.");
+            return;
+        }
+        
+        Message fileMessage = new Message(filename, null, username);
+        fileMessage.setFileSize(fileSize);
+        fileMessage.setFileHash(hash);
+        fileMessage.setRoom(room);
+        server.broadcastMessage(fileMessage, null);
+    }
+    
+    /**
+     * Replies with a header giving the file's size, followed on the wire by the raw file bytes.
+     * A negative size means the file is not available.
+     */
+    private void handleFileDownload(Message message) {
+        Message reply = new Message(null, Constants.SERVER_NAME, Message.MessageType.FILE_DOWNLOAD);
+        reply.setFileHash(message.getFileHash());
+        
+        Path file = server.getContentStore().find(message.getFileHash());
+        try {
+            if (file != null) {
+                reply.setFileSize(Files.size(file));
+                sendMessage(new EncodedMessage(reply, file));
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading stored file " + message.getFileHash() + ": " + e.getMessage());
         }
+        
+        reply.setFileSize(-1);
+        reply.setContent("File not found on server");
+        sendMessage(reply);
+    }
+    
+    private void sendFileError(IOException e) {
+        System.err.println("Error handling file from " + username + ": " + e.getMessage());
+        Message errorMessage = new Message("Error processing file: " + e.getMessage(), 
+                                         Constants.SERVER_NAME, 
+                                         Message.MessageType.SERVER_MESSAGE);
+        sendMessage(errorMessage);
     }
     
     private void sendHelpMessage() {
         StringBuilder help = new StringBuilder();
         help.append("Available commands:\\n");
-        help.append("/users - List online users\\n");
+        help.append("/users [prefix] [page] - List online users, optionally only names starting with prefix\\n");
         help.append("/help - Show this help message\\n");
+        help.append("/msg <user> <message> - Send a private message\\n");
+        help.append("/join <room> - Join a room and talk there (everyone starts in #" + Constants.DEFAULT_ROOM + ")\\n");
+        help.append("/leave <room> - Leave a room\\n");
         help.append("/leave - Leave the chat\\n");
-        help.append("\\nTo send a file, use the 'Send File' button in the GUI");
+        if (isAdmin) {
+            help.append("/stats - Show server statistics\\n");
+        } else if (server.isAdmin(username)) {
+            help.append("/admin <token> - Unlock admin commands\\n");
+        }
+        help.append("\\nTo send a file, use the 'Send File' button in the GUI or /sendfile <path> in the console");
+        help.append("\\nTo fetch a shared file, use the 'Download File' button or /download <filename>");
         
         Message helpMessage = new Message(help.toString(), 
                                         Constants.SERVER_NAME, 
@@ -152,34 +669,67 @@ public class ClientHandler implements Runnable {
     }
     
     public void sendMessage(Message message) {
-        try {
-            if (output != null && isConnected) {
-                output.writeObject(message);
-                output.flush();
-            }
-        } catch (IOException e) {
-            System.err.println("Error sending message to " + username + ": " + e.getMessage());
-            disconnect();
+        sendMessage(new EncodedMessage(message));
+    }
+    
+    private void sendServerMessage(String text) {
+        sendMessage(new Message(text, Constants.SERVER_NAME, Message.MessageType.SERVER_MESSAGE));
+    }
+    
+    /**
+     * Queues a message for this client's writer. Never waits on the socket, so a slow
+     * client can't hold up the sender; the overflow policy decides what happens when it falls behind.
+     */
+    public void sendMessage(EncodedMessage message) {
+        if (connected.get() && !outbound.offer(message)) {
+            System.err.println("Dropping slow client " + username + ": outbound queue full (" + 
+                             outbound.getCapacity() + " messages)");
+            server.getMetrics().sendFailure();
+            disconnect(ServerMetrics.DisconnectReason.SLOW_CLIENT);
+            closeTransport(); // Don't wait for a backlog this client is not reading
         }
     }
     
-    public void disconnect() {
-        if (isConnected) {
-            isConnected = false;
+    /**
+     * Queues a message if that needs neither waiting nor dropping this client, for senders holding a lock.
+     * Returns false to leave the message to sendMessage, which applies the overflow policy.
+     */
+    boolean trySendMessage(EncodedMessage message) {
+        return !connected.get() || outbound.offerNow(message);
+    }
+    
+    public void disconnect(ServerMetrics.DisconnectReason reason) {
+        if (connected.compareAndSet(true, false)) {
+            server.getMetrics().connectionClosed(reason);
             
-            try {
-                if (username != null) {
-                    server.removeClient(username);
-                }
-                
-                if (input != null) input.close();
-                if (output != null) output.close();
-                if (clientSocket != null) clientSocket.close();
-                
-                System.out.println("Client " + (username != null ? username : "unknown") + " disconnected");
-            } catch (IOException e) {
-                System.err.println("Error disconnecting client: " + e.getMessage());
+            if (username != null) {
+                server.removeClient(this);
+            }
+            
+            if (uploads != null) {
+                uploads.closeAll(); // Partial files stay on disk so the upload can resume
+            }
+            idleCheck.cancel();
+            
+            // The writer sends whatever is still queued and then closes the connection
+            outbound.close();
+            if (transport == null) {
+                closeTransport();
+            }
+            
+            System.out.println("Client " + (username != null ? username : "unknown") + " disconnected");
+        }
+    }
+    
+    private void closeTransport() {
+        try {
+            if (transport != null) {
+                transport.close();
+            } else if (clientSocket != null) {
+                clientSocket.close();
             }
+        } catch (IOException e) {
+            System.err.println("Error disconnecting client: " + e.getMessage());
         }
     }
     
@@ -187,7 +737,33 @@ public class ClientHandler implements Runnable {
         return username;
     }
     
+    ServerMetrics getMetrics() {
+        return server.getMetrics();
+    }
+    
+    int acceptFeatures(int offered) {
+        return server.acceptFeatures(offered);
+    }
+    
     public boolean isConnected() {
-        return isConnected;
+        return connected.get();
+    }
+    
+    /**
+     * Whether the client accepted a FrameCodec feature in its handshake
+     */
+    public boolean supports(int feature) {
+        return transport != null && (transport.getFeatures() & feature) != 0;
+    }
+    
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+    
+    /**
+     * Rooms this client is subscribed to. Kept in step with the rooms' member sets by ChatServer.
+     */
+    Set<String> getRooms() {
+        return rooms;
     }
 }
@@ -0,0 +1,30 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * Wire connection to a single client. ClientHandler only enqueues messages;
+ * the transport's writer drains the queue onto the socket.
+ */
+interface ClientTransport {
+    /**
+     * Starts draining the queue. Once the queue is closed and empty the transport closes itself.
+     */
+    void startWriter(OutboundQueue queue);
+    
+    /**
+     * FrameCodec feature bits agreed in the handshake; 0 for legacy clients
+     */
+    int getFeatures();
+    
+    /**
+     * Runs a task for this client off the calling thread: on the event loop that owns the
+     * connection in NIO mode, on the server's executor otherwise. The task may block only in blocking mode.
+     */
+    void execute(Runnable task);
+    
+    /**
+     * Closes the connection right away, abandoning anything still queued.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,662 @@
+package server;
+
+import shared.FrameCodec;
+import shared.Message;
+import shared.TimingWheel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This server's membership in a cluster of ChatServers sharing one chat space. The members are a fixed
+ * list of peer addresses, the same on every node, and each pair of nodes keeps one TCP link (the
+ * lower-numbered node dials). Over those links a node:
+ *
+ * - relays every broadcast it makes once to each peer, which delivers it to its own clients only and
+ *   never passes it on. Relays are numbered per node; a peer that reconnects is replayed what it
+ *   missed from a ring of recent relays, and anything numbered at or below what it already has is
+ *   dropped as a duplicate.
+ * - tells every peer who logs in and out, so each node knows where every user is for private
+ *   messages, /users and rosters.
+ * - asks a username's owner node, picked by rendezvous hashing over the member list, before letting
+ *   anyone have it, so two nodes can't give out the same name at once. If the owner can't be reached
+ *   the login is checked against the directory of users instead.
+ */
+class ClusterNode {
+    private static final int MAGIC = 0x43574e31; // "CWN1"
+    private static final int RING_SIZE = 8192;
+    private static final int USERS_PAGE_SIZE = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int HELLO_TIMEOUT_MILLIS = 5000;
+    private static final long REDIAL_MILLIS = 1000;
+    private static final long CLAIM_TIMEOUT_MILLIS = 2000;
+    
+    // The first byte of every frame after the hello
+    private static final int RELAY = 1; // relay number, binary message body
+    private static final int PRIVATE = 2; // binary message body
+    private static final int CLAIM = 3; // request id, username
+    private static final int CLAIMED = 4; // request id, granted
+    private static final int RESET = 5; // forget every user listed for the sender; its list follows
+    private static final int ONLINE = 6; // count, usernames
+    private static final int OFFLINE = 7; // username
+    
+    private final ChatServer server;
+    private final PresenceRegistry presence;
+    private final List<String> members;
+    private final int self;
+    private final int membersHash;
+    private final long incarnation;
+    private final ConcurrentHashMap<String, Integer> claims; // usernames owned here -> node holding them
+    private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> pendingClaims;
+    private final AtomicLong nextClaim;
+    private final LongAdder relaysOut;
+    private final LongAdder relaysIn;
+    private final LongAdder duplicates;
+    private final LongAdder missed;
+    private ServerSocket listener;
+    private Thread dialer;
+    private volatile boolean running;
+    
+    // Guarded by this
+    private final PeerLink[] links;
+    private final byte[][] ring; // recent relay frames by number modulo RING_SIZE
+    private long lastRelay;
+    private final long[] peerIncarnations;
+    private final long[] lastReceived; // highest relay number taken from each peer
+    
+    /**
+     * Member self (counting from 0) of the given host:port list
+     */
+    ClusterNode(ChatServer server, PresenceRegistry presence, List<String> members, int self) {
+        this.server = server;
+        this.presence = presence;
+        this.members = members;
+        this.self = self;
+        this.membersHash = String.join(",", members).hashCode();
+        this.incarnation = System.currentTimeMillis();
+        this.claims = new ConcurrentHashMap<>();
+        this.pendingClaims = new ConcurrentHashMap<>();
+        this.nextClaim = new AtomicLong();
+        this.relaysOut = new LongAdder();
+        this.relaysIn = new LongAdder();
+        this.duplicates = new LongAdder();
+        this.missed = new LongAdder();
+        this.links = new PeerLink[members.size()];
+        this.ring = new byte[RING_SIZE][];
+        this.peerIncarnations = new long[members.size()];
+        this.lastReceived = new long[members.size()];
+    }
+    
+    /**
+     * Listens for peers on this member's port and starts dialing the higher-numbered ones
+     */
+    void start() throws IOException {
+        listener = new ServerSocket(addressOf(self).getPort());
+        running = true;
+        
+        Thread acceptor = new Thread(this::acceptLoop, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        if (self < members.size() - 1) {
+            dialer = new Thread(this::dialLoop, "cluster-dialer");
+            dialer.setDaemon(true);
+            dialer.start();
+        }
+        System.out.println("Cluster node " + (self + 1) + " of " + members.size() +
+                         ", listening for peers on port " + listener.getLocalPort());
+    }
+    
+    void stop() {
+        running = false;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+        if (dialer != null) {
+            dialer.interrupt();
+        }
+        synchronized (this) {
+            for (PeerLink link : links) {
+                if (link != null) {
+                    link.close();
+                }
+            }
+        }
+        for (CompletableFuture<Boolean> reply : pendingClaims.values()) {
+            reply.complete(false);
+        }
+    }
+    
+    private InetSocketAddress addressOf(int node) {
+        String member = members.get(node);
+        int colon = member.lastIndexOf(':');
+        return new InetSocketAddress(member.substring(0, colon), Integer.parseInt(member.substring(colon + 1)));
+    }
+    
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                Thread hello = new Thread(() -> accept(socket), "cluster-hello");
+                hello.setDaemon(true);
+                hello.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting cluster link: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    private void accept(Socket socket) {
+        try {
+            socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            Hello hello = readHello(input);
+            if (hello.node > self) {
+                throw new IOException("node " + (hello.node + 1) + " should be waiting for us to dial");
+            }
+            writeHello(output, hello.node);
+            established(hello, socket, input, output);
+        } catch (IOException e) {
+            System.err.println("Refused cluster link from " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+            closeQuietly(socket);
+        }
+    }
+    
+    private void dialLoop() {
+        boolean[] reported = new boolean[members.size()];
+        while (running) {
+            for (int node = self + 1; node < members.size() && running; node++) {
+                if (linkTo(node) != null) {
+                    reported[node] = false;
+                    continue;
+                }
+                try {
+                    dial(node);
+                    reported[node] = false;
+                } catch (IOException e) {
+                    if (!reported[node]) {
+                        System.err.println("Cannot reach cluster node " + (node + 1) + " yet (" + e.getMessage() +
+                                         "), retrying every " + REDIAL_MILLIS + " ms");
+                        reported[node] = true;
+                    }
+                }
+            }
+            try {
+                Thread.sleep(REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    
+    private void dial(int node) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(addressOf(node), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            writeHello(output, node);
+            Hello hello = readHello(input);
+            if (hello.node != node) {
+                throw new IOException("reached node " + (hello.node + 1) + " instead");
+            }
+            established(hello, socket, input, output);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+    
+    /**
+     * Who a peer is and what it last received from us
+     */
+    private static final class Hello {
+        int node;
+        long incarnation;
+        long seenIncarnation;
+        long seenRelay;
+    }
+    
+    private void writeHello(DataOutputStream output, int peer) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(membersHash);
+        output.writeInt(self);
+        output.writeLong(incarnation);
+        synchronized (this) {
+            output.writeLong(peerIncarnations[peer]);
+            output.writeLong(lastReceived[peer]);
+        }
+        output.flush();
+    }
+    
+    private Hello readHello(DataInputStream input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("not a cluster peer");
+        }
+        if (input.readInt() != membersHash) {
+            throw new IOException("its -cluster list differs from ours");
+        }
+        Hello hello = new Hello();
+        hello.node = input.readInt();
+        if (hello.node < 0 || hello.node >= members.size() || hello.node == self) {
+            throw new IOException("invalid node number " + (hello.node + 1));
+        }
+        hello.incarnation = input.readLong();
+        hello.seenIncarnation = input.readLong();
+        hello.seenRelay = input.readLong();
+        return hello;
+    }
+    
+    /**
+     * Puts a link in service once hellos are exchanged: replays the relays the peer missed and
+     * sends it our users, all before any newer relay or login can be queued on the link
+     */
+    private void established(Hello hello, Socket socket, DataInputStream input, DataOutputStream output) throws IOException {
+        socket.setSoTimeout(0);
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        PeerLink link = new PeerLink(this, hello.node, socket, input, output);
+        PeerLink previous;
+        synchronized (this) {
+            if (!running) {
+                closeQuietly(socket);
+                return;
+            }
+            if (peerIncarnations[hello.node] != hello.incarnation) {
+                peerIncarnations[hello.node] = hello.incarnation;
+                lastReceived[hello.node] = 0; // A restarted peer numbers its relays from 1 again
+            }
+            previous = links[hello.node];
+            links[hello.node] = link;
+            replay(link, hello);
+            sendUsers(link);
+        }
+        if (previous != null) {
+            previous.close();
+        }
+        link.start();
+        System.out.println("Linked to cluster node " + (hello.node + 1) + " at " + socket.getRemoteSocketAddress());
+    }
+    
+    private void replay(PeerLink link, Hello hello) {
+        if (hello.seenIncarnation != incarnation) {
+            return; // The peer has nothing from this run of ours, so there is no gap to fill
+        }
+        long from = Math.max(hello.seenRelay + 1, lastRelay - RING_SIZE + 1);
+        if (from > hello.seenRelay + 1) {
+            System.err.println("Cluster node " + (link.getNode() + 1) + " missed " + (from - hello.seenRelay - 1) +
+                             " relays that are no longer in the replay ring");
+        }
+        for (long relay = from; relay <= lastRelay; relay++) {
+            link.send(ring[(int) (relay % RING_SIZE)]);
+        }
+    }
+    
+    private void sendUsers(PeerLink link) {
+        List<ClientHandler> clients = presence.snapshot();
+        link.send(new Frame(RESET).toFrame());
+        for (int from = 0; from < clients.size(); from += USERS_PAGE_SIZE) {
+            int to = Math.min(clients.size(), from + USERS_PAGE_SIZE);
+            Frame page = new Frame(ONLINE).putInt(to - from);
+            for (int i = from; i < to; i++) {
+                page.putString(clients.get(i).getUsername());
+            }
+            link.send(page.toFrame());
+        }
+    }
+    
+    private synchronized PeerLink linkTo(int node) {
+        return links[node];
+    }
+    
+    /**
+     * Called by a link's reader once the link is gone. The peer's users count as offline until it is back.
+     */
+    void linkLost(PeerLink link) {
+        synchronized (this) {
+            if (links[link.getNode()] != link) {
+                return; // Already replaced by a newer link
+            }
+            links[link.getNode()] = null;
+            forget(link.getNode());
+        }
+        if (running) {
+            System.out.println("Unlinked from cluster node " + (link.getNode() + 1) + "; its users are offline until it is back");
+        }
+    }
+    
+    /**
+     * Called by a link's reader for every frame the peer sends
+     */
+    void received(PeerLink link, byte[] body) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+        int node = link.getNode();
+        int operation = input.readUnsignedByte();
+        switch (operation) {
+            case RELAY:
+                receiveRelay(node, input.readLong(), body);
+                break;
+            case PRIVATE:
+                server.deliverPrivate(FrameCodec.BINARY.decode(body, 1, body.length - 1));
+                break;
+            case CLAIM: {
+                long request = input.readLong();
+                boolean granted = claimFor(readString(input), node);
+                link.send(new Frame(CLAIMED).putLong(request).putInt(granted ? 1 : 0).toFrame());
+                break;
+            }
+            case CLAIMED: {
+                CompletableFuture<Boolean> reply = pendingClaims.remove(input.readLong());
+                boolean granted = input.readInt() != 0;
+                if (reply != null) {
+                    reply.complete(granted);
+                }
+                break;
+            }
+            case RESET:
+                forget(node);
+                break;
+            case ONLINE:
+                for (int count = input.readInt(); count > 0; count--) {
+                    online(readString(input), node);
+                }
+                break;
+            case OFFLINE: {
+                String username = readString(input);
+                presence.unregisterRemote(username, node);
+                claims.remove(username, node);
+                break;
+            }
+            default:
+                throw new IOException("Unknown cluster operation " + operation);
+        }
+    }
+    
+    private void receiveRelay(int node, long relay, byte[] body) throws IOException {
+        Message message = FrameCodec.BINARY.decode(body, 9, body.length - 9);
+        synchronized (this) {
+            long last = lastReceived[node];
+            if (relay <= last) {
+                duplicates.increment();
+                return;
+            }
+            if (last > 0 && relay > last + 1) {
+                missed.add(relay - last - 1);
+            }
+            lastReceived[node] = relay;
+        }
+        relaysIn.increment();
+        server.deliverRelayed(message);
+    }
+    
+    private void online(String username, int node) {
+        if (!presence.registerRemote(username, node)) {
+            System.err.println("User '" + username + "' is logged in both here and on cluster node " + (node + 1));
+        }
+        if (ownerOf(username) == self) {
+            // Logins made while we were unreachable are only claimed now
+            Integer holder = claims.putIfAbsent(username, node);
+            if (holder != null && holder != node) {
+                System.err.println("User '" + username + "' is logged in on cluster nodes " + (holder + 1) +
+                                 " and " + (node + 1));
+            }
+        }
+    }
+    
+    /**
+     * Drops a peer's users from the directory and its claims on names owned here
+     */
+    private void forget(int node) {
+        presence.unregisterNode(node);
+        claims.values().removeIf(holder -> holder == node);
+    }
+    
+    /**
+     * Claims a username for a local login with its owner node. Completes with false if it is taken anywhere
+     * in the cluster. When another node owns the name, the future completes on that node's answer, or on
+     * the server's timing wheel once CLAIM_TIMEOUT_MILLIS pass, so no thread waits for the round trip.
+     */
+    CompletableFuture<Boolean> claim(String username) {
+        int owner = ownerOf(username);
+        if (owner == self) {
+            return CompletableFuture.completedFuture(claimFor(username, self));
+        }
+        PeerLink link = linkTo(owner);
+        if (link == null) {
+            // Owner unreachable: the directory is the best we have
+            return CompletableFuture.completedFuture(presence.findRemote(username) < 0);
+        }
+        
+        long request = nextClaim.incrementAndGet();
+        CompletableFuture<Boolean> reply = new CompletableFuture<>();
+        pendingClaims.put(request, reply);
+        TimingWheel.Timeout timeout = server.schedule(() -> {
+            if (pendingClaims.remove(request) != null) {
+                System.err.println("Cluster node " + (owner + 1) + " did not answer a claim for '" + username + "'");
+                reply.complete(presence.findRemote(username) < 0);
+            }
+        }, CLAIM_TIMEOUT_MILLIS);
+        reply.thenRun(timeout::cancel);
+        link.send(new Frame(CLAIM).putLong(request).putString(username).toFrame());
+        return reply;
+    }
+    
+    /**
+     * Decides a claim on a name owned here
+     */
+    private boolean claimFor(String username, int node) {
+        if (presence.find(username) != null || presence.findRemote(username) >= 0) {
+            return false;
+        }
+        return claims.putIfAbsent(username, node) == null;
+    }
+    
+    /**
+     * The node that decides who gets a username: the member scoring highest for it (rendezvous hashing),
+     * so every node agrees without asking and only 1/n of the names move when the list changes
+     */
+    int ownerOf(String username) {
+        int owner = 0;
+        long best = Long.MIN_VALUE;
+        for (int node = 0; node < members.size(); node++) {
+            long score = mix(((long) members.get(node).hashCode() << 32) ^ (username.hashCode() & 0xffffffffL));
+            if (score > best) {
+                best = score;
+                owner = node;
+            }
+        }
+        return owner;
+    }
+    
+    /**
+     * MurmurHash3's 64-bit finalizer, to spread String.hashCode() over all 64 bits
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+    
+    /**
+     * Tells every peer about a local login, once the user is registered here
+     */
+    void loggedIn(String username) {
+        sendToAll(new Frame(ONLINE).putInt(1).putString(username).toFrame());
+    }
+    
+    /**
+     * Tells every peer about a local logout, which also releases the name at its owner
+     */
+    void loggedOut(String username) {
+        claims.remove(username, self);
+        sendToAll(new Frame(OFFLINE).putString(username).toFrame());
+    }
+    
+    private synchronized void sendToAll(byte[] frame) {
+        for (PeerLink link : links) {
+            if (link != null) {
+                link.send(frame);
+            }
+        }
+    }
+    
+    /**
+     * Numbers a broadcast and sends it to every peer. Peers that are down get it from the ring if they
+     * come back before it is overwritten.
+     */
+    void relay(EncodedMessage encoded) {
+        byte[] message;
+        try {
+            message = encoded.getFrame(FrameCodec.BINARY);
+        } catch (IOException e) {
+            System.err.println("Could not relay message: " + e.getMessage());
+            return;
+        }
+        byte[] frame = new Frame(RELAY).putLong(0)
+            .putBytes(message, FrameCodec.HEADER_SIZE, message.length - FrameCodec.HEADER_SIZE).toFrame();
+        synchronized (this) {
+            // Numbered and queued under one lock, so every link carries relays in number order
+            long relay = ++lastRelay;
+            for (int i = 0; i < 8; i++) {
+                frame[FrameCodec.HEADER_SIZE + 1 + i] = (byte) (relay >>> (56 - 8 * i));
+            }
+            ring[(int) (relay % RING_SIZE)] = frame;
+            for (PeerLink link : links) {
+                if (link != null) {
+                    link.send(frame);
+                }
+            }
+        }
+        relaysOut.increment();
+    }
+    
+    /**
+     * Sends a private message to the node its recipient is logged in on. Returns false if the
+     * recipient is not known to be online anywhere else.
+     */
+    boolean forwardPrivate(Message message) {
+        int node = presence.findRemote(message.getRecipient());
+        PeerLink link = node < 0 ? null : linkTo(node);
+        if (link == null) {
+            return false;
+        }
+        try {
+            byte[] encoded = FrameCodec.BINARY.encode(message);
+            link.send(new Frame(PRIVATE).putBytes(encoded, FrameCodec.HEADER_SIZE, encoded.length - FrameCodec.HEADER_SIZE).toFrame());
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not forward private message: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    synchronized int getLinkedPeers() {
+        int linked = 0;
+        for (PeerLink link : links) {
+            if (link != null) {
+                linked++;
+            }
+        }
+        return linked;
+    }
+    
+    /**
+     * One line for /stats
+     */
+    String describe() {
+        return String.format(Locale.ROOT, "node %d of %d, %d peers linked, %d users elsewhere; relays %d out, %d in, " +
+                             "%d duplicates dropped, %d missed", self + 1, members.size(), getLinkedPeers(),
+                             presence.current().getRemoteUsernames().size(), relaysOut.sum(), relaysIn.sum(),
+                             duplicates.sum(), missed.sum());
+    }
+    
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > input.available()) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] utf8 = new byte[length];
+        input.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+    
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+    
+    /**
+     * A peer frame being built in memory: length prefix, operation, then big-endian fields
+     */
+    private static final class Frame {
+        private final ByteArrayOutputStream bytes;
+        
+        Frame(int operation) {
+            this.bytes = new ByteArrayOutputStream(64);
+            bytes.write(new byte[FrameCodec.HEADER_SIZE], 0, FrameCodec.HEADER_SIZE);
+            bytes.write(operation);
+        }
+        
+        Frame putInt(int value) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes.write(value >>> shift);
+            }
+            return this;
+        }
+        
+        Frame putLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes.write((int) (value >>> shift));
+            }
+            return this;
+        }
+        
+        Frame putString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            putInt(utf8.length);
+            return putBytes(utf8, 0, utf8.length);
+        }
+        
+        Frame putBytes(byte[] data, int offset, int length) {
+            bytes.write(data, offset, length);
+            return this;
+        }
+        
+        byte[] toFrame() {
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - FrameCodec.HEADER_SIZE;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        }
+    }
+}
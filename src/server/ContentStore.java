@@ -0,0 +1,85 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * Shared files, stored once per distinct content under their SHA-256 hash.
+ * Sending the same file again adds no new copy; clients refer to a file by its hash.
+ */
+class ContentStore {
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+    
+    private final Path root;
+    
+    ContentStore(Path root) {
+        this.root = root;
+    }
+    
+    /**
+     * Moves a finished upload into the store, or deletes it if the content is already there.
+     * Returns the stored file.
+     */
+    Path store(Path source, String hash) throws IOException {
+        Files.createDirectories(root);
+        Path target = root.resolve(hash);
+        if (Files.exists(target)) {
+            Files.delete(source);
+            return target;
+        }
+        
+        try {
+            return Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            Files.delete(source); // The same content finished uploading at the same moment
+            return target;
+        }
+    }
+    
+    /**
+     * Stores file contents that arrived in one piece and returns their hash
+     */
+    String store(byte[] data) throws IOException {
+        String hash = toHex(newDigest().digest(data));
+        if (!Files.exists(root.resolve(hash))) {
+            Files.createDirectories(root);
+            Path temp = Files.createTempFile(root, hash, ".tmp");
+            Files.write(temp, data);
+            store(temp, hash);
+        }
+        return hash;
+    }
+    
+    /**
+     * The stored file for a hash, or null if there is none
+     */
+    Path find(String hash) {
+        if (hash == null || !HASH.matcher(hash).matches()) {
+            return null;
+        }
+        Path file = root.resolve(hash);
+        return Files.isRegularFile(file) ? file : null;
+    }
+    
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+    
+    static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package server;
+
+import shared.FrameCodec;
+import shared.Message;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A message plus its wire bytes. Each wire format is encoded at most once, on first use,
+ * and the same immutable bytes are written to every recipient of a broadcast.
+ * A message can carry a file attachment, whose raw bytes the transport sends right after the frame.
+ */
+public class EncodedMessage {
+    private final Message message;
+    private final Path attachment;
+    private final ReentrantLock lock; // Not synchronized: encoding a large file must not pin virtual threads
+    private byte[] serializedFrame;
+    private byte[] binaryFrame;
+    private byte[] legacyFrame;
+    
+    public EncodedMessage(Message message) {
+        this(message, null);
+    }
+    
+    /**
+     * A message followed on the wire by message.getFileSize() bytes of the given file
+     */
+    public EncodedMessage(Message message, Path attachment) {
+        this.message = message;
+        this.attachment = attachment;
+        this.lock = new ReentrantLock();
+    }
+    
+    public Message getMessage() {
+        return message;
+    }
+    
+    public Path getAttachment() {
+        return attachment;
+    }
+    
+    /**
+     * Length-prefixed frame for framed clients using the given codec
+     */
+    public byte[] getFrame(FrameCodec codec) throws IOException {
+        lock.lock();
+        try {
+            if (codec.isBinary()) {
+                if (binaryFrame == null) {
+                    binaryFrame = codec.encode(message);
+                }
+                return binaryFrame;
+            }
+            if (serializedFrame == null) {
+                serializedFrame = codec.encode(message);
+            }
+            return serializedFrame;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Bytes for a legacy client's object stream: TC_RESET followed by the serialized message.
+     * The reset makes the bytes independent of what was sent before, so they can be shared.
+     */
+    public byte[] getLegacyFrame() throws IOException {
+        lock.lock();
+        try {
+            if (legacyFrame == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+                bytes.write(ObjectStreamConstants.TC_RESET);
+                try (ObjectOutputStream output = new HeaderlessObjectOutputStream(bytes)) {
+                    output.writeObject(forLegacyClient(message));
+                }
+                legacyFrame = bytes.toByteArray();
+            }
+            return legacyFrame;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Legacy clients only know the original message types and would fail to read a newer one,
+     * so newer types are rewritten as a type they can display.
+     */
+    private static Message forLegacyClient(Message message) {
+        if (message.getType().ordinal() <= Message.MessageType.SERVER_MESSAGE.ordinal()) {
+            return message;
+        }
+        
+        Message copy = new Message(message.getContent(), message.getUsername(), Message.MessageType.SERVER_MESSAGE);
+        copy.setTimestamp(message.getTimestamp());
+        if (message.getType() == Message.MessageType.PRIVATE) {
+            copy.setType(Message.MessageType.TEXT);
+            copy.setContent("(private to " + message.getRecipient() + ") " + message.getContent());
+        } else if (message.getType() == Message.MessageType.USER_LIST) {
+            copy.setContent(message.formatUserList());
+        }
+        return copy;
+    }
+    
+    /**
+     * Writes the stream header for a legacy client; everything after it comes from getLegacyFrame.
+     */
+    public static void writeLegacyHeader(OutputStream output) throws IOException {
+        output.write(new byte[] {
+            (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8), (byte) ObjectStreamConstants.STREAM_MAGIC,
+            (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8), (byte) ObjectStreamConstants.STREAM_VERSION
+        });
+        output.flush();
+    }
+    
+    private static class HeaderlessObjectOutputStream extends ObjectOutputStream {
+        HeaderlessObjectOutputStream(OutputStream output) throws IOException {
+            super(output);
+        }
+        
+        @Override
+        protected void writeStreamHeader() {
+            // The client's stream already has its header
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single selector thread that owns a group of client channels. Other threads hand it
+ * work through execute(), which also wakes the selector up, or schedule() to run it later.
+ */
+class EventLoop implements Runnable {
+    private final ChatServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final PriorityQueue<Timer> timers; // event loop only
+    private volatile boolean isRunning;
+    
+    public EventLoop(ChatServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.timers = new PriorityQueue<>(Comparator.comparingLong((Timer timer) -> timer.deadline));
+        this.isRunning = true;
+    }
+    
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel, this, server);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                System.err.println("Error registering client channel: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+    
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+    
+    /**
+     * Runs a task on the event loop once the delay has passed. The selector times out in
+     * whole milliseconds, so shorter delays are rounded up.
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        execute(() -> timers.add(new Timer(deadline, task)));
+    }
+    
+    @Override
+    public void run() {
+        while (isRunning) {
+            try {
+                long timeout = selectTimeoutMillis();
+                if (timeout < 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                runTasks();
+                runTimers();
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.handleRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (RuntimeException e) {
+                        // A bad message from one client must not take the loop down with everyone else on it
+                        connection.abort(e);
+                    }
+                }
+            } catch (IOException e) {
+                if (isRunning) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+        
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key.channel());
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing selector: " + e.getMessage());
+        }
+    }
+    
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runSafely(task);
+        }
+    }
+    
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.err.println("Event loop task failed: " + e);
+        }
+    }
+    
+    /**
+     * How long select() may block: 0 for no limit, -1 if a timer is already due
+     */
+    private long selectTimeoutMillis() {
+        Timer next = timers.peek();
+        if (next == null) {
+            return 0;
+        }
+        long nanos = next.deadline - System.nanoTime();
+        if (nanos <= 0) {
+            return -1;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+    
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            runSafely(timers.poll().task);
+        }
+    }
+    
+    public void shutdown() {
+        isRunning = false;
+        selector.wakeup();
+    }
+    
+    static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+    
+    private static class Timer {
+        final long deadline;
+        final Runnable task;
+        
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package server;
+
+import shared.Constants;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Chunked uploads in progress for one client. Each chunk is written straight to a partial file,
+ * so an upload only ever holds one chunk in memory. The partial file outlives the connection:
+ * when the client offers the same transfer again, it continues from however much is on disk.
+ * Finished uploads go into the shared ContentStore. Partial files nobody has touched for a day
+ * are deleted, and each user keeps at most MAX_PARTIAL_FILES of them.
+ */
+class FileUploads {
+    private static final String PARTIAL_DIRECTORY = Constants.FILES_DIRECTORY + File.separator + ".partial";
+    private static final Pattern TRANSFER_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final int MAX_OPEN_UPLOADS = 8; // per connection; clients send one file at a time
+    private static final int MAX_PARTIAL_FILES = 16; // per user; the oldest unfinished upload makes way for a new one
+    private static final int MAX_NAME_SEGMENT = 200; // characters of the escaped username per directory level
+    private static final long PARTIAL_EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final AtomicLong lastSweep = new AtomicLong();
+    
+    private final Path directory;
+    private final ContentStore store;
+    private final Map<String, Upload> uploads;
+    
+    FileUploads(String owner, ContentStore store) {
+        this.directory = ownerDirectory(owner);
+        this.store = store;
+        this.uploads = new ConcurrentHashMap<>();
+    }
+    
+    /**
+     * Starts or resumes an upload. Returns the offset the client should send from.
+     */
+    long open(String transferId, String filename, long fileSize) throws IOException {
+        if (transferId == null || !TRANSFER_ID.matcher(transferId).matches()) {
+            throw new IOException("Invalid transfer id");
+        }
+        if (fileSize < 0 || fileSize > Constants.MAX_FILE_SIZE) {
+            throw new IOException("File too large. Maximum size is " + (Constants.MAX_FILE_SIZE / 1024 / 1024) + "MB");
+        }
+        
+        close(transferId);
+        if (uploads.size() >= MAX_OPEN_UPLOADS) {
+            throw new IOException("Too many uploads in progress. Wait for one to finish first.");
+        }
+        sweepExpired();
+        Files.createDirectories(directory);
+        Path partial = directory.resolve(transferId + ".part");
+        if (!Files.exists(partial)) {
+            makeRoom();
+        }
+        FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, 
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+        
+        Upload upload = new Upload(safeFilename(filename), fileSize, partial, channel);
+        try {
+            if (channel.size() > fileSize) {
+                channel.truncate(0); // Stale partial from a different file, start over
+            }
+            upload.hashExisting();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        uploads.put(transferId, upload);
+        return upload.position;
+    }
+    
+    /**
+     * Whether all of the upload is on disk and it can be completed without more chunks
+     */
+    boolean isComplete(String transferId) {
+        Upload upload = uploads.get(transferId);
+        return upload != null && upload.position == upload.fileSize;
+    }
+    
+    /**
+     * Appends a chunk. Returns the upload once its last byte is on disk, otherwise null.
+     * Chunks for a transfer that was never opened, or was abandoned after an error, are ignored.
+     */
+    Upload write(String transferId, long offset, byte[] data) throws IOException {
+        Upload upload = uploads.get(transferId);
+        if (upload == null) {
+            return null;
+        }
+        
+        try {
+            if (offset != upload.position || data == null || offset + data.length > upload.fileSize) {
+                throw new IOException("Unexpected chunk at offset " + offset + " for " + upload.filename);
+            }
+            
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                upload.channel.write(buffer, upload.position + buffer.position());
+            }
+            upload.position += data.length;
+            upload.digest.update(data);
+        } catch (IOException e) {
+            close(transferId);
+            throw e;
+        }
+        return upload.position == upload.fileSize ? upload : null;
+    }
+    
+    /**
+     * Moves a fully received upload from its partial file into the content store
+     */
+    Upload complete(String transferId) throws IOException {
+        Upload upload = uploads.remove(transferId);
+        if (upload == null || upload.position != upload.fileSize) {
+            throw new IOException("Upload is not complete");
+        }
+        upload.channel.close();
+        
+        upload.hash = ContentStore.toHex(upload.digest.digest());
+        upload.path = store.store(upload.path, upload.hash);
+        return upload;
+    }
+    
+    /**
+     * Closes the upload's file but keeps what was received, so it can be resumed
+     */
+    void close(String transferId) {
+        Upload upload = uploads.remove(transferId);
+        if (upload != null) {
+            try {
+                upload.channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing upload " + upload.filename + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    void closeAll() {
+        for (String transferId : uploads.keySet()) {
+            close(transferId);
+        }
+    }
+    
+    /**
+     * Deletes this user's oldest partial files, other than the open ones, until a new one fits
+     */
+    private void makeRoom() throws IOException {
+        List<Path> partials = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.part")) {
+            for (Path file : files) {
+                partials.add(file);
+            }
+        }
+        int count = partials.size();
+        if (count < MAX_PARTIAL_FILES) {
+            return;
+        }
+        for (Upload upload : uploads.values()) {
+            partials.remove(upload.path);
+        }
+        partials.sort(Comparator.comparingLong(FileUploads::lastModified));
+        for (int i = 0; i < partials.size() && count - i >= MAX_PARTIAL_FILES; i++) {
+            Files.deleteIfExists(partials.get(i));
+        }
+    }
+    
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0; // Gone already; first to go
+        }
+    }
+    
+    /**
+     * Deletes every user's partial files that have not been written for PARTIAL_EXPIRY_MILLIS, and the
+     * directories they leave empty. Runs at most once per SWEEP_INTERVAL_MILLIS, on whichever upload gets there first.
+     */
+    private static void sweepExpired() {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_MILLIS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        Path root = Paths.get(PARTIAL_DIRECTORY);
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        long expired = now - PARTIAL_EXPIRY_MILLIS;
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.lastModifiedTime().toMillis() < expired) {
+                        deleteQuietly(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+                
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    if (!dir.equals(root) && Files.getLastModifiedTime(dir).toMillis() < expired) {
+                        deleteQuietly(dir); // Fails while it still holds a live partial file
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Error expiring partial uploads: " + e.getMessage());
+        }
+    }
+    
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // In use or not empty; a later sweep gets it
+        }
+    }
+    
+    /**
+     * Where a user's partial files go. Partial files are per user, so nobody can append to someone
+     * else's upload. The directory is the exact username with every character but a-z, 0-9, _ and -
+     * escaped, so no two usernames share it, even on a case-insensitive file system. A long name is
+     * split over several directory levels to stay within file name limits.
+     */
+    private static Path ownerDirectory(String owner) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : owner.toCharArray()) {
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-') {
+                escaped.append(c);
+            } else {
+                escaped.append('%').append(String.format("%04x", (int) c));
+            }
+        }
+        Path directory = Paths.get(PARTIAL_DIRECTORY);
+        for (int start = 0; start < escaped.length(); start += MAX_NAME_SEGMENT) {
+            directory = directory.resolve(escaped.substring(start, Math.min(escaped.length(), start + MAX_NAME_SEGMENT)));
+        }
+        return directory;
+    }
+    
+    /**
+     * Strips any directory part a client put in the name
+     */
+    static String safeFilename(String filename) {
+        try {
+            Path name = filename != null ? Paths.get(filename.replace('\\', '/')).getFileName() : null;
+            return name != null ? name.toString() : "file";
+        } catch (InvalidPathException e) {
+            return "file";
+        }
+    }
+    
+    static class Upload {
+        private final String filename;
+        private final long fileSize;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private Path path;
+        private String hash;
+        private long position;
+        
+        Upload(String filename, long fileSize, Path path, FileChannel channel) {
+            this.filename = filename;
+            this.fileSize = fileSize;
+            this.path = path;
+            this.channel = channel;
+            this.digest = ContentStore.newDigest();
+        }
+        
+        /**
+         * Feeds what an earlier connection already uploaded into the hash
+         */
+        private void hashExisting() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(Constants.FILE_CHUNK_SIZE);
+            while (channel.read(buffer, position) > 0) {
+                buffer.flip();
+                position += buffer.remaining();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        
+        String getFilename() {
+            return filename;
+        }
+        
+        long getFileSize() {
+            return fileSize;
+        }
+        
+        /**
+         * The partial file while uploading, the stored file once complete
+         */
+        Path getPath() {
+            return path;
+        }
+        
+        /**
+         * SHA-256 of the contents, known once complete
+         */
+        String getHash() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package server;
+
+import shared.FrameCodec;
+import shared.Message;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One fixed-size piece of a room's message log: an append-only data file plus a memory-mapped index.
+ *
+ * Each record in the data file is a binary frame (4-byte length, BinaryMessageCodec body) followed by a
+ * CRC32 of the body. Index entry i holds the end offset of record i, so any run of records can be found
+ * and read in one go without scanning the file. Only the log's writer thread appends; readers rely on
+ * the volatile record count to see complete entries.
+ */
+class LogSegment {
+    private static final int ENTRY_SIZE = 4;
+    private static final int CRC_SIZE = 4;
+    
+    private final long baseSequence;
+    private final Path dataPath;
+    private final Path indexPath;
+    private final FileChannel data;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private final int maxEntries;
+    private final ByteBuffer crcBuffer;
+    private final CRC32 crc;
+    private volatile int count;
+    private long end;
+    
+    LogSegment(Path directory, long baseSequence, int maxEntries) throws IOException {
+        this.baseSequence = baseSequence;
+        this.maxEntries = maxEntries;
+        this.dataPath = directory.resolve(String.format("%020d.log", baseSequence));
+        this.indexPath = directory.resolve(String.format("%020d.idx", baseSequence));
+        this.data = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) maxEntries * ENTRY_SIZE);
+        this.crcBuffer = ByteBuffer.allocate(CRC_SIZE);
+        this.crc = new CRC32();
+        recover();
+    }
+    
+    /**
+     * Finds where the valid records end after a restart. The index can trail the data file
+     * (it is not forced to disk), so records past the last index entry are re-indexed if their
+     * checksum is good, and a torn record at the tail is cut off.
+     */
+    private void recover() throws IOException {
+        long size = data.size();
+        int valid = 0;
+        while (valid < maxEntries && index.getInt(valid * ENTRY_SIZE) != 0 && index.getInt(valid * ENTRY_SIZE) <= size) {
+            valid++;
+        }
+        count = valid;
+        end = valid == 0 ? 0 : index.getInt((valid - 1) * ENTRY_SIZE);
+        
+        ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+        while (count < maxEntries && end + FrameCodec.HEADER_SIZE + CRC_SIZE <= size) {
+            header.clear();
+            readFully(header, end);
+            int length = header.getInt(0);
+            if (length < 0 || end + FrameCodec.HEADER_SIZE + length + CRC_SIZE > size) {
+                break;
+            }
+            
+            ByteBuffer record = ByteBuffer.allocate(length + CRC_SIZE);
+            readFully(record, end + FrameCodec.HEADER_SIZE);
+            crc.reset();
+            crc.update(record.array(), 0, length);
+            if ((int) crc.getValue() != record.getInt(length)) {
+                break;
+            }
+            
+            end += FrameCodec.HEADER_SIZE + length + CRC_SIZE;
+            index.putInt(count * ENTRY_SIZE, (int) end);
+            count++;
+        }
+        
+        data.truncate(end);
+        for (int i = count; i < maxEntries && index.getInt(i * ENTRY_SIZE) != 0; i++) {
+            index.putInt(i * ENTRY_SIZE, 0);
+        }
+    }
+    
+    /**
+     * Whether a record of the given frame size still fits. An empty segment always takes one record.
+     */
+    boolean hasRoom(int frameSize, long maxBytes) {
+        return count < maxEntries && (count == 0 || end + frameSize + CRC_SIZE <= maxBytes);
+    }
+    
+    /**
+     * Appends one encoded frame. Writer thread only.
+     */
+    void append(byte[] frame) throws IOException {
+        crc.reset();
+        crc.update(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE);
+        crcBuffer.clear();
+        crcBuffer.putInt(0, (int) crc.getValue());
+        
+        ByteBuffer[] record = { ByteBuffer.wrap(frame), crcBuffer };
+        long written = 0;
+        data.position(end);
+        while (written < frame.length + CRC_SIZE) {
+            written += data.write(record);
+        }
+        
+        end += written;
+        index.putInt(count * ENTRY_SIZE, (int) end);
+        count++; // Publishes the entry to readers
+    }
+    
+    /**
+     * Forces appended records to disk; called once per batch, not per record
+     */
+    void sync() throws IOException {
+        data.force(false);
+    }
+    
+    /**
+     * Adds the records with sequence numbers from..to (inclusive) to messages, oldest first
+     */
+    void read(long from, long to, List<Message> messages) throws IOException {
+        int first = (int) (from - baseSequence);
+        int last = (int) (to - baseSequence);
+        long start = first == 0 ? 0 : index.getInt((first - 1) * ENTRY_SIZE);
+        long stop = index.getInt(last * ENTRY_SIZE);
+        
+        ByteBuffer bytes = ByteBuffer.allocate((int) (stop - start));
+        readFully(bytes, start);
+        
+        int position = 0;
+        while (position < bytes.capacity()) {
+            int length = bytes.getInt(position);
+            messages.add(FrameCodec.BINARY.decode(bytes.array(), position + FrameCodec.HEADER_SIZE, length));
+            position += FrameCodec.HEADER_SIZE + length + CRC_SIZE;
+        }
+    }
+    
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + dataPath.getFileName());
+            }
+        }
+    }
+    
+    long getBaseSequence() {
+        return baseSequence;
+    }
+    
+    /**
+     * Sequence number the next record appended here would get
+     */
+    long getNextSequence() {
+        return baseSequence + count;
+    }
+    
+    int getCount() {
+        return count;
+    }
+    
+    void close() throws IOException {
+        data.close();
+        indexChannel.close();
+    }
+    
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(dataPath);
+        Files.deleteIfExists(indexPath);
+    }
+}
@@ -0,0 +1,230 @@
+package server;
+
+import shared.Constants;
+import shared.FrameCodec;
+import shared.Message;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent history of room messages, one segmented RoomLog per room under the history directory.
+ *
+ * append() only puts the message on a queue, so broadcasting never waits for the disk. A single writer
+ * thread drains whatever has queued up, appends it all and then syncs each touched room log once:
+ * under load one fsync covers a whole batch of messages (group commit).
+ *
+ * A room's log is opened when the room first has something to write or read, and closed again once
+ * it has gone unused for IDLE_CLOSE_NANOS, or when more than MAX_OPEN_ROOMS are open, least recently
+ * used first. Each open log holds file handles and mapped indexes, so rooms that were joined once and
+ * then went quiet don't keep theirs forever.
+ */
+class MessageLog {
+    private static final long SEGMENT_BYTES = 8 * 1024 * 1024;
+    private static final int SEGMENT_ENTRIES = 128 * 1024;
+    private static final int MAX_SEGMENTS = 8; // per room
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_BATCH = 4096;
+    private static final int MAX_OPEN_ROOMS = 32;
+    private static final long IDLE_CLOSE_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final long IDLE_CHECK_SECONDS = 30;
+    
+    private static final EncodedMessage SHUTDOWN = new EncodedMessage(null);
+    
+    private final Path directory;
+    private final LinkedHashMap<String, OpenLog> rooms; // least recently used first; guarded by itself
+    private final BlockingQueue<EncodedMessage> queue;
+    private final Thread writer;
+    private final AtomicLong droppedCount;
+    private volatile long appendedCount;
+    private volatile long batchCount;
+    
+    MessageLog(Path directory) {
+        this.directory = directory;
+        this.rooms = new LinkedHashMap<>(16, 0.75f, true);
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.droppedCount = new AtomicLong();
+        this.writer = new Thread(this::writeLoop, "message-log-writer");
+        this.writer.setDaemon(true);
+    }
+    
+    MessageLog() {
+        this(Paths.get(Constants.HISTORY_DIRECTORY));
+    }
+    
+    void start() {
+        writer.start();
+    }
+    
+    /**
+     * Queues a room message for the log. Never blocks: if the disk has fallen this far behind,
+     * the message is left out of the history rather than holding up the chat.
+     */
+    void append(EncodedMessage message) {
+        if (!queue.offer(message)) {
+            if (droppedCount.incrementAndGet() == 1) {
+                System.err.println("Message log is falling behind; some messages will be missing from history");
+            }
+        }
+    }
+    
+    /**
+     * The last count messages logged in a room, oldest first. Messages still queued for the writer are not included.
+     */
+    List<Message> recent(String room, int count) {
+        try {
+            RoomLog log = roomLog(room, false);
+            return log != null ? log.readLast(count) : Collections.<Message>emptyList();
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error reading history for #" + room + ": " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+    
+    private void writeLoop() {
+        List<EncodedMessage> batch = new ArrayList<>();
+        Set<RoomLog> touched = new HashSet<>();
+        boolean running = true;
+        while (running) {
+            try {
+                EncodedMessage first = queue.poll(IDLE_CHECK_SECONDS, TimeUnit.SECONDS);
+                if (first == null) {
+                    closeIdle(); // Quiet; a good time to let go of rooms nobody writes to
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            
+            int appended = 0;
+            for (EncodedMessage message : batch) {
+                if (message == SHUTDOWN) {
+                    running = false;
+                    continue;
+                }
+                try {
+                    RoomLog log = roomLog(message.getMessage().getRoom(), true);
+                    // The binary frame doubles as the log record, and is then cached for binary clients
+                    log.append(message.getFrame(FrameCodec.BINARY));
+                    touched.add(log);
+                    appended++;
+                } catch (IOException | UncheckedIOException e) {
+                    System.err.println("Error writing message log: " + e.getMessage());
+                }
+            }
+            
+            for (RoomLog log : touched) {
+                try {
+                    log.sync();
+                } catch (IOException e) {
+                    System.err.println("Error syncing message log: " + e.getMessage());
+                }
+            }
+            appendedCount += appended;
+            batchCount++;
+            batch.clear();
+            touched.clear();
+            closeIdle();
+        }
+    }
+    
+    /**
+     * The room's log, opened if it isn't already. Without create, a room that has never logged
+     * anything gets null rather than a new empty log.
+     */
+    private RoomLog roomLog(String room, boolean create) throws IOException {
+        synchronized (rooms) {
+            OpenLog open = rooms.get(room);
+            if (open == null) {
+                Path path = directory.resolve(room);
+                if (!create && !Files.isDirectory(path)) {
+                    return null;
+                }
+                open = new OpenLog(new RoomLog(path, SEGMENT_BYTES, SEGMENT_ENTRIES, MAX_SEGMENTS));
+                rooms.put(room, open);
+            }
+            open.lastUsed = System.nanoTime();
+            return open.log;
+        }
+    }
+    
+    /**
+     * Closes the least recently used logs while there are too many open, and any left unused too long.
+     * Runs on the writer thread after a batch has been synced, so none of the closed logs has writes pending.
+     */
+    private void closeIdle() {
+        List<RoomLog> idle = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (rooms) {
+            Iterator<OpenLog> logs = rooms.values().iterator();
+            while (logs.hasNext()) {
+                OpenLog open = logs.next();
+                if (rooms.size() <= MAX_OPEN_ROOMS && now - open.lastUsed < IDLE_CLOSE_NANOS) {
+                    break; // Everything after this one was used more recently
+                }
+                logs.remove();
+                idle.add(open.log);
+            }
+        }
+        for (RoomLog log : idle) {
+            log.close();
+        }
+    }
+    
+    /**
+     * Writes out everything queued so far, then closes the room logs
+     */
+    void close() {
+        try {
+            queue.put(SHUTDOWN);
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (rooms) {
+            for (OpenLog open : rooms.values()) {
+                open.log.close();
+            }
+            rooms.clear();
+        }
+    }
+    
+    long getAppendedCount() {
+        return appendedCount;
+    }
+    
+    /**
+     * Number of group commits so far; appended / batches is the average batch size
+     */
+    long getBatchCount() {
+        return batchCount;
+    }
+    
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+    
+    private static class OpenLog {
+        final RoomLog log;
+        long lastUsed; // System.nanoTime(); guarded by rooms
+        
+        OpenLog(RoomLog log) {
+            this.log = log;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package server;
+
+import shared.Constants;
+import shared.FrameCodec;
+import shared.FrameCompressor;
+import shared.Message;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking transport for one client channel. Reads and writes only happen on the
+ * owning event loop, which is also the writer that drains the client's outbound queue.
+ */
+class NioConnection implements ClientTransport {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_GATHER = 64; // frames per gathering write
+    
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final AtomicBoolean flushScheduled;
+    private final ClientHandler handler;
+    private final ServerMetrics metrics;
+    private OutboundQueue outbound;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private final ByteBuffer[] pendingWrites; // frames pendingOffset..pendingCount-1 are still to be written
+    private int pendingOffset;
+    private int pendingCount;
+    private FileChannel pendingFile; // attachment being sent after the pending frames
+    private long pendingFilePosition;
+    private long pendingFileEnd;
+    private ByteBuffer pendingBlock; // compressed chunk of the attachment still to be written
+    private byte[] fileChunk;
+    private FrameCodec codec;
+    private FrameCompressor compressor; // null unless compression was negotiated
+    private volatile int features; // read by broadcasting threads
+    private boolean handshakeDone;
+    private boolean rejected;
+    
+    public NioConnection(SocketChannel channel, EventLoop loop, ChatServer server) {
+        this.channel = channel;
+        this.loop = loop;
+        this.flushScheduled = new AtomicBoolean();
+        this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.pendingWrites = new ByteBuffer[MAX_GATHER];
+        this.metrics = server.getMetrics();
+        this.handler = new ClientHandler(this, server); // Calls startWriter, so keep this last
+    }
+    
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+    
+    void handleRead() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                handler.disconnect(ServerMetrics.DisconnectReason.CLIENT_CLOSED);
+                closeChannel();
+                return;
+            }
+            metrics.bytesIn(read);
+            
+            readBuffer.flip();
+            if (!handshakeDone && !readHandshake()) {
+                return;
+            }
+            readFrames();
+        } catch (IOException e) {
+            readFailed(e);
+        }
+    }
+    
+    private void readFailed(IOException e) {
+        if (handler.isConnected()) {
+            System.err.println("Error reading message from " + handler.getUsername() + ": " + e.getMessage());
+        }
+        handler.disconnect(ServerMetrics.DisconnectReason.READ_ERROR);
+        closeChannel();
+    }
+    
+    /**
+     * Drops this client after handling its channel failed unexpectedly. Runs on the event loop only.
+     */
+    void abort(RuntimeException e) {
+        System.err.println("Error handling client " + handler.getUsername() + ": " + e);
+        try {
+            handler.disconnect(ServerMetrics.DisconnectReason.READ_ERROR);
+        } finally {
+            closeChannel();
+        }
+    }
+    
+    private boolean readHandshake() throws IOException {
+        if (readBuffer.remaining() >= FrameCodec.HEADER_SIZE && readBuffer.getInt(readBuffer.position()) != FrameCodec.MAGIC) {
+            rejectLegacyClient();
+            return false;
+        }
+        if (readBuffer.remaining() < FrameCodec.HANDSHAKE_SIZE) {
+            readBuffer.compact();
+            return false;
+        }
+        
+        readBuffer.getInt(); // magic
+        int accepted = handler.acceptFeatures(readBuffer.getInt());
+        codec = FrameCodec.forFeatures(accepted);
+        features = accepted;
+        if ((accepted & FrameCodec.FEATURE_COMPRESSION) != 0) {
+            compressor = new FrameCompressor(metrics.getCompressionStats());
+        }
+        handshakeDone = true;
+        
+        // Nothing can be queued before login, so the reply goes out first
+        ByteBuffer reply = ByteBuffer.allocate(FrameCodec.HANDSHAKE_SIZE);
+        reply.putInt(FrameCodec.MAGIC).putInt(accepted);
+        reply.flip();
+        pendingWrites[pendingCount++] = reply;
+        flush();
+        return true;
+    }
+    
+    /**
+     * Hands every whole frame in the buffer to the handler. Stops reading the channel while the handler
+     * waits for its login to be granted or a file write, keeping the frames that came after for resumeReading.
+     */
+    private void readFrames() throws IOException {
+        while (readBuffer.remaining() >= FrameCodec.HEADER_SIZE && handler.isConnected() && !handler.isReadingPaused()) {
+            int length = readBuffer.getInt(readBuffer.position());
+            FrameCodec.checkLength(length);
+            
+            if (readBuffer.remaining() < FrameCodec.HEADER_SIZE + length) {
+                break; // Wait for the rest of the frame
+            }
+            
+            readBuffer.position(readBuffer.position() + FrameCodec.HEADER_SIZE);
+            Message message = codec.decode(readBuffer.array(), readBuffer.position(), length, compressor);
+            readBuffer.position(readBuffer.position() + length);
+            handler.handleIncoming(message);
+        }
+        
+        if (!handler.isConnected()) {
+            readBuffer.clear(); // Anything left is from a client we already dropped
+            return;
+        }
+        prepareReadBuffer();
+        if (handler.isReadingPaused()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+    
+    /**
+     * Reads again after a pending login or file write finished, starting with the frames that were already buffered
+     */
+    private void resumeReading() {
+        if (!key.isValid() || !handler.isConnected() || handler.isReadingPaused() || (key.interestOps() & SelectionKey.OP_READ) != 0) {
+            return; // Not paused, or nothing left to read for
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        readBuffer.flip();
+        try {
+            readFrames();
+        } catch (IOException e) {
+            readFailed(e);
+        }
+    }
+    
+    /**
+     * Leaves the buffer ready for the next read, growing it for a large pending frame
+     * and dropping back to the initial size once that frame has been consumed.
+     */
+    private void prepareReadBuffer() {
+        int needed = INITIAL_BUFFER_SIZE;
+        if (readBuffer.remaining() >= FrameCodec.HEADER_SIZE) {
+            needed = Math.max(needed, FrameCodec.HEADER_SIZE + readBuffer.getInt(readBuffer.position()));
+        }
+        
+        if (needed != readBuffer.capacity() && readBuffer.remaining() <= needed) {
+            ByteBuffer resized = ByteBuffer.allocate(needed);
+            resized.put(readBuffer);
+            readBuffer = resized;
+        } else {
+            readBuffer.compact();
+        }
+    }
+    
+    /**
+     * Old clients speak a raw ObjectOutputStream stream, which this engine cannot split into
+     * messages without blocking. Tell them in their own format and hang up.
+     */
+    private void rejectLegacyClient() throws IOException {
+        Message message = new Message("This server requires an updated ChatWave client.",
+                                      Constants.SERVER_NAME,
+                                      Message.MessageType.SERVER_MESSAGE);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(message);
+        }
+        
+        key.interestOps(0); // Stop reading; flush() re-enables writes as needed
+        pendingWrites[pendingCount++] = ByteBuffer.wrap(bytes.toByteArray());
+        rejected = true;
+        handler.disconnect(ServerMetrics.DisconnectReason.LOGIN_REFUSED);
+        flush();
+    }
+    
+    @Override
+    public int getFeatures() {
+        return features;
+    }
+    
+    /**
+     * Runs the task on this connection's event loop, then picks reading back up if it waited on the task
+     */
+    @Override
+    public void execute(Runnable task) {
+        loop.execute(() -> {
+            task.run();
+            resumeReading();
+        });
+    }
+    
+    @Override
+    public void startWriter(OutboundQueue queue) {
+        outbound = queue;
+        queue.setReadyListener(this::scheduleFlush);
+    }
+    
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            long delay = outbound.getFlushDelayNanos();
+            if (delay > 0 && !outbound.isClosed()) {
+                loop.schedule(this::flush, delay); // Let more messages join this write
+            } else {
+                loop.execute(this::flush);
+            }
+        }
+    }
+    
+    /**
+     * Writes queued messages until the socket buffer is full, then waits for OP_WRITE.
+     * Queued frames are gathered up to flushBytes and written with one gathering write.
+     * Closes the channel once the queue has been closed and drained. Runs on the event loop only.
+     */
+    void flush() {
+        flushScheduled.set(false); // Messages queued from here on schedule another pass
+        if (!key.isValid()) {
+            closeChannel();
+            return;
+        }
+        
+        try {
+            while (true) {
+                if (pendingOffset == pendingCount && pendingFile == null && !gather()) {
+                    break;
+                }
+                
+                if (pendingOffset < pendingCount) {
+                    metrics.bytesOut(channel.write(pendingWrites, pendingOffset, pendingCount - pendingOffset));
+                    outbound.recordWrite();
+                    while (pendingOffset < pendingCount && !pendingWrites[pendingOffset].hasRemaining()) {
+                        pendingWrites[pendingOffset++] = null;
+                    }
+                    if (pendingOffset < pendingCount) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    pendingOffset = 0;
+                    pendingCount = 0;
+                }
+                
+                if (pendingFile != null && !writeAttachment()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (rejected || outbound.isClosed()) {
+                closeChannel();
+            }
+        } catch (IOException e) {
+            closeChannel();
+            if (handler.isConnected()) {
+                System.err.println("Error sending message to " + handler.getUsername() + ": " + e.getMessage());
+                metrics.sendFailure();
+                handler.disconnect(ServerMetrics.DisconnectReason.WRITE_ERROR);
+            }
+        }
+    }
+    
+    /**
+     * Moves queued frames into pendingWrites until flushBytes are gathered. A frame with an
+     * attachment ends the batch, since the file has to follow it. Returns false if nothing was queued.
+     */
+    private boolean gather() throws IOException {
+        long gathered = 0;
+        while (pendingCount < pendingWrites.length && gathered < outbound.getFlushBytes()) {
+            EncodedMessage message = outbound.poll();
+            if (message == null) {
+                break;
+            }
+            byte[] bytes = message.getFrame(codec);
+            // Shared bytes with a private position, or this connection's own compressed copy of them
+            ByteBuffer frame = ByteBuffer.wrap(compressor != null ? compressor.compress(bytes) : bytes);
+            pendingWrites[pendingCount++] = frame;
+            metrics.messageOut(message.getMessage());
+            gathered += frame.remaining();
+            if (message.getAttachment() != null) {
+                openAttachment(message);
+                break;
+            }
+        }
+        return pendingCount > 0;
+    }
+    
+    private void openAttachment(EncodedMessage message) throws IOException {
+        pendingFile = FileChannel.open(message.getAttachment(), StandardOpenOption.READ);
+        pendingFilePosition = 0;
+        pendingFileEnd = message.getMessage().getFileSize();
+        if (pendingFile.size() < pendingFileEnd) {
+            throw new IOException("Attachment is shorter than announced");
+        }
+    }
+    
+    /**
+     * Sends the attachment with transferTo, so the kernel copies file pages straight to the socket
+     * without them passing through the heap. Returns false if the socket filled up first.
+     */
+    private boolean writeAttachment() throws IOException {
+        if (compressor != null) {
+            return writeCompressedAttachment();
+        }
+        while (pendingFilePosition < pendingFileEnd) {
+            long sent = pendingFile.transferTo(pendingFilePosition, pendingFileEnd - pendingFilePosition, channel);
+            if (sent == 0) {
+                return false;
+            }
+            metrics.bytesOut(sent);
+            pendingFilePosition += sent;
+        }
+        
+        pendingFile.close();
+        pendingFile = null;
+        return true;
+    }
+    
+    /**
+     * Sends the attachment as one compressed frame per chunk. The file has to pass through the heap
+     * for that, so compressed connections trade transferTo's zero-copy for fewer bytes on the wire.
+     */
+    private boolean writeCompressedAttachment() throws IOException {
+        while (true) {
+            if (pendingBlock != null) {
+                metrics.bytesOut(channel.write(pendingBlock));
+                if (pendingBlock.hasRemaining()) {
+                    return false;
+                }
+                pendingBlock = null;
+            }
+            if (pendingFilePosition >= pendingFileEnd) {
+                break;
+            }
+            
+            if (fileChunk == null) {
+                fileChunk = new byte[Constants.FILE_CHUNK_SIZE];
+            }
+            ByteBuffer chunk = ByteBuffer.wrap(fileChunk, 0, (int) Math.min(fileChunk.length, pendingFileEnd - pendingFilePosition));
+            while (chunk.hasRemaining()) {
+                if (pendingFile.read(chunk, pendingFilePosition + chunk.position()) < 0) {
+                    throw new IOException("Attachment is shorter than announced");
+                }
+            }
+            pendingBlock = ByteBuffer.wrap(compressor.compress(fileChunk, 0, chunk.position()));
+            pendingFilePosition += chunk.position();
+        }
+        
+        pendingFile.close();
+        pendingFile = null;
+        fileChunk = null;
+        return true;
+    }
+    
+    private void closeChannel() {
+        EventLoop.closeQuietly(channel);
+        pendingBlock = null;
+        if (compressor != null) {
+            compressor.closeOutput(); // Both sides run on this loop, so nothing is using them now
+            compressor.closeInput();
+        }
+        FileChannel file = pendingFile;
+        if (file != null) {
+            pendingFile = null;
+            EventLoop.closeQuietly(file);
+        }
+    }
+    
+    @Override
+    public void close() {
+        EventLoop.closeQuietly(channel);
+    }
+}
@@ -0,0 +1,68 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking server engine: accepted channels are spread round-robin over a fixed set
+ * of selector event loops, so thread count follows the core count instead of the client count.
+ */
+class NioServer {
+    private final ChatServer server;
+    private final int port;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean isRunning;
+    
+    public NioServer(ChatServer server, int port, int loopCount) {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+    }
+    
+    /**
+     * Opens the listening channel, starts the event loops and accepts clients on the calling thread.
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        isRunning = true;
+        
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(server);
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.start();
+        }
+        System.out.println("NIO engine running " + loops.length + " event loops");
+        
+        int next = 0;
+        while (isRunning) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.socket().setKeepAlive(true); // The only check on clients too old for heartbeats
+                System.out.println("New client connected: " + channel.socket().getInetAddress());
+                
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (isRunning) {
+                    System.err.println("Error accepting client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    public void stop() throws IOException {
+        isRunning = false;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+}
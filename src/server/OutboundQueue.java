@@ -0,0 +1,269 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of messages waiting to be written to one client. Senders only enqueue;
+ * the client's own writer drains it, so a stalled socket never blocks a broadcast.
+ * The queue also carries the flush limits its writer coalesces frames with, and counts the writes.
+ */
+public class OutboundQueue {
+    /**
+     * What to do when a client falls so far behind that its queue is full
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST, // discard the oldest queued message to make room
+        DISCONNECT,  // drop the client
+        BLOCK        // wait up to the block timeout for room, then drop the client
+    }
+    
+    private final ArrayDeque<EncodedMessage> messages;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMillis;
+    private final int flushBytes;
+    private final long flushDelayNanos;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final Condition notFull;
+    private final AtomicLong enqueuedCount;
+    private final AtomicLong droppedCount;
+    private final AtomicLong writeCount;
+    private volatile int highWaterMark;
+    private volatile boolean closed;
+    private volatile Runnable readyListener;
+    
+    public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis, 
+                         int flushBytes, long flushDelayMicros) {
+        this.messages = new ArrayDeque<>(Math.min(capacity, 64));
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.flushBytes = flushBytes;
+        this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(flushDelayMicros);
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.notFull = lock.newCondition();
+        this.enqueuedCount = new AtomicLong();
+        this.droppedCount = new AtomicLong();
+        this.writeCount = new AtomicLong();
+    }
+    
+    /**
+     * Queues a message according to the overflow policy.
+     * Returns false if the client is too slow and should be dropped.
+     */
+    public boolean offer(EncodedMessage message) {
+        return enqueue(message, true);
+    }
+    
+    /**
+     * Queues a message if that needs no waiting and doesn't mean dropping the client, for senders
+     * holding a lock. Returns false when the queue is full under BLOCK or DISCONNECT; offer then
+     * applies the policy.
+     */
+    public boolean offerNow(EncodedMessage message) {
+        return enqueue(message, false);
+    }
+    
+    private boolean enqueue(EncodedMessage message, boolean applyPolicy) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true; // Client is on its way out, nothing to do
+            }
+            
+            if (messages.size() >= capacity) {
+                if (!applyPolicy && policy != OverflowPolicy.DROP_OLDEST) {
+                    return false;
+                }
+                switch (policy) {
+                    case DROP_OLDEST:
+                        messages.pollFirst();
+                        droppedCount.incrementAndGet();
+                        break;
+                    case BLOCK:
+                        if (!awaitRoom()) {
+                            droppedCount.incrementAndGet();
+                            return false;
+                        }
+                        break;
+                    default:
+                        droppedCount.incrementAndGet();
+                        return false;
+                }
+            }
+            
+            messages.addLast(message);
+            enqueuedCount.incrementAndGet();
+            if (messages.size() > highWaterMark) {
+                highWaterMark = messages.size();
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        
+        Runnable listener = readyListener;
+        if (listener != null) {
+            listener.run();
+        }
+        return true;
+    }
+    
+    private boolean awaitRoom() {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        try {
+            while (messages.size() >= capacity && !closed) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !closed;
+    }
+    
+    /**
+     * Waits for the next message. Returns null once the queue is closed and drained.
+     */
+    public EncodedMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Waits up to the given time for the next message. Returns null if none arrived in time,
+     * or once the queue is closed and drained.
+     */
+    public EncodedMessage poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = timeoutNanos;
+            while (messages.isEmpty() && !closed && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the next message without waiting, or null if there is none.
+     */
+    public EncodedMessage poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private EncodedMessage removeFirst() {
+        EncodedMessage message = messages.pollFirst();
+        if (message != null) {
+            notFull.signal();
+        }
+        return message;
+    }
+    
+    /**
+     * Stops accepting messages. Whatever is already queued can still be drained.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        
+        Runnable listener = readyListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+    
+    public boolean isClosed() {
+        return closed;
+    }
+    
+    /**
+     * Registers a callback run after every offer and on close, for writers that don't block in take().
+     */
+    public void setReadyListener(Runnable readyListener) {
+        this.readyListener = readyListener;
+    }
+    
+    public int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * Bytes of frames the writer gathers before it writes them out as one
+     */
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+    
+    /**
+     * How long the writer may hold the first frame of a batch while waiting for more; 0 writes as soon as the queue is empty
+     */
+    public long getFlushDelayNanos() {
+        return flushDelayNanos;
+    }
+    
+    /**
+     * Called by the writer for every socket write of queued frames
+     */
+    void recordWrite() {
+        writeCount.incrementAndGet();
+    }
+    
+    /**
+     * Socket writes made so far; divided by getEnqueuedCount() it gives writes per message.
+     * Streaming a file attachment is not counted.
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+    
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+    
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+    
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
@@ -0,0 +1,132 @@
+package server;
+
+import shared.FrameCodec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An established TCP link to another node of the cluster, after the hello exchange.
+ * Frames are queued and written by the link's own writer thread, so a relay never waits on
+ * the network; a reader thread hands every incoming frame to the ClusterNode. A peer that
+ * falls a whole queue behind is disconnected and catches up from the relay ring when it redials.
+ */
+class PeerLink {
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final byte[] CLOSE = new byte[0];
+    
+    private final ClusterNode cluster;
+    private final int node;
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final BlockingQueue<byte[]> outbound;
+    private volatile boolean closed;
+    
+    PeerLink(ClusterNode cluster, int node, Socket socket, DataInputStream input, DataOutputStream output) {
+        this.cluster = cluster;
+        this.node = node;
+        this.socket = socket;
+        this.input = input;
+        this.output = output;
+        this.outbound = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    }
+    
+    /**
+     * The peer's position in the member list, counting from 0
+     */
+    int getNode() {
+        return node;
+    }
+    
+    void start() {
+        Thread reader = new Thread(this::readLoop, "cluster-reader-" + (node + 1));
+        reader.setDaemon(true);
+        reader.start();
+        Thread writer = new Thread(this::writeLoop, "cluster-writer-" + (node + 1));
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Queues a complete frame (length prefix included). The same array may go to every peer.
+     */
+    void send(byte[] frame) {
+        if (!closed && !outbound.offer(frame)) {
+            System.err.println("Cluster node " + (node + 1) + " is too far behind, dropping the link");
+            close();
+        }
+    }
+    
+    private void readLoop() {
+        try {
+            while (!closed) {
+                int length = input.readInt();
+                FrameCodec.checkLength(length);
+                byte[] body = new byte[length];
+                input.readFully(body);
+                cluster.received(this, body);
+            }
+        } catch (EOFException e) {
+            if (!closed) {
+                System.err.println("Lost cluster node " + (node + 1) + ": it closed the link");
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Lost cluster node " + (node + 1) + ": " + e.getMessage());
+            }
+        } finally {
+            close();
+            cluster.linkLost(this);
+        }
+    }
+    
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch);
+                for (byte[] frame : batch) {
+                    if (frame == CLOSE) {
+                        return;
+                    }
+                    output.write(frame);
+                }
+                batch.clear();
+                output.flush();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Error writing to cluster node " + (node + 1) + ": " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+    
+    /**
+     * Closes the socket, which ends both threads. Safe to call more than once.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbound.clear();
+        outbound.offer(CLOSE);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
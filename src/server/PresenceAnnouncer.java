@@ -0,0 +1,237 @@
+package server;
+
+import shared.Constants;
+import shared.Message;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Announces logins and logouts to everyone. While they are rare each one is broadcast as it happens,
+ * as "alice joined the chat". Once they arrive faster than the configured rate, e.g. when thousands
+ * of clients reconnect after a restart, they are only counted and a digest ("42 users joined, 3 left")
+ * goes out once per interval instead. Every login broadcast goes to every client, so a storm of n logins
+ * would otherwise cost about n * n / 2 messages. The roster feed's PRESENCE deltas are held back the same
+ * way and go out with the digest, as one PRESENCE batch holding each changed user's latest state.
+ *
+ * Individual announcements resume once a digest interval passes below the rate.
+ */
+class PresenceAnnouncer {
+    private final ChatServer server;
+    private final int maxEventsPerSecond; // 0: never coalesce
+    private final long intervalMillis;
+    private final Thread flusher;
+    private final AtomicLong savedMessages;
+    private final AtomicLong digestCount;
+    
+    // Guarded by this
+    private long windowStart;
+    private int windowEvents;
+    private int pendingJoins;
+    private int pendingLeaves;
+    private Map<String, Delta> pendingDeltas; // latest held-back PRESENCE change per user
+    private long pendingRecipients; // messages the pending events would have cost one by one
+    private boolean coalescing;
+    private boolean running;
+    
+    PresenceAnnouncer(ChatServer server, int maxEventsPerSecond, long intervalMillis) {
+        this.server = server;
+        this.maxEventsPerSecond = maxEventsPerSecond;
+        this.intervalMillis = intervalMillis;
+        this.savedMessages = new AtomicLong();
+        this.digestCount = new AtomicLong();
+        this.pendingDeltas = new HashMap<>();
+        this.flusher = new Thread(this::flushLoop, "presence-digest");
+        this.flusher.setDaemon(true);
+    }
+    
+    void start() {
+        if (maxEventsPerSecond > 0) {
+            running = true;
+            flusher.start();
+        }
+    }
+    
+    void stop() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+    }
+    
+    void joined(String username, int recipients) {
+        if (!coalesce(true, recipients)) {
+            server.broadcastMessage(new Message(username + " joined the chat",
+                                              Constants.SERVER_NAME,
+                                              Message.MessageType.USER_JOIN), null);
+        }
+    }
+    
+    void left(String username, int recipients) {
+        if (!coalesce(false, recipients)) {
+            server.broadcastMessage(new Message(username + " left the chat",
+                                              Constants.SERVER_NAME,
+                                              Message.MessageType.USER_LEAVE), null);
+        }
+    }
+    
+    /**
+     * Counts the event against the rate and, if the rate is exceeded or a digest is already
+     * being collected, adds it to the digest. Returns false if it should be announced now.
+     */
+    private synchronized boolean coalesce(boolean join, int recipients) {
+        if (!running) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= 1000) {
+            windowStart = now;
+            windowEvents = 0;
+        }
+        windowEvents++;
+        if (!coalescing && windowEvents <= maxEventsPerSecond) {
+            return false;
+        }
+        
+        if (!coalescing) {
+            coalescing = true;
+            notifyAll(); // Start the digest interval
+        }
+        if (join) {
+            pendingJoins++;
+        } else {
+            pendingLeaves++;
+        }
+        pendingRecipients += recipients;
+        return true;
+    }
+    
+    /**
+     * Holds back a roster delta for the next digest while a storm is being coalesced, so every roster
+     * client gets one batch per interval instead of one delta per event. recipients is the number of
+     * clients the delta would have gone to. Returns false if it should be sent now.
+     */
+    synchronized boolean deferPresence(String username, boolean online, long version, int recipients) {
+        if (!running || !coalescing) {
+            return false;
+        }
+        Delta known = pendingDeltas.get(username);
+        if (known == null || known.version < version) {
+            pendingDeltas.put(username, new Delta(online, version));
+        }
+        pendingRecipients += recipients;
+        return true;
+    }
+    
+    private void flushLoop() {
+        try {
+            while (true) {
+                int joins;
+                int leaves;
+                Map<String, Delta> deltas;
+                long recipients;
+                synchronized (this) {
+                    while (running && !coalescing) {
+                        wait();
+                    }
+                    if (!running) {
+                        return;
+                    }
+                    wait(intervalMillis);
+                    joins = pendingJoins;
+                    leaves = pendingLeaves;
+                    deltas = pendingDeltas;
+                    recipients = pendingRecipients;
+                    pendingJoins = 0;
+                    pendingLeaves = 0;
+                    pendingDeltas = new HashMap<>();
+                    pendingRecipients = 0;
+                    // Keep collecting while the storm lasts; a quiet interval brings back one-by-one announcements
+                    coalescing = joins + leaves > maxEventsPerSecond * intervalMillis / 1000;
+                }
+                if (joins + leaves > 0 || !deltas.isEmpty()) {
+                    sendDigest(joins, leaves, deltas, recipients);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void sendDigest(int joins, int leaves, Map<String, Delta> deltas, long recipients) {
+        long sent = 0;
+        if (joins + leaves > 0) {
+            sent += server.announce(new Message(describe(joins, leaves),
+                                              Constants.SERVER_NAME,
+                                              Message.MessageType.SERVER_MESSAGE));
+        }
+        if (!deltas.isEmpty()) {
+            sent += server.sendPresenceBatch(describe(deltas), maxVersion(deltas));
+        }
+        long saved = recipients - sent;
+        savedMessages.addAndGet(saved);
+        digestCount.incrementAndGet();
+        System.out.println("Presence digest: " + joins + " joined, " + leaves + " left, " + deltas.size() + 
+                         " roster changes, " + saved + " messages saved. Total users: " + server.getOnlineCount());
+    }
+    
+    /**
+     * A PRESENCE batch's content: one "+version username" or "-version username" line per user
+     */
+    private static String describe(Map<String, Delta> deltas) {
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, Delta> delta : deltas.entrySet()) {
+            if (lines.length() > 0) {
+                lines.append('\n');
+            }
+            lines.append(delta.getValue().online ? Message.PRESENCE_ONLINE : Message.PRESENCE_OFFLINE)
+                 .append(delta.getValue().version).append(' ').append(delta.getKey());
+        }
+        return lines.toString();
+    }
+    
+    private static long maxVersion(Map<String, Delta> deltas) {
+        long version = 0;
+        for (Delta delta : deltas.values()) {
+            version = Math.max(version, delta.version);
+        }
+        return version;
+    }
+    
+    private static String describe(int joins, int leaves) {
+        StringBuilder text = new StringBuilder();
+        if (joins > 0) {
+            text.append(joins).append(joins == 1 ? " user joined" : " users joined");
+        }
+        if (leaves > 0) {
+            if (text.length() > 0) {
+                text.append(", ").append(leaves).append(" left");
+            } else {
+                text.append(leaves).append(leaves == 1 ? " user left" : " users left");
+            }
+        }
+        return text.toString();
+    }
+    
+    /**
+     * Messages not sent because their events went into digests: what the announcements and roster deltas
+     * would have cost one by one, less the digests and PRESENCE batches actually queued
+     */
+    long getSavedMessageCount() {
+        return savedMessages.get();
+    }
+    
+    long getDigestCount() {
+        return digestCount.get();
+    }
+    
+    private static class Delta {
+        final boolean online;
+        final long version;
+        
+        Delta(boolean online, long version) {
+            this.online = online;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Who is online. A username is claimed with one atomic putIfAbsent, so logins never wait on a
+ * server-wide lock. Alongside the map sits an immutable snapshot of the online clients that
+ * broadcasts iterate without any locking; it is replaced (copy-on-write) only when someone
+ * logs in or out.
+ *
+ * Every replacement bumps the presence version and is reported to the listener, which turns it
+ * into a roster delta for clients. Since nothing is locked, listeners for different users can run
+ * concurrently and deltas may reach a client out of version order.
+ *
+ * In a cluster the registry also lists the users logged in on other nodes, by name and node only.
+ * They count towards the presence version and the roster, but broadcasts only ever see local clients.
+ */
+class PresenceRegistry {
+    /**
+     * Told about every change, by the thread that made it
+     */
+    interface Listener {
+        void presenceChanged(String username, boolean online, long version);
+    }
+    
+    /**
+     * The online clients at one presence version
+     */
+    static final class Snapshot {
+        private final long version;
+        private final List<ClientHandler> clients;
+        private final List<String> remoteUsernames;
+        
+        private Snapshot(long version, List<ClientHandler> clients, List<String> remoteUsernames) {
+            this.version = version;
+            this.clients = clients;
+            this.remoteUsernames = remoteUsernames;
+        }
+        
+        long getVersion() {
+            return version;
+        }
+        
+        /**
+         * Everyone online on this node, in login order. The list never changes.
+         */
+        List<ClientHandler> getClients() {
+            return clients;
+        }
+        
+        /**
+         * Users logged in on other nodes of the cluster. The list never changes.
+         */
+        List<String> getRemoteUsernames() {
+            return remoteUsernames;
+        }
+    }
+    
+    private final ConcurrentMap<String, ClientHandler> byUsername;
+    private final ConcurrentMap<String, Integer> remote; // username -> cluster node it is logged in on
+    private final AtomicReference<Snapshot> snapshot;
+    private final Listener listener;
+    
+    PresenceRegistry(Listener listener) {
+        this.byUsername = new ConcurrentHashMap<>();
+        this.remote = new ConcurrentHashMap<>();
+        this.snapshot = new AtomicReference<>(new Snapshot(0, Collections.<ClientHandler>emptyList(), 
+                                                           Collections.<String>emptyList()));
+        this.listener = listener;
+    }
+    
+    /**
+     * Claims the username for a client. Returns false if it is already taken.
+     */
+    boolean register(String username, ClientHandler clientHandler) {
+        if (byUsername.putIfAbsent(username, clientHandler) != null) {
+            return false;
+        }
+        addToSnapshot(clientHandler);
+        if (byUsername.get(username) != clientHandler) {
+            removeFromSnapshot(clientHandler); // Unregistered while we were adding it
+        }
+        return true;
+    }
+    
+    /**
+     * Releases the client's username. Returns false if the client was not registered,
+     * e.g. because its login was refused; the name then belongs to someone else.
+     */
+    boolean unregister(String username, ClientHandler clientHandler) {
+        if (username == null || !byUsername.remove(username, clientHandler)) {
+            return false;
+        }
+        removeFromSnapshot(clientHandler);
+        return true;
+    }
+    
+    private void addToSnapshot(ClientHandler clientHandler) {
+        Snapshot current;
+        Snapshot updated;
+        do {
+            current = snapshot.get();
+            List<ClientHandler> clients = new ArrayList<>(current.clients.size() + 1);
+            clients.addAll(current.clients);
+            clients.add(clientHandler);
+            updated = new Snapshot(current.version + 1, Collections.unmodifiableList(clients), current.remoteUsernames);
+        } while (!snapshot.compareAndSet(current, updated));
+        listener.presenceChanged(clientHandler.getUsername(), true, updated.version);
+    }
+    
+    private void removeFromSnapshot(ClientHandler clientHandler) {
+        Snapshot current;
+        Snapshot updated;
+        do {
+            current = snapshot.get();
+            if (!current.clients.contains(clientHandler)) {
+                return;
+            }
+            List<ClientHandler> clients = new ArrayList<>(current.clients);
+            clients.remove(clientHandler);
+            updated = new Snapshot(current.version + 1, Collections.unmodifiableList(clients), current.remoteUsernames);
+        } while (!snapshot.compareAndSet(current, updated));
+        listener.presenceChanged(clientHandler.getUsername(), false, updated.version);
+    }
+    
+    /**
+     * Lists a user logged in on another node. Returns false if the name is taken here.
+     */
+    boolean registerRemote(String username, int node) {
+        if (byUsername.containsKey(username)) {
+            return false;
+        }
+        Integer previous = remote.put(username, node);
+        if (previous == null) {
+            changeRemote(username, true);
+            if (!remote.containsKey(username)) {
+                changeRemote(username, false); // Unregistered while we were adding it
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Removes a user listed by registerRemote, unless they have since turned up on a different node
+     */
+    boolean unregisterRemote(String username, int node) {
+        if (!remote.remove(username, node)) {
+            return false;
+        }
+        changeRemote(username, false);
+        return true;
+    }
+    
+    /**
+     * Removes every user listed for a node, e.g. once it can no longer be reached
+     */
+    void unregisterNode(int node) {
+        for (Map.Entry<String, Integer> entry : remote.entrySet()) {
+            if (entry.getValue() == node) {
+                unregisterRemote(entry.getKey(), node);
+            }
+        }
+    }
+    
+    private void changeRemote(String username, boolean online) {
+        Snapshot current;
+        Snapshot updated;
+        do {
+            current = snapshot.get();
+            if (!online && !current.remoteUsernames.contains(username)) {
+                return;
+            }
+            List<String> usernames = new ArrayList<>(current.remoteUsernames);
+            if (online) {
+                usernames.add(username);
+            } else {
+                usernames.remove(username);
+            }
+            updated = new Snapshot(current.version + 1, current.clients, Collections.unmodifiableList(usernames));
+        } while (!snapshot.compareAndSet(current, updated));
+        listener.presenceChanged(username, online, updated.version);
+    }
+    
+    /**
+     * The online client with this username, or null
+     */
+    ClientHandler find(String username) {
+        return username == null ? null : byUsername.get(username);
+    }
+    
+    /**
+     * The cluster node a user on another node is logged in on, or -1
+     */
+    int findRemote(String username) {
+        Integer node = username == null ? null : remote.get(username);
+        return node == null ? -1 : node;
+    }
+    
+    /**
+     * Everyone online here, in login order. The list never changes; a later login or logout produces a new one.
+     */
+    List<ClientHandler> snapshot() {
+        return snapshot.get().clients;
+    }
+    
+    /**
+     * The online clients and remote users together with the version they belong to
+     */
+    Snapshot current() {
+        return snapshot.get();
+    }
+    
+    Set<String> getUsernames() {
+        Snapshot current = snapshot.get();
+        Set<String> usernames = new LinkedHashSet<>();
+        for (ClientHandler clientHandler : current.clients) {
+            usernames.add(clientHandler.getUsername());
+        }
+        usernames.addAll(current.remoteUsernames);
+        return usernames;
+    }
+    
+    int size() {
+        return snapshot.get().clients.size();
+    }
+}
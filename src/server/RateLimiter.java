@@ -0,0 +1,76 @@
+package server;
+
+/**
+ * Admission control for what one client sends: its own message and byte rates first, then the
+ * server-wide ones shared by every client. A message refused by one bucket gives back what it took
+ * from the others, so a busy server doesn't also use up a quiet user's allowance. A missing bucket
+ * means that limit is off.
+ */
+class RateLimiter {
+    /**
+     * Buckets hold this many seconds' worth of their rate, so short bursts such as a pasted
+     * paragraph still go through
+     */
+    static final int BURST_SECONDS = 2;
+    
+    /**
+     * Whether a message may go ahead, and if not, whose limit it broke
+     */
+    enum Verdict {
+        ADMITTED, USER_LIMIT, SERVER_LIMIT
+    }
+    
+    private final TokenBucket userMessages;
+    private final TokenBucket userBytes;
+    private final TokenBucket serverMessages;
+    private final TokenBucket serverBytes;
+    
+    RateLimiter(TokenBucket userMessages, TokenBucket userBytes, TokenBucket serverMessages, TokenBucket serverBytes) {
+        this.userMessages = userMessages;
+        this.userBytes = userBytes;
+        this.serverMessages = serverMessages;
+        this.serverBytes = serverBytes;
+    }
+    
+    /**
+     * A bucket for the given rate, or null if the rate is 0 (no limit)
+     */
+    static TokenBucket bucket(long perSecond) {
+        return perSecond > 0 ? new TokenBucket(perSecond, perSecond * BURST_SECONDS) : null;
+    }
+    
+    /**
+     * Takes a message's weight (1 for most messages) and size in bytes from every bucket, or from none
+     */
+    Verdict admit(long weight, long bytes) {
+        if (!take(userMessages, weight)) {
+            return Verdict.USER_LIMIT;
+        }
+        if (!take(userBytes, bytes)) {
+            refund(userMessages, weight);
+            return Verdict.USER_LIMIT;
+        }
+        if (!take(serverMessages, weight)) {
+            refund(userMessages, weight);
+            refund(userBytes, bytes);
+            return Verdict.SERVER_LIMIT;
+        }
+        if (!take(serverBytes, bytes)) {
+            refund(userMessages, weight);
+            refund(userBytes, bytes);
+            refund(serverMessages, weight);
+            return Verdict.SERVER_LIMIT;
+        }
+        return Verdict.ADMITTED;
+    }
+    
+    private static boolean take(TokenBucket bucket, long tokens) {
+        return bucket == null || bucket.tryTake(tokens);
+    }
+    
+    private static void refund(TokenBucket bucket, long tokens) {
+        if (bucket != null) {
+            bucket.refund(tokens);
+        }
+    }
+}
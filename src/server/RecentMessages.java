@@ -0,0 +1,67 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A room's most recent messages, kept in memory in a fixed-size ring so joiners can catch up
+ * without touching the disk. The slots are allocated up front and the oldest message is
+ * overwritten once the ring is full, so a room never holds more than capacity messages.
+ *
+ * Writers claim a sequence number with one atomic increment and publish into its slot with a CAS,
+ * so concurrent broadcasts never wait on each other or on readers.
+ */
+class RecentMessages {
+    private static final class Entry {
+        final long sequence;
+        final EncodedMessage message;
+        
+        Entry(long sequence, EncodedMessage message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+    
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLong nextSequence;
+    
+    RecentMessages(int capacity) {
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.nextSequence = new AtomicLong();
+    }
+    
+    void add(EncodedMessage message) {
+        long sequence = nextSequence.getAndIncrement();
+        int slot = (int) (sequence % slots.length());
+        Entry entry = new Entry(sequence, message);
+        while (true) {
+            Entry current = slots.get(slot);
+            // A writer a full lap ahead may already own the slot; the newer message wins
+            if (current != null && current.sequence > sequence) {
+                return;
+            }
+            if (slots.compareAndSet(slot, current, entry)) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * The messages currently in the ring, oldest first. A message whose writer has not
+     * finished publishing it yet is left out.
+     */
+    List<EncodedMessage> snapshot() {
+        long end = nextSequence.get();
+        long start = Math.max(0, end - slots.length());
+        List<EncodedMessage> messages = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Entry entry = slots.get((int) (sequence % slots.length()));
+            if (entry != null && entry.sequence == sequence) {
+                messages.add(entry.message);
+            }
+        }
+        return messages;
+    }
+}
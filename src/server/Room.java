@@ -0,0 +1,105 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * A chat room and the clients subscribed to it. A message sent to a room is written only
+ * to its members, so its cost grows with the room rather than with the whole server.
+ * The member list is an immutable snapshot, replaced whenever someone joins or leaves;
+ * ChatServer only changes it inside rooms.compute(), so changes to one room never race.
+ * Its text and file messages are numbered in the order the server accepted them, and queued for
+ * every member in that order.
+ */
+class Room {
+    private static final Pattern NAME = Pattern.compile("[a-z0-9_-]{1,32}");
+    
+    private final String name;
+    private volatile List<ClientHandler> members;
+    private final RecentMessages recentMessages; // null when history is turned off
+    private final ReentrantLock sequenceLock; // Not synchronized, so virtual threads waiting for it don't pin their carriers
+    private long lastSequence; // Guarded by sequenceLock
+    
+    Room(String name, RecentMessages recentMessages, long lastSequence) {
+        this.name = name;
+        this.members = Collections.emptyList();
+        this.recentMessages = recentMessages;
+        this.sequenceLock = new ReentrantLock();
+        this.lastSequence = lastSequence;
+    }
+    
+    /**
+     * Canonical form of a room name typed by a user (case-insensitive, optional leading #),
+     * or null if it is not a valid name
+     */
+    static String normalizeName(String name) {
+        if (name == null) {
+            return null;
+        }
+        String normalized = name.trim().toLowerCase(Locale.ROOT);
+        if (normalized.startsWith("#")) {
+            normalized = normalized.substring(1);
+        }
+        return NAME.matcher(normalized).matches() ? normalized : null;
+    }
+    
+    String getName() {
+        return name;
+    }
+    
+    RecentMessages getRecentMessages() {
+        return recentMessages;
+    }
+    
+    /**
+     * Held while a message is numbered, recorded and queued for the members, and while someone joins,
+     * so the history and every member's queue are in sequence order
+     */
+    Lock getSequenceLock() {
+        return sequenceLock;
+    }
+    
+    /**
+     * The sequence number for the next message sent to this room; callers hold the sequence lock
+     */
+    long nextSequence() {
+        return ++lastSequence;
+    }
+    
+    void add(ClientHandler client) {
+        if (!members.contains(client)) {
+            List<ClientHandler> updated = new ArrayList<>(members.size() + 1);
+            updated.addAll(members);
+            updated.add(client);
+            members = Collections.unmodifiableList(updated);
+        }
+    }
+    
+    void remove(ClientHandler client) {
+        if (members.contains(client)) {
+            List<ClientHandler> updated = new ArrayList<>(members);
+            updated.remove(client);
+            members = Collections.unmodifiableList(updated);
+        }
+    }
+    
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+    
+    int size() {
+        return members.size();
+    }
+    
+    /**
+     * The members right now. The list itself never changes, so it can be iterated without locking.
+     */
+    List<ClientHandler> getMembers() {
+        return members;
+    }
+}
@@ -0,0 +1,139 @@
+package server;
+
+import shared.Message;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The message history of one room, as a list of LogSegments with consecutive sequence numbers.
+ * New records go to the newest segment; when it is full a new one is started and the oldest
+ * are dropped beyond the retention limit. Appends come from the MessageLog writer thread only;
+ * reads can happen on any thread.
+ */
+class RoomLog {
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final int maxSegmentEntries;
+    private final int maxSegments;
+    private final List<LogSegment> segments; // oldest first; copy-on-write so readers never lock
+    
+    RoomLog(Path directory, long maxSegmentBytes, int maxSegmentEntries, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentEntries = maxSegmentEntries;
+        this.maxSegments = maxSegments;
+        this.segments = new CopyOnWriteArrayList<>();
+        
+        Files.createDirectories(directory);
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - ".log".length())));
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring unexpected file in message log: " + file);
+                }
+            }
+        }
+        Collections.sort(bases);
+        for (long base : bases) {
+            segments.add(new LogSegment(directory, base, maxSegmentEntries));
+        }
+        if (segments.isEmpty()) {
+            segments.add(new LogSegment(directory, 0, maxSegmentEntries));
+        }
+    }
+    
+    /**
+     * Appends one encoded frame, rolling to a new segment first if the current one is full
+     */
+    void append(byte[] frame) throws IOException {
+        LogSegment current = segments.get(segments.size() - 1);
+        if (!current.hasRoom(frame.length, maxSegmentBytes)) {
+            current.sync();
+            current = new LogSegment(directory, current.getNextSequence(), maxSegmentEntries);
+            segments.add(current);
+            dropOldSegments();
+        }
+        current.append(frame);
+    }
+    
+    private void dropOldSegments() {
+        while (segments.size() > maxSegments) {
+            LogSegment oldest = segments.remove(0);
+            try {
+                oldest.delete();
+            } catch (IOException e) {
+                // A mapped index can't be deleted on some platforms until it is unmapped; retried on the next roll
+                System.err.println("Could not delete old log segment: " + e.getMessage());
+            }
+        }
+        deleteStaleFiles();
+    }
+    
+    private void deleteStaleFiles() {
+        long firstKept = segments.get(0).getBaseSequence();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int dot = name.indexOf('.');
+                if (dot > 0 && name.substring(0, dot).matches("\\d+") && Long.parseLong(name.substring(0, dot)) < firstKept) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            // Still mapped, try again next time
+        }
+    }
+    
+    void sync() throws IOException {
+        segments.get(segments.size() - 1).sync();
+    }
+    
+    /**
+     * The last count messages, oldest first. Uses the segment indexes to read just those records.
+     */
+    List<Message> readLast(int count) throws IOException {
+        List<LogSegment> snapshot = new ArrayList<>(segments);
+        List<List<Message>> parts = new ArrayList<>();
+        int remaining = count;
+        for (int i = snapshot.size() - 1; i >= 0 && remaining > 0; i--) {
+            LogSegment segment = snapshot.get(i);
+            int available = segment.getCount();
+            if (available == 0) {
+                continue;
+            }
+            
+            int take = Math.min(available, remaining);
+            long last = segment.getBaseSequence() + available - 1;
+            List<Message> part = new ArrayList<>(take);
+            segment.read(last - take + 1, last, part);
+            parts.add(part);
+            remaining -= take;
+        }
+        
+        List<Message> messages = new ArrayList<>(count - remaining);
+        for (int i = parts.size() - 1; i >= 0; i--) {
+            messages.addAll(parts.get(i));
+        }
+        return messages;
+    }
+    
+    void close() {
+        for (LogSegment segment : segments) {
+            try {
+                segment.sync();
+                segment.close();
+            } catch (IOException e) {
+                System.err.println("Error closing message log segment: " + e.getMessage());
+            }
+        }
+    }
+}
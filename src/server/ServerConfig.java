@@ -0,0 +1,485 @@
+package server;
+
+import shared.Constants;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Startup options for ChatServer, usually parsed from the command line
+ */
+public class ServerConfig {
+    private int port;
+    private ChatServer.ServerMode mode;
+    private int queueCapacity;
+    private OutboundQueue.OverflowPolicy overflowPolicy;
+    private long blockTimeoutMillis;
+    private int historySize;
+    private int flushBytes;
+    private long flushDelayMicros;
+    private int joinDigestRate;
+    private long joinDigestIntervalMillis;
+    private Set<String> admins;
+    private String adminToken; // null: nobody can become an admin
+    private boolean compression;
+    private int userMessageRate;
+    private int userByteRate;
+    private int serverMessageRate;
+    private int serverByteRate;
+    private List<String> clusterMembers;
+    private int clusterNode;
+    private int heartbeatSeconds;
+    private int idleTimeoutSeconds;
+    
+    public ServerConfig() {
+        this.port = Constants.DEFAULT_PORT;
+        this.mode = ChatServer.ServerMode.BLOCKING;
+        this.queueCapacity = 1024;
+        this.overflowPolicy = OutboundQueue.OverflowPolicy.DISCONNECT;
+        this.blockTimeoutMillis = 5000;
+        this.historySize = 50;
+        this.flushBytes = 32 * 1024;
+        this.flushDelayMicros = 0;
+        this.joinDigestRate = 20;
+        this.joinDigestIntervalMillis = 1000;
+        this.admins = Collections.emptySet();
+        this.compression = true;
+        this.userMessageRate = 10;
+        this.userByteRate = 16 * 1024;
+        this.serverMessageRate = 5000;
+        this.serverByteRate = 8 * 1024 * 1024;
+        this.clusterMembers = Collections.emptyList();
+        this.clusterNode = 0;
+        this.heartbeatSeconds = Constants.HEARTBEAT_SECONDS;
+        this.idleTimeoutSeconds = Constants.IDLE_TIMEOUT_SECONDS;
+    }
+    
+    /**
+     * Parses [port] [-mode blocking|virtual|nio] [-queue-size n]
+     * [-overflow drop-oldest|disconnect|block] [-block-timeout ms] [-history n]
+     * [-flush-bytes n] [-flush-delay us] [-join-digest-rate n] [-join-digest-interval ms]
+     * [-admins name,name] [-admin-token token | -admin-token-file path] [-compression on|off] [-user-rate msgs/s] [-user-bytes bytes/s]
+     * [-server-rate msgs/s] [-server-bytes bytes/s] [-cluster host:port,host:port,... -node n]
+     * [-heartbeat s] [-idle-timeout s].
+     * Invalid values are reported and the default is kept.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            try {
+                switch (option) {
+                    case "-mode":
+                    case "-m":
+                        config.mode = ChatServer.ServerMode.valueOf(requireValue(option, value).toUpperCase());
+                        i++;
+                        break;
+                    case "-queue-size":
+                        config.queueCapacity = parsePositive(option, value);
+                        i++;
+                        break;
+                    case "-overflow":
+                        config.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(
+                                requireValue(option, value).toUpperCase().replace('-', '_'));
+                        i++;
+                        break;
+                    case "-block-timeout":
+                        config.blockTimeoutMillis = parsePositive(option, value);
+                        i++;
+                        break;
+                    case "-history":
+                        config.historySize = parseNonNegative(option, value);
+                        i++;
+                        break;
+                    case "-flush-bytes":
+                        config.flushBytes = parsePositive(option, value);
+                        i++;
+                        break;
+                    case "-flush-delay":
+                        config.flushDelayMicros = parseNonNegative(option, value);
+                        i++;
+                        break;
+                    case "-join-digest-rate":
+                        config.joinDigestRate = parseNonNegative(option, value);
+                        i++;
+                        break;
+                    case "-join-digest-interval":
+                        config.joinDigestIntervalMillis = parsePositive(option, value);
+                        i++;
+                        break;
+                    case "-admins":
+                        config.admins = new LinkedHashSet<>(Arrays.asList(requireValue(option, value).split(",")));
+                        i++;
+                        break;
+                    case "-admin-token":
+                        config.adminToken = requireValue(option, value);
+                        i++;
+                        break;
+                    case "-admin-token-file":
+                        config.adminToken = readToken(requireValue(option, value));
+                        i++;
+                        break;
+                    case "-compression":
+                        config.compression = parseSwitch(option, value);
+                        i++;
+                        break;
+                    case "-user-rate":
+                        config.userMessageRate = parseNonNegative(option, value);
+                        i++;
+                        break;
+                    case "-user-bytes":
+                        config.userByteRate = parseNonNegative(option, value);
+                        i++;
+                        break;
+                    case "-server-rate":
+                        config.serverMessageRate = parseNonNegative(option, value);
+                        i++;
+                        break;
+                    case "-server-bytes":
+                        config.serverByteRate = parseNonNegative(option, value);
+                        i++;
+                        break;
+                    case "-cluster":
+                        config.clusterMembers = parseMembers(requireValue(option, value));
+                        i++;
+                        break;
+                    case "-node":
+                        config.clusterNode = parsePositive(option, value);
+                        i++;
+                        break;
+                    case "-heartbeat":
+                        config.heartbeatSeconds = parseNonNegative(option, value);
+                        i++;
+                        break;
+                    case "-idle-timeout":
+                        config.idleTimeoutSeconds = parsePositive(option, value);
+                        i++;
+                        break;
+                    default:
+                        config.port = Integer.parseInt(option);
+                        break;
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("Ignoring invalid option " + option + (value != null ? " " + value : "") +
+                                 ": " + e.getMessage());
+            }
+        }
+        
+        if (!config.clusterMembers.isEmpty() && config.clusterNode > config.clusterMembers.size()) {
+            System.err.println("Ignoring -cluster: -node must name one of its " + config.clusterMembers.size() + " members");
+            config.clusterMembers = Collections.emptyList();
+        } else if (!config.clusterMembers.isEmpty() && config.clusterNode == 0) {
+            System.err.println("Ignoring -cluster: -node is required with it");
+            config.clusterMembers = Collections.emptyList();
+        }
+        if (!config.admins.isEmpty() && config.adminToken == null) {
+            System.err.println("Warning: -admins has no effect without -admin-token or -admin-token-file.");
+        }
+        if (config.heartbeatSeconds > 0 && config.idleTimeoutSeconds <= config.heartbeatSeconds) {
+            System.err.println("Warning: -idle-timeout should be well above -heartbeat, or quiet clients are dropped before they are pinged.");
+        }
+        if (config.mode == ChatServer.ServerMode.NIO && config.overflowPolicy == OutboundQueue.OverflowPolicy.BLOCK) {
+            System.err.println("Warning: -overflow block stalls a whole event loop in NIO mode while it waits.");
+        }
+        return config;
+    }
+    
+    private static String requireValue(String option, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("missing value for " + option);
+        }
+        return value;
+    }
+    
+    /**
+     * The first non-blank line of a token file, which unlike -admin-token keeps the token out of the process list
+     */
+    private static String readToken(String path) {
+        try {
+            for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    return line.trim();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("cannot read " + path + ": " + e.getMessage());
+        }
+        throw new IllegalArgumentException(path + " is empty");
+    }
+    
+    private static int parseNonNegative(String option, String value) {
+        int number = Integer.parseInt(requireValue(option, value));
+        if (number < 0) {
+            throw new IllegalArgumentException("must not be negative");
+        }
+        return number;
+    }
+    
+    private static boolean parseSwitch(String option, String value) {
+        switch (requireValue(option, value).toLowerCase()) {
+            case "on":
+                return true;
+            case "off":
+                return false;
+            default:
+                throw new IllegalArgumentException("must be on or off");
+        }
+    }
+    
+    /**
+     * A comma-separated list of host:port, at least two of them and no repeats
+     */
+    private static List<String> parseMembers(String value) {
+        Set<String> members = new LinkedHashSet<>(Arrays.asList(value.split(",")));
+        for (String member : members) {
+            int colon = member.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException(member + " is not host:port");
+            }
+            int port = Integer.parseInt(member.substring(colon + 1));
+            if (port <= 0 || port > 65535) {
+                throw new IllegalArgumentException(member + " has no valid port");
+            }
+        }
+        if (members.size() < 2) {
+            throw new IllegalArgumentException("a cluster needs at least two members");
+        }
+        return Collections.unmodifiableList(new ArrayList<>(members));
+    }
+    
+    private static int parsePositive(String option, String value) {
+        int number = Integer.parseInt(requireValue(option, value));
+        if (number <= 0) {
+            throw new IllegalArgumentException("must be positive");
+        }
+        return number;
+    }
+    
+    public int getPort() {
+        return port;
+    }
+    
+    public void setPort(int port) {
+        this.port = port;
+    }
+    
+    public ChatServer.ServerMode getMode() {
+        return mode;
+    }
+    
+    public void setMode(ChatServer.ServerMode mode) {
+        this.mode = mode;
+    }
+    
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+    
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+    
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+    
+    public void setOverflowPolicy(OutboundQueue.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+    
+    /**
+     * Messages replayed to a user joining a room; 0 turns the message log off
+     */
+    public int getHistorySize() {
+        return historySize;
+    }
+    
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+    }
+    
+    /**
+     * Size at which a client's writer stops gathering queued frames and writes them out
+     */
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+    
+    public void setFlushBytes(int flushBytes) {
+        this.flushBytes = flushBytes;
+    }
+    
+    /**
+     * Longest a queued frame waits for others to share its write; 0 means write once the queue is empty
+     */
+    public long getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+    
+    public void setFlushDelayMicros(long flushDelayMicros) {
+        this.flushDelayMicros = flushDelayMicros;
+    }
+    
+    /**
+     * Logins plus logouts per second above which they are announced in digests; 0 announces each one
+     */
+    public int getJoinDigestRate() {
+        return joinDigestRate;
+    }
+    
+    public void setJoinDigestRate(int joinDigestRate) {
+        this.joinDigestRate = joinDigestRate;
+    }
+    
+    /**
+     * How often a digest goes out while logins are being coalesced
+     */
+    public long getJoinDigestIntervalMillis() {
+        return joinDigestIntervalMillis;
+    }
+    
+    public void setJoinDigestIntervalMillis(long joinDigestIntervalMillis) {
+        this.joinDigestIntervalMillis = joinDigestIntervalMillis;
+    }
+    
+    /**
+     * Usernames allowed to use admin commands such as /stats, once they have given the admin token
+     */
+    public Set<String> getAdmins() {
+        return admins;
+    }
+    
+    public void setAdmins(Set<String> admins) {
+        this.admins = admins;
+    }
+    
+    /**
+     * The secret an admin gives with /admin to unlock admin commands, or null if there is none
+     */
+    public String getAdminToken() {
+        return adminToken;
+    }
+    
+    public void setAdminToken(String adminToken) {
+        this.adminToken = adminToken;
+    }
+    
+    /**
+     * Whether clients that support it get compressed connections
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+    
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+    
+    /**
+     * Messages per second one user may send, with bursts of up to RateLimiter.BURST_SECONDS worth; 0 means no limit
+     */
+    public int getUserMessageRate() {
+        return userMessageRate;
+    }
+    
+    public void setUserMessageRate(int userMessageRate) {
+        this.userMessageRate = userMessageRate;
+    }
+    
+    /**
+     * Bytes of message text per second one user may send; 0 means no limit
+     */
+    public int getUserByteRate() {
+        return userByteRate;
+    }
+    
+    public void setUserByteRate(int userByteRate) {
+        this.userByteRate = userByteRate;
+    }
+    
+    /**
+     * Messages per second all users together may send; 0 means no limit
+     */
+    public int getServerMessageRate() {
+        return serverMessageRate;
+    }
+    
+    public void setServerMessageRate(int serverMessageRate) {
+        this.serverMessageRate = serverMessageRate;
+    }
+    
+    /**
+     * Bytes of message text per second all users together may send; 0 means no limit
+     */
+    public int getServerByteRate() {
+        return serverByteRate;
+    }
+    
+    public void setServerByteRate(int serverByteRate) {
+        this.serverByteRate = serverByteRate;
+    }
+    
+    /**
+     * Peer addresses of every node in the cluster, the same list in the same order on each node;
+     * empty when this server runs on its own
+     */
+    public List<String> getClusterMembers() {
+        return clusterMembers;
+    }
+    
+    public void setClusterMembers(List<String> clusterMembers) {
+        this.clusterMembers = clusterMembers;
+    }
+    
+    /**
+     * This server's position in getClusterMembers(), counting from 1
+     */
+    public int getClusterNode() {
+        return clusterNode;
+    }
+    
+    public void setClusterNode(int clusterNode) {
+        this.clusterNode = clusterNode;
+    }
+    
+    /**
+     * Seconds of silence after which a client that supports heartbeats is pinged; 0 turns heartbeats off
+     */
+    public int getHeartbeatSeconds() {
+        return heartbeatSeconds;
+    }
+    
+    public void setHeartbeatSeconds(int heartbeatSeconds) {
+        this.heartbeatSeconds = heartbeatSeconds;
+    }
+    
+    /**
+     * Seconds of silence after which a connection is dropped as dead: one still logging in, or one
+     * that supports heartbeats and has left a ping unanswered. Without heartbeats a logged-in client
+     * may stay quiet for good, and only TCP keepalive can tell it's gone.
+     */
+    public int getIdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+    
+    public void setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+    }
+    
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+    
+    public void setBlockTimeoutMillis(long blockTimeoutMillis) {
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+}
@@ -0,0 +1,489 @@
+package server;
+
+import shared.FrameCompressor;
+import shared.LatencyHistogram;
+import shared.Message;
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, gauges and latency histograms for one ChatServer, shown through JMX and the admin /stats command.
+ *
+ * Everything on a hot path is striped so that threads recording at the same time don't contend on
+ * one memory location: counters are LongAdders, and each histogram is a small set of LatencyHistograms
+ * picked by thread that are only added together when someone reads them.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    /**
+     * Why a connection ended
+     */
+    public enum DisconnectReason {
+        CLIENT_CLOSED, LEFT, LOGIN_REFUSED, READ_ERROR, WRITE_ERROR, SLOW_CLIENT, FLOODING, IDLE, SERVER_STOPPED
+    }
+    
+    /**
+     * A histogram reduced to the numbers people look at, in microseconds
+     */
+    public static final class LatencySummary {
+        private final long count;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p99Micros;
+        private final double p999Micros;
+        private final double maxMicros;
+        
+        @ConstructorProperties({"count", "meanMicros", "p50Micros", "p99Micros", "p999Micros", "maxMicros"})
+        public LatencySummary(long count, double meanMicros, double p50Micros, double p99Micros, double p999Micros, double maxMicros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+            this.p999Micros = p999Micros;
+            this.maxMicros = maxMicros;
+        }
+        
+        static LatencySummary of(LatencyHistogram nanos) {
+            return new LatencySummary(nanos.getCount(), nanos.getMean() / 1000, nanos.getValueAtPercentile(50) / 1000.0,
+                                      nanos.getValueAtPercentile(99) / 1000.0, nanos.getValueAtPercentile(99.9) / 1000.0,
+                                      nanos.getMax() / 1000.0);
+        }
+        
+        public long getCount() {
+            return count;
+        }
+        
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+        
+        public double getP50Micros() {
+            return p50Micros;
+        }
+        
+        public double getP99Micros() {
+            return p99Micros;
+        }
+        
+        public double getP999Micros() {
+            return p999Micros;
+        }
+        
+        public double getMaxMicros() {
+            return maxMicros;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d, mean %.0fus, p50 %.0fus, p99 %.0fus, p99.9 %.0fus, max %.0fus",
+                                 count, meanMicros, p50Micros, p99Micros, p999Micros, maxMicros);
+        }
+    }
+    
+    /**
+     * Bytes before and after compression, both ways, and the processor time it took
+     */
+    public static final class CompressionSummary {
+        private final long plainBytesSent;
+        private final long wireBytesSent;
+        private final double compressMillis;
+        private final long wireBytesReceived;
+        private final long plainBytesReceived;
+        private final double decompressMillis;
+        private final long storedPayloads;
+        
+        @ConstructorProperties({"plainBytesSent", "wireBytesSent", "compressMillis", "wireBytesReceived",
+                                "plainBytesReceived", "decompressMillis", "storedPayloads"})
+        public CompressionSummary(long plainBytesSent, long wireBytesSent, double compressMillis, long wireBytesReceived,
+                                  long plainBytesReceived, double decompressMillis, long storedPayloads) {
+            this.plainBytesSent = plainBytesSent;
+            this.wireBytesSent = wireBytesSent;
+            this.compressMillis = compressMillis;
+            this.wireBytesReceived = wireBytesReceived;
+            this.plainBytesReceived = plainBytesReceived;
+            this.decompressMillis = decompressMillis;
+            this.storedPayloads = storedPayloads;
+        }
+        
+        static CompressionSummary of(FrameCompressor.Stats stats) {
+            return new CompressionSummary(stats.getPlainBytesSent(), stats.getWireBytesSent(), stats.getCompressNanos() / 1e6,
+                                          stats.getWireBytesReceived(), stats.getPlainBytesReceived(),
+                                          stats.getDecompressNanos() / 1e6, stats.getStoredPayloads());
+        }
+        
+        public long getPlainBytesSent() {
+            return plainBytesSent;
+        }
+        
+        public long getWireBytesSent() {
+            return wireBytesSent;
+        }
+        
+        public double getCompressMillis() {
+            return compressMillis;
+        }
+        
+        public long getWireBytesReceived() {
+            return wireBytesReceived;
+        }
+        
+        public long getPlainBytesReceived() {
+            return plainBytesReceived;
+        }
+        
+        public double getDecompressMillis() {
+            return decompressMillis;
+        }
+        
+        /**
+         * Large payloads sent uncompressed because a sample showed they wouldn't shrink
+         */
+        public long getStoredPayloads() {
+            return storedPayloads;
+        }
+        
+        @Override
+        public String toString() {
+            if (plainBytesSent == 0 && wireBytesReceived == 0) {
+                return "off or unused";
+            }
+            long saved = plainBytesSent - wireBytesSent + plainBytesReceived - wireBytesReceived;
+            double millis = compressMillis + decompressMillis;
+            return String.format(Locale.ROOT, "sent %s as %s, received %s as %s; %s saved for %.0f ms of CPU (%.1f ms per MB); "
+                                 + "%d payloads sent as they were",
+                                 formatBytes(plainBytesSent), formatBytes(wireBytesSent), formatBytes(plainBytesReceived),
+                                 formatBytes(wireBytesReceived), formatBytes(Math.max(0, saved)), millis,
+                                 saved > 0 ? millis / (saved / 1048576.0) : 0.0, storedPayloads);
+        }
+    }
+    
+    /**
+     * A histogram split into per-thread stripes, merged on read
+     */
+    private static final class StripedHistogram {
+        private final LatencyHistogram[] stripes;
+        
+        StripedHistogram(int stripeCount) {
+            stripes = new LatencyHistogram[stripeCount];
+            for (int i = 0; i < stripeCount; i++) {
+                stripes[i] = new LatencyHistogram();
+            }
+        }
+        
+        void record(long nanos) {
+            stripes[(int) (Thread.currentThread().getId() % stripes.length)].record(nanos);
+        }
+        
+        LatencySummary summarize() {
+            LatencyHistogram merged = new LatencyHistogram();
+            for (LatencyHistogram stripe : stripes) {
+                merged.add(stripe);
+            }
+            return LatencySummary.of(merged);
+        }
+    }
+    
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    private static final DisconnectReason[] REASONS = DisconnectReason.values();
+    
+    private final ChatServer server;
+    private final long startMillis;
+    private final LongAdder connectionsOpened;
+    private final LongAdder connectionsClosed;
+    private final LongAdder[] messagesIn;
+    private final LongAdder[] messagesOut;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final LongAdder broadcasts;
+    private final LongAdder broadcastRecipients;
+    private final StripedHistogram broadcastLatency;
+    private final StripedHistogram fileWriteLatency;
+    private final LongAdder sendFailures;
+    private final LongAdder throttledByUserLimits;
+    private final LongAdder throttledByServerLimits;
+    private final LongAdder[] disconnects;
+    private final FrameCompressor.Stats compression;
+    private ObjectName registeredName;
+    
+    ServerMetrics(ChatServer server) {
+        this.server = server;
+        this.startMillis = System.currentTimeMillis();
+        this.connectionsOpened = new LongAdder();
+        this.connectionsClosed = new LongAdder();
+        this.messagesIn = newAdders(TYPES.length);
+        this.messagesOut = newAdders(TYPES.length);
+        this.bytesIn = new LongAdder();
+        this.bytesOut = new LongAdder();
+        this.broadcasts = new LongAdder();
+        this.broadcastRecipients = new LongAdder();
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())) * 2;
+        this.broadcastLatency = new StripedHistogram(stripes);
+        this.fileWriteLatency = new StripedHistogram(stripes);
+        this.sendFailures = new LongAdder();
+        this.throttledByUserLimits = new LongAdder();
+        this.throttledByServerLimits = new LongAdder();
+        this.disconnects = newAdders(REASONS.length);
+        this.compression = new FrameCompressor.Stats();
+    }
+    
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+    
+    /**
+     * Makes the metrics visible over JMX. A second server on the same port in one JVM is only reported.
+     */
+    void register(int port) {
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("chatwave:type=ChatServer,port=" + port);
+            mbeans.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            System.err.println("Could not register server metrics with JMX: " + e.getMessage());
+        }
+    }
+    
+    void unregister() {
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                // Already gone
+            }
+            registeredName = null;
+        }
+    }
+    
+    void connectionOpened() {
+        connectionsOpened.increment();
+    }
+    
+    void connectionClosed(DisconnectReason reason) {
+        connectionsClosed.increment();
+        disconnects[reason.ordinal()].increment();
+    }
+    
+    void messageIn(Message message) {
+        messagesIn[message.getType().ordinal()].increment();
+    }
+    
+    void messageOut(Message message) {
+        messagesOut[message.getType().ordinal()].increment();
+    }
+    
+    void bytesIn(long count) {
+        bytesIn.add(count);
+    }
+    
+    void bytesOut(long count) {
+        bytesOut.add(count);
+    }
+    
+    void broadcast(int recipients, long nanos) {
+        broadcasts.increment();
+        broadcastRecipients.add(recipients);
+        broadcastLatency.record(nanos);
+    }
+    
+    void fileWrite(long nanos) {
+        fileWriteLatency.record(nanos);
+    }
+    
+    void sendFailure() {
+        sendFailures.increment();
+    }
+    
+    void throttled(RateLimiter.Verdict verdict) {
+        (verdict == RateLimiter.Verdict.SERVER_LIMIT ? throttledByServerLimits : throttledByUserLimits).increment();
+    }
+    
+    /**
+     * Shared by the compressors of every connection, which record into it directly
+     */
+    FrameCompressor.Stats getCompressionStats() {
+        return compression;
+    }
+    
+    @Override
+    public long getUptimeSeconds() {
+        return (System.currentTimeMillis() - startMillis) / 1000;
+    }
+    
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+    
+    @Override
+    public long getActiveConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+    
+    @Override
+    public int getOnlineUsers() {
+        return server.getOnlineCount();
+    }
+    
+    @Override
+    public Map<String, Long> getMessagesIn() {
+        return countsByType(messagesIn);
+    }
+    
+    @Override
+    public Map<String, Long> getMessagesOut() {
+        return countsByType(messagesOut);
+    }
+    
+    private static Map<String, Long> countsByType(LongAdder[] adders) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Message.MessageType type : TYPES) {
+            long count = adders[type.ordinal()].sum();
+            if (count > 0) {
+                counts.put(type.name(), count);
+            }
+        }
+        return counts;
+    }
+    
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+    
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+    
+    @Override
+    public long getBroadcasts() {
+        return broadcasts.sum();
+    }
+    
+    @Override
+    public long getBroadcastRecipients() {
+        return broadcastRecipients.sum();
+    }
+    
+    @Override
+    public LatencySummary getBroadcastLatency() {
+        return broadcastLatency.summarize();
+    }
+    
+    @Override
+    public LatencySummary getFileWriteLatency() {
+        return fileWriteLatency.summarize();
+    }
+    
+    @Override
+    public CompressionSummary getCompression() {
+        return CompressionSummary.of(compression);
+    }
+    
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+    
+    @Override
+    public long getThrottledByUserLimits() {
+        return throttledByUserLimits.sum();
+    }
+    
+    @Override
+    public long getThrottledByServerLimits() {
+        return throttledByServerLimits.sum();
+    }
+    
+    @Override
+    public long getQueuedMessages() {
+        return server.getQueuedMessageCount();
+    }
+    
+    @Override
+    public long getDroppedMessages() {
+        return server.getDroppedMessageCount();
+    }
+    
+    @Override
+    public Map<String, Long> getDisconnects() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (DisconnectReason reason : REASONS) {
+            long count = disconnects[reason.ordinal()].sum();
+            if (count > 0) {
+                counts.put(reason.name(), count);
+            }
+        }
+        return counts;
+    }
+    
+    /**
+     * Other cluster nodes this server currently has a link to; 0 when it runs on its own
+     */
+    @Override
+    public int getLinkedPeers() {
+        ClusterNode cluster = server.getCluster();
+        return cluster == null ? 0 : cluster.getLinkedPeers();
+    }
+    
+    /**
+     * Everything above as text, for /stats
+     */
+    String format() {
+        long uptime = getUptimeSeconds();
+        long broadcastCount = getBroadcasts();
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.ROOT, "Server statistics, up %dh %02dm %02ds%n", uptime / 3600, uptime / 60 % 60, uptime % 60));
+        text.append(String.format(Locale.ROOT, "Connections: %d active, %d opened, %d users online%n",
+                                  getActiveConnections(), getConnectionsOpened(), getOnlineUsers()));
+        text.append("Messages in: ").append(formatCounts(getMessagesIn())).append('\n');
+        text.append("Messages out: ").append(formatCounts(getMessagesOut())).append('\n');
+        text.append(String.format(Locale.ROOT, "Bytes: %s in, %s out%n", formatBytes(getBytesIn()), formatBytes(getBytesOut())));
+        text.append(String.format(Locale.ROOT, "Broadcasts: %s; %.1f recipients each on average%n", getBroadcastLatency(),
+                                  broadcastCount == 0 ? 0.0 : (double) getBroadcastRecipients() / broadcastCount));
+        text.append("File writes: ").append(getFileWriteLatency()).append('\n');
+        text.append("Compression: ").append(getCompression()).append('\n');
+        text.append(String.format(Locale.ROOT, "Send failures: %d; %d messages queued, %d dropped by the overflow policy%n",
+                                  getSendFailures(), getQueuedMessages(), getDroppedMessages()));
+        text.append(String.format(Locale.ROOT, "Throttled: %d messages over user limits, %d over server limits%n",
+                                  getThrottledByUserLimits(), getThrottledByServerLimits()));
+        text.append("Disconnects: ").append(formatCounts(getDisconnects()));
+        if (server.getCluster() != null) {
+            text.append("\nCluster: ").append(server.getCluster().describe());
+        }
+        return text.toString();
+    }
+    
+    private static String formatCounts(Map<String, Long> counts) {
+        if (counts.isEmpty()) {
+            return "none";
+        }
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        return text.toString();
+    }
+    
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format(Locale.ROOT, "%.1f %sB", bytes / (double) (1L << (unit * 10)), "KMGTPE".charAt(unit - 1));
+    }
+}
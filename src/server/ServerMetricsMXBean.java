@@ -0,0 +1,49 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * What ServerMetrics shows over JMX, registered as chatwave:type=ChatServer,port=&lt;port&gt;.
+ * Counters run from server start; latencies are in microseconds and compression time in milliseconds.
+ */
+public interface ServerMetricsMXBean {
+    long getUptimeSeconds();
+    
+    long getConnectionsOpened();
+    
+    long getActiveConnections();
+    
+    int getOnlineUsers();
+    
+    Map<String, Long> getMessagesIn();
+    
+    Map<String, Long> getMessagesOut();
+    
+    long getBytesIn();
+    
+    long getBytesOut();
+    
+    long getBroadcasts();
+    
+    long getBroadcastRecipients();
+    
+    ServerMetrics.LatencySummary getBroadcastLatency();
+    
+    ServerMetrics.LatencySummary getFileWriteLatency();
+    
+    ServerMetrics.CompressionSummary getCompression();
+    
+    long getSendFailures();
+    
+    long getThrottledByUserLimits();
+    
+    long getThrottledByServerLimits();
+    
+    long getQueuedMessages();
+    
+    long getDroppedMessages();
+    
+    Map<String, Long> getDisconnects();
+    
+    int getLinkedPeers();
+}
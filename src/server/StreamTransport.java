@@ -0,0 +1,245 @@
+package server;
+
+import shared.Constants;
+import shared.FrameCodec;
+import shared.FrameCompressor;
+import shared.Message;
+import shared.MessageInputStream;
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+
+/**
+ * Blocking socket transport. Framed clients open with the FrameCodec handshake; anything else
+ * is treated as a legacy client speaking a plain ObjectOutputStream stream.
+ * Writes happen on a dedicated writer task, so only one thread ever touches the output stream.
+ * The writer gathers whatever is queued into one buffer and flushes it with a single socket write.
+ * Safe to run on virtual threads: nothing here blocks while holding a monitor.
+ */
+class StreamTransport implements ClientTransport {
+    private final Socket socket;
+    private final boolean framed;
+    private FrameCodec codec;
+    private FrameCompressor compressor; // null unless compression was negotiated
+    private volatile int features;
+    private ClientHandler handler;
+    private ServerMetrics metrics;
+    private Executor executor;
+    private DataInputStream frameInput;
+    private ObjectInputStream objectInput;
+    private OutputStream output;
+    
+    private StreamTransport(Socket socket, boolean framed) {
+        this.socket = socket;
+        this.framed = framed;
+    }
+    
+    /**
+     * Reads the client's preamble to pick the wire format. The writer task runs on executor.
+     */
+    public static StreamTransport open(Socket socket, ClientHandler handler, Executor executor) throws IOException {
+        ServerMetrics metrics = handler.getMetrics();
+        BufferedInputStream in = new BufferedInputStream(new FilterInputStream(socket.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    metrics.bytesIn(1);
+                }
+                return b;
+            }
+            
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int count = super.read(buffer, offset, length);
+                if (count > 0) {
+                    metrics.bytesIn(count); // Counted per socket read, not per message
+                }
+                return count;
+            }
+        });
+        in.mark(FrameCodec.HEADER_SIZE);
+        int magic = new DataInputStream(in).readInt();
+        
+        StreamTransport transport = new StreamTransport(socket, magic == FrameCodec.MAGIC);
+        transport.handler = handler;
+        transport.metrics = metrics;
+        transport.executor = executor;
+        transport.output = new BufferedOutputStream(socket.getOutputStream());
+        if (transport.framed) {
+            transport.frameInput = new DataInputStream(in);
+            
+            // Answer the client's feature offer; the accepted set picks the message codec
+            int accepted = handler.acceptFeatures(transport.frameInput.readInt());
+            DataOutputStream handshake = new DataOutputStream(transport.output);
+            handshake.writeInt(FrameCodec.MAGIC);
+            handshake.writeInt(accepted);
+            handshake.flush();
+            transport.codec = FrameCodec.forFeatures(accepted);
+            transport.features = accepted;
+            if ((accepted & FrameCodec.FEATURE_COMPRESSION) != 0) {
+                transport.compressor = new FrameCompressor(metrics.getCompressionStats());
+            }
+        } else {
+            // Legacy client: the bytes we peeked are its stream header
+            in.reset();
+            EncodedMessage.writeLegacyHeader(transport.output);
+            transport.objectInput = new MessageInputStream(in);
+        }
+        return transport;
+    }
+    
+    public Message read() throws IOException, ClassNotFoundException {
+        if (framed) {
+            try {
+                return codec.readMessage(frameInput, compressor);
+            } catch (IOException e) {
+                if (compressor != null) {
+                    compressor.closeInput(); // This connection won't be read again
+                }
+                throw e;
+            }
+        }
+        return (Message) objectInput.readObject();
+    }
+    
+    @Override
+    public int getFeatures() {
+        return features;
+    }
+    
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+    
+    @Override
+    public void startWriter(OutboundQueue queue) {
+        executor.execute(() -> writeLoop(queue));
+    }
+    
+    private void writeLoop(OutboundQueue queue) {
+        ServerMetrics.DisconnectReason reason = ServerMetrics.DisconnectReason.CLIENT_CLOSED; // Only used if still connected
+        try {
+            // The handshake has been flushed; from here on, one buffer holds a whole batch
+            output = new BufferedOutputStream(socket.getOutputStream(), queue.getFlushBytes());
+            EncodedMessage message;
+            while ((message = queue.take()) != null) {
+                writeBatch(queue, message);
+            }
+        } catch (IOException e) {
+            if (handler.isConnected()) {
+                System.err.println("Error sending message to " + handler.getUsername() + ": " + e.getMessage());
+                metrics.sendFailure();
+            }
+            reason = ServerMetrics.DisconnectReason.WRITE_ERROR;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reason = ServerMetrics.DisconnectReason.SERVER_STOPPED;
+        } finally {
+            handler.disconnect(reason);
+            if (compressor != null) {
+                compressor.closeOutput();
+            }
+            try {
+                close();
+            } catch (IOException e) {
+                System.err.println("Error disconnecting client: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Writes first and whatever follows it in the queue, then flushes once. The batch ends when
+     * the queue runs dry (after waiting out the flush delay, if there is one) or flushBytes are buffered.
+     */
+    private void writeBatch(OutboundQueue queue, EncodedMessage first) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + queue.getFlushDelayNanos();
+        int buffered = 0;
+        EncodedMessage message = first;
+        while (message != null) {
+            byte[] frame = framed ? message.getFrame(codec) : message.getLegacyFrame();
+            if (compressor != null) {
+                frame = compressor.compress(frame); // Per connection: the shared frame stays uncompressed
+            }
+            output.write(frame);
+            buffered += frame.length;
+            metrics.messageOut(message.getMessage());
+            metrics.bytesOut(frame.length);
+            if (message.getAttachment() != null) {
+                output.flush();
+                queue.recordWrite();
+                metrics.bytesOut(sendAttachment(message));
+                output.flush();
+                buffered = 0;
+            }
+            
+            if (buffered >= queue.getFlushBytes()) {
+                break;
+            }
+            long remaining = deadline - System.nanoTime();
+            message = remaining > 0 ? queue.poll(remaining) : queue.poll();
+        }
+        
+        if (buffered > 0) {
+            output.flush();
+            queue.recordWrite();
+        }
+    }
+    
+    /**
+     * Streams an attached file straight from its channel. A plain socket has no channel to hand
+     * to transferTo, so the JDK copies through a small buffer here; NIO mode gets true zero-copy.
+     * On a compressed connection the file goes out as one compressed frame per chunk instead.
+     * Returns the bytes written.
+     */
+    private long sendAttachment(EncodedMessage message) throws IOException {
+        long size = message.getMessage().getFileSize();
+        try (FileChannel file = FileChannel.open(message.getAttachment(), StandardOpenOption.READ)) {
+            if (file.size() < size) {
+                throw new IOException("Attachment is shorter than announced");
+            }
+            
+            if (compressor != null) {
+                return sendCompressed(file, size);
+            }
+            WritableByteChannel target = Channels.newChannel(output);
+            long position = 0;
+            while (position < size) {
+                position += file.transferTo(position, size - position, target);
+            }
+            return size;
+        }
+    }
+    
+    private long sendCompressed(FileChannel file, long size) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(Constants.FILE_CHUNK_SIZE);
+        long position = 0;
+        long written = 0;
+        while (position < size) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), size - position));
+            while (chunk.hasRemaining()) {
+                if (file.read(chunk, position + chunk.position()) < 0) {
+                    throw new IOException("Attachment is shorter than announced");
+                }
+            }
+            byte[] frame = compressor.compress(chunk.array(), 0, chunk.limit());
+            output.write(frame);
+            written += frame.length;
+            position += chunk.limit();
+        }
+        return written;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        // Closing the socket also closes its streams; every message was flushed when written
+        socket.close();
+    }
+}
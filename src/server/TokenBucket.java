@@ -0,0 +1,55 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that refills at a fixed rate up to a burst size, kept in one AtomicLong so any number
+ * of threads can take from it without a lock. Instead of counting tokens it tracks when the bucket will
+ * be full again (the generic cell rate algorithm): taking n tokens moves that time n refill intervals
+ * later, and is refused if it would then lie more than a whole burst ahead of now.
+ */
+class TokenBucket {
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong fullAt; // System.nanoTime() at which every token is back
+    
+    /**
+     * Refills tokensPerSecond and holds at most burst
+     */
+    TokenBucket(long tokensPerSecond, long burst) {
+        this.nanosPerToken = Math.max(1, 1_000_000_000L / tokensPerSecond);
+        this.burstNanos = burst * nanosPerToken;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+    
+    /**
+     * Takes the given number of tokens if they are all there. Never blocks. More tokens than the
+     * bucket holds are taken as a full bucket, so a big charge waits for the bucket to fill up
+     * and then empties it, rather than never fitting.
+     */
+    boolean tryTake(long tokens) {
+        long cost = costOf(tokens);
+        long now = System.nanoTime();
+        while (true) {
+            long full = fullAt.get();
+            long next = (full - now > 0 ? full : now) + cost;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(full, next)) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Gives back tokens taken for something that was refused further on
+     */
+    void refund(long tokens) {
+        fullAt.addAndGet(-costOf(tokens));
+    }
+    
+    private long costOf(long tokens) {
+        return Math.min(tokens, burstNanos / nanosPerToken) * nanosPerToken;
+    }
+}
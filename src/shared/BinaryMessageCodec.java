@@ -0,0 +1,245 @@
+package shared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Hand-written binary encoding of a Message body, used instead of Java serialization
+ * when both sides agree on it during the handshake.
+ *
+ * Layout: one type byte, then tagged fields. Each field key is a varint (field number << 3 | wire type)
+ * followed by a varint value or a varint length and that many bytes. Strings are UTF-8 and the
+ * timestamp is epoch milliseconds. Unknown fields are skipped, so fields can be added later.
+ */
+public class BinaryMessageCodec {
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_BYTES = 2;
+    
+    private static final int FIELD_CONTENT = 1;
+    private static final int FIELD_USERNAME = 2;
+    private static final int FIELD_TIMESTAMP = 3;
+    private static final int FIELD_FILENAME = 4;
+    private static final int FIELD_FILE_DATA = 5;
+    private static final int FIELD_TRANSFER_ID = 6;
+    private static final int FIELD_OFFSET = 7;
+    private static final int FIELD_FILE_SIZE = 8;
+    private static final int FIELD_FILE_HASH = 9;
+    private static final int FIELD_ROOM = 10;
+    private static final int FIELD_RECIPIENT = 11;
+    private static final int FIELD_PRESENCE_VERSION = 12;
+    private static final int FIELD_PAGE = 13;
+    private static final int FIELD_PAGE_COUNT = 14;
+    private static final int FIELD_USER_COUNT = 15;
+    private static final int FIELD_SENT_TIME = 16;
+    private static final int FIELD_SEQUENCE = 17;
+    private static final int FIELD_SERVER_RECEIVED_TIME = 18;
+    private static final int FIELD_SERVER_SENT_TIME = 19;
+    
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    
+    public static void write(Message message, ByteArrayOutputStream out) {
+        out.write(message.getType().ordinal());
+        writeString(out, FIELD_CONTENT, message.getContent());
+        writeString(out, FIELD_USERNAME, message.getUsername());
+        if (message.getTimestamp() != null) {
+            writeKey(out, FIELD_TIMESTAMP, WIRE_VARINT);
+            writeVarint(out, message.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+        writeString(out, FIELD_FILENAME, message.getFilename());
+        writeBytes(out, FIELD_FILE_DATA, message.getFileData());
+        writeString(out, FIELD_TRANSFER_ID, message.getTransferId());
+        writeLong(out, FIELD_OFFSET, message.getOffset());
+        writeLong(out, FIELD_FILE_SIZE, message.getFileSize());
+        writeString(out, FIELD_FILE_HASH, message.getFileHash());
+        writeString(out, FIELD_ROOM, message.getRoom());
+        writeString(out, FIELD_RECIPIENT, message.getRecipient());
+        writeLong(out, FIELD_PRESENCE_VERSION, message.getPresenceVersion());
+        writeLong(out, FIELD_PAGE, message.getPage());
+        writeLong(out, FIELD_PAGE_COUNT, message.getPageCount());
+        writeLong(out, FIELD_USER_COUNT, message.getUserCount());
+        writeLong(out, FIELD_SENT_TIME, message.getSentTime());
+        writeLong(out, FIELD_SEQUENCE, message.getSequence());
+        writeLong(out, FIELD_SERVER_RECEIVED_TIME, message.getServerReceivedTime());
+        writeLong(out, FIELD_SERVER_SENT_TIME, message.getServerSentTime());
+    }
+    
+    public static Message read(byte[] data, int offset, int length) throws IOException {
+        Reader in = new Reader(data, offset, length);
+        int type = in.readByte();
+        if (type >= TYPES.length) {
+            throw new IOException("Unknown message type: " + type);
+        }
+        
+        Message message = new Message(null, null, TYPES[type]);
+        message.setSentTime(0); // Only the sender's own time counts
+        while (in.hasRemaining()) {
+            long key = in.readVarint();
+            int field = (int) (key >>> 3);
+            int wireType = (int) (key & 7);
+            
+            if (wireType == WIRE_VARINT) {
+                long value = in.readVarint();
+                switch (field) {
+                    case FIELD_TIMESTAMP:
+                        message.setTimestamp(LocalDateTime.ofInstant(Instant.ofEpochMilli(value), ZoneId.systemDefault()));
+                        break;
+                    case FIELD_OFFSET:
+                        message.setOffset(value);
+                        break;
+                    case FIELD_FILE_SIZE:
+                        message.setFileSize(value);
+                        break;
+                    case FIELD_PRESENCE_VERSION:
+                        message.setPresenceVersion(value);
+                        break;
+                    case FIELD_PAGE:
+                        message.setPage((int) value);
+                        break;
+                    case FIELD_PAGE_COUNT:
+                        message.setPageCount((int) value);
+                        break;
+                    case FIELD_USER_COUNT:
+                        message.setUserCount((int) value);
+                        break;
+                    case FIELD_SENT_TIME:
+                        message.setSentTime(value);
+                        break;
+                    case FIELD_SEQUENCE:
+                        message.setSequence(value);
+                        break;
+                    case FIELD_SERVER_RECEIVED_TIME:
+                        message.setServerReceivedTime(value);
+                        break;
+                    case FIELD_SERVER_SENT_TIME:
+                        message.setServerSentTime(value);
+                        break;
+                    default:
+                        break; // Field from a newer peer
+                }
+            } else if (wireType == WIRE_BYTES) {
+                int size = in.readLength();
+                int start = in.position;
+                in.position += size;
+                switch (field) {
+                    case FIELD_CONTENT:
+                        message.setContent(new String(data, start, size, StandardCharsets.UTF_8));
+                        break;
+                    case FIELD_USERNAME:
+                        message.setUsername(new String(data, start, size, StandardCharsets.UTF_8));
+                        break;
+                    case FIELD_FILENAME:
+                        message.setFilename(new String(data, start, size, StandardCharsets.UTF_8));
+                        break;
+                    case FIELD_FILE_DATA:
+                        byte[] fileData = new byte[size];
+                        System.arraycopy(data, start, fileData, 0, size);
+                        message.setFileData(fileData);
+                        break;
+                    case FIELD_TRANSFER_ID:
+                        message.setTransferId(new String(data, start, size, StandardCharsets.UTF_8));
+                        break;
+                    case FIELD_FILE_HASH:
+                        message.setFileHash(new String(data, start, size, StandardCharsets.UTF_8));
+                        break;
+                    case FIELD_ROOM:
+                        message.setRoom(new String(data, start, size, StandardCharsets.UTF_8));
+                        break;
+                    case FIELD_RECIPIENT:
+                        message.setRecipient(new String(data, start, size, StandardCharsets.UTF_8));
+                        break;
+                    default:
+                        break; // Field from a newer peer
+                }
+            } else {
+                throw new IOException("Unknown wire type: " + wireType);
+            }
+        }
+        return message;
+    }
+    
+    private static void writeKey(ByteArrayOutputStream out, int field, int wireType) {
+        writeVarint(out, (field << 3) | wireType);
+    }
+    
+    private static void writeString(ByteArrayOutputStream out, int field, String value) {
+        if (value != null) {
+            writeBytes(out, field, value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    private static void writeBytes(ByteArrayOutputStream out, int field, byte[] value) {
+        if (value != null) {
+            writeKey(out, field, WIRE_BYTES);
+            writeVarint(out, value.length);
+            out.write(value, 0, value.length);
+        }
+    }
+    
+    private static void writeLong(ByteArrayOutputStream out, int field, long value) {
+        if (value != 0) {
+            writeKey(out, field, WIRE_VARINT);
+            writeVarint(out, value);
+        }
+    }
+    
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+    
+    /**
+     * Bounds-checked cursor over a frame body
+     */
+    private static class Reader {
+        private final byte[] data;
+        private final int end;
+        private int position;
+        
+        Reader(byte[] data, int offset, int length) {
+            this.data = data;
+            this.position = offset;
+            this.end = offset + length;
+        }
+        
+        boolean hasRemaining() {
+            return position < end;
+        }
+        
+        int readByte() throws IOException {
+            if (position >= end) {
+                throw new IOException("Truncated message");
+            }
+            return data[position++] & 0xFF;
+        }
+        
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+        
+        /**
+         * Reads the length of a bytes field and checks it fits in what is left of the frame
+         */
+        int readLength() throws IOException {
+            long size = readVarint();
+            if (size < 0 || size > end - position) {
+                throw new IOException("Field length " + size + " exceeds frame");
+            }
+            return (int) size;
+        }
+    }
+}
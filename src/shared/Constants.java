@@ -8,14 +8,25 @@ public class Constants {
     public static final String DEFAULT_HOST = "localhost";
     public static final int MAX_MESSAGE_SIZE = 1024 * 1024; // 1MB
     public static final int MAX_FILE_SIZE = 10 * 1024 * 1024; // 10MB
+    public static final int MAX_FRAME_SIZE = MAX_FILE_SIZE + MAX_MESSAGE_SIZE; // file plus message overhead
+    public static final int FILE_CHUNK_SIZE = 64 * 1024; // 64KB per chunk of a file upload
     public static final String FILES_DIRECTORY = "files";
+    public static final String HISTORY_DIRECTORY = "history";
+    public static final String DEFAULT_ROOM = "general"; // every user starts here
+    public static final int HEARTBEAT_SECONDS = 30; // a connection quiet this long gets a PING
+    public static final int IDLE_TIMEOUT_SECONDS = 90; // and one quiet this long is taken for dead
     
     // Protocol commands
     public static final String COMMAND_JOIN = "/join";
     public static final String COMMAND_LEAVE = "/leave";
     public static final String COMMAND_LIST_USERS = "/users";
+    public static final String COMMAND_PRIVATE_MESSAGE = "/msg";
     public static final String COMMAND_SEND_FILE = "/sendfile";
+    public static final String COMMAND_DOWNLOAD = "/download";
     public static final String COMMAND_HELP = "/help";
+    public static final String COMMAND_STATS = "/stats";
+    public static final String COMMAND_ADMIN = "/admin";
+    public static final String COMMAND_LATENCY = "/latency";
     
     // Server messages
     public static final String SERVER_NAME = "SERVER";
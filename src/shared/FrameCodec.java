@@ -0,0 +1,150 @@
+package shared;
+
+import java.io.*;
+
+/**
+ * Length-prefixed framing for messages on the wire.
+ * Every frame is a 4-byte big-endian length followed by a self-contained message body,
+ * so a reader can tell where a message ends without decoding it (needed by the NIO server).
+ *
+ * A framed connection starts with a handshake: the client sends MAGIC and the features it supports,
+ * the server answers with MAGIC and the features it accepted. The body encoding is picked from the
+ * accepted features: Java serialization by default, BinaryMessageCodec when both sides support it.
+ * With FEATURE_COMPRESSION every frame after the handshake goes through the connection's FrameCompressor.
+ */
+public class FrameCodec {
+    public static final int MAGIC = 0x43574631; // "CWF1"
+    public static final int HEADER_SIZE = 4;
+    public static final int HANDSHAKE_SIZE = 8; // magic + features
+    
+    // Feature bits exchanged in the handshake
+    public static final int FEATURE_BINARY_CODEC = 1;
+    public static final int FEATURE_PRESENCE = 2; // client keeps a roster from PRESENCE snapshots and deltas
+    public static final int FEATURE_COMPRESSION = 4; // frame bodies are deflated, see FrameCompressor
+    public static final int FEATURE_HEARTBEAT = 8; // either side may send PING and expects a PONG back
+    public static final int SUPPORTED_FEATURES = FEATURE_BINARY_CODEC | FEATURE_PRESENCE | FEATURE_COMPRESSION | FEATURE_HEARTBEAT;
+    
+    public static final FrameCodec SERIALIZED = new FrameCodec(false);
+    public static final FrameCodec BINARY = new FrameCodec(true);
+    
+    private final boolean binary;
+    
+    private FrameCodec(boolean binary) {
+        this.binary = binary;
+    }
+    
+    /**
+     * Codec for a connection with the given accepted features
+     */
+    public static FrameCodec forFeatures(int features) {
+        return (features & FEATURE_BINARY_CODEC) != 0 ? BINARY : SERIALIZED;
+    }
+    
+    public boolean isBinary() {
+        return binary;
+    }
+    
+    public byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        bytes.write(new byte[HEADER_SIZE]); // length placeholder
+        if (binary) {
+            BinaryMessageCodec.write(message, bytes);
+        } else {
+            try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+                output.writeObject(message);
+            }
+        }
+        
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - HEADER_SIZE;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+    
+    public Message decode(byte[] body, int offset, int length) throws IOException {
+        if (binary) {
+            return BinaryMessageCodec.read(body, offset, length);
+        }
+        try (ObjectInputStream input = new MessageInputStream(new ByteArrayInputStream(body, offset, length))) {
+            return (Message) input.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Invalid frame: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Decodes a frame body from a connection that may be compressed (compressor is null if not)
+     */
+    public Message decode(byte[] body, int offset, int length, FrameCompressor compressor) throws IOException {
+        if (compressor == null) {
+            return decode(body, offset, length);
+        }
+        byte[] plain = compressor.decompress(body, offset, length);
+        return decode(plain, 0, plain.length);
+    }
+    
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > Constants.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+    
+    public Message readMessage(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        checkLength(length);
+        
+        byte[] body = new byte[length];
+        input.readFully(body);
+        return decode(body, 0, length);
+    }
+    
+    /**
+     * Reads a message from a connection that may be compressed (compressor is null if not)
+     */
+    public Message readMessage(DataInputStream input, FrameCompressor compressor) throws IOException {
+        int length = input.readInt();
+        checkLength(length);
+        
+        byte[] body = new byte[length];
+        input.readFully(body);
+        return decode(body, 0, length, compressor);
+    }
+    
+    public void writeMessage(OutputStream output, Message message) throws IOException {
+        output.write(encode(message));
+        output.flush();
+    }
+    
+    /**
+     * Writes a message to a connection that may be compressed (compressor is null if not)
+     */
+    public void writeMessage(OutputStream output, Message message, FrameCompressor compressor) throws IOException {
+        byte[] frame = encode(message);
+        output.write(compressor != null ? compressor.compress(frame) : frame);
+        output.flush();
+    }
+    
+    /**
+     * Client side of the handshake. Returns the features the server accepted.
+     */
+    public static int clientHandshake(DataOutputStream output, DataInputStream input) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(SUPPORTED_FEATURES);
+        output.flush();
+        
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Server does not speak the ChatWave frame protocol");
+        }
+        return input.readInt();
+    }
+    
+    /**
+     * Features the server agrees to, given what the client offered
+     */
+    public static int acceptFeatures(int offered) {
+        return offered & SUPPORTED_FEATURES;
+    }
+}
@@ -0,0 +1,357 @@
+package shared;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression for one connection that negotiated FEATURE_COMPRESSION. A compressed frame is
+ * still a 4-byte length and a body, but the body starts with a mode byte:
+ * <ul>
+ * <li>STORED: the original body follows as it is</li>
+ * <li>STREAM: a varint of the original length, then the output of the connection's deflate stream,
+ *     flushed after every frame. Both ends keep their context between frames, so a short chat message
+ *     is compressed against everything sent before it.</li>
+ * <li>BLOCK: a varint of the original length, then a self-contained deflate block. Used for large
+ *     bodies such as file chunks, which gain little from the shared context and would flush it out.</li>
+ * </ul>
+ * Tiny bodies are stored, and large ones are stored when a sample shows they don't compress (images,
+ * archives and other files that already are). Each direction keeps its own state: compress runs on the
+ * writing thread and decompress on the reading thread, but neither may be called by two threads at once.
+ *
+ * The stream context costs about 300KB of native zlib memory per connection, and the block
+ * compressors are only created once a large body comes along.
+ */
+public class FrameCompressor {
+    public static final int STORED = 0;
+    public static final int STREAM = 1;
+    public static final int BLOCK = 2;
+    
+    private static final int MIN_COMPRESSED_SIZE = 32; // Smaller bodies grow with the mode byte and flush marker
+    private static final int BLOCK_THRESHOLD = 16 * 1024;
+    private static final int SAMPLE_SIZE = 4 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_KEPT_BUFFER_SIZE = 256 * 1024;
+    private static final byte[] FLUSH_MARKER = {0, 0, (byte) 0xFF, (byte) 0xFF}; // Ends every sync flush; not sent
+    
+    /**
+     * Bytes in and out of compression and the time spent on them, shared by any number of compressors
+     */
+    public static class Stats {
+        private final LongAdder plainBytesSent = new LongAdder();
+        private final LongAdder wireBytesSent = new LongAdder();
+        private final LongAdder compressNanos = new LongAdder();
+        private final LongAdder storedPayloads = new LongAdder();
+        private final LongAdder wireBytesReceived = new LongAdder();
+        private final LongAdder plainBytesReceived = new LongAdder();
+        private final LongAdder decompressNanos = new LongAdder();
+        
+        /**
+         * Size of what was given to compress
+         */
+        public long getPlainBytesSent() {
+            return plainBytesSent.sum();
+        }
+        
+        /**
+         * Size of what compress returned, headers included
+         */
+        public long getWireBytesSent() {
+            return wireBytesSent.sum();
+        }
+        
+        public long getCompressNanos() {
+            return compressNanos.sum();
+        }
+        
+        /**
+         * Large bodies sent stored because they didn't compress
+         */
+        public long getStoredPayloads() {
+            return storedPayloads.sum();
+        }
+        
+        public long getWireBytesReceived() {
+            return wireBytesReceived.sum();
+        }
+        
+        public long getPlainBytesReceived() {
+            return plainBytesReceived.sum();
+        }
+        
+        public long getDecompressNanos() {
+            return decompressNanos.sum();
+        }
+    }
+    
+    private final Stats stats;
+    private final Deflater streamDeflater;
+    private final Inflater streamInflater;
+    private Deflater blockDeflater; // created on first use, like the sample buffer
+    private Inflater blockInflater;
+    private byte[] sample;
+    private byte[] buffer;
+    
+    public FrameCompressor(Stats stats) {
+        this.stats = stats;
+        this.streamDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        this.streamInflater = new Inflater(true);
+        this.buffer = new byte[INITIAL_BUFFER_SIZE];
+    }
+    
+    /**
+     * Compresses a frame as returned by FrameCodec.encode (length header included) into a new frame
+     */
+    public byte[] compress(byte[] frame) {
+        return compress(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE);
+    }
+    
+    /**
+     * Compresses length bytes of data into a frame of their own
+     */
+    public byte[] compress(byte[] data, int offset, int length) {
+        long start = System.nanoTime();
+        byte[] frame;
+        if (length < MIN_COMPRESSED_SIZE) {
+            frame = stored(data, offset, length);
+        } else if (length < BLOCK_THRESHOLD) {
+            frame = deflateStream(data, offset, length);
+        } else if (!isCompressible(data, offset, length)) {
+            frame = stored(data, offset, length);
+            stats.storedPayloads.increment();
+        } else {
+            frame = deflateBlock(data, offset, length);
+            if (frame.length >= FrameCodec.HEADER_SIZE + 1 + length) {
+                frame = stored(data, offset, length);
+                stats.storedPayloads.increment();
+            }
+        }
+        stats.compressNanos.add(System.nanoTime() - start);
+        stats.plainBytesSent.add(length);
+        stats.wireBytesSent.add(frame.length);
+        return frame;
+    }
+    
+    private static byte[] stored(byte[] data, int offset, int length) {
+        byte[] frame = new byte[FrameCodec.HEADER_SIZE + 1 + length];
+        writeHeader(frame, frame.length - FrameCodec.HEADER_SIZE);
+        frame[FrameCodec.HEADER_SIZE] = STORED;
+        System.arraycopy(data, offset, frame, FrameCodec.HEADER_SIZE + 1, length);
+        return frame;
+    }
+    
+    private byte[] deflateStream(byte[] data, int offset, int length) {
+        int start = startBody(STREAM, length);
+        streamDeflater.setInput(data, offset, length);
+        int end = start;
+        int count;
+        do {
+            ensureCapacity(end, 64);
+            count = streamDeflater.deflate(buffer, end, buffer.length - end, Deflater.SYNC_FLUSH);
+            end += count;
+        } while (end == buffer.length); // A full buffer may mean more output is waiting
+        return finishFrame(end - FLUSH_MARKER.length);
+    }
+    
+    private byte[] deflateBlock(byte[] data, int offset, int length) {
+        int start = startBody(BLOCK, length);
+        Deflater deflater = blockDeflater();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        int end = start;
+        while (!deflater.finished()) {
+            ensureCapacity(end, Math.max(1024, length / 4));
+            end += deflater.deflate(buffer, end, buffer.length - end);
+        }
+        return finishFrame(end);
+    }
+    
+    /**
+     * Deflates a sample from the middle of the data, where file headers don't skew the result.
+     * Data that can't save an eighth of its size isn't worth the time to compress.
+     */
+    private boolean isCompressible(byte[] data, int offset, int length) {
+        int sampleOffset = offset + (length - SAMPLE_SIZE) / 2;
+        Deflater deflater = blockDeflater();
+        deflater.setInput(data, sampleOffset, SAMPLE_SIZE);
+        deflater.finish();
+        int compressed = 0;
+        if (sample == null) {
+            sample = new byte[SAMPLE_SIZE];
+        }
+        while (!deflater.finished() && compressed < SAMPLE_SIZE) {
+            compressed += deflater.deflate(sample);
+        }
+        return compressed < SAMPLE_SIZE - SAMPLE_SIZE / 8;
+    }
+    
+    private Deflater blockDeflater() {
+        if (blockDeflater == null) {
+            blockDeflater = new Deflater(Deflater.BEST_SPEED, true); // Megabytes of file data: favour speed
+        }
+        blockDeflater.reset();
+        return blockDeflater;
+    }
+    
+    /**
+     * Writes the mode byte and original length after the header space; returns where the data goes
+     */
+    private int startBody(int mode, int length) {
+        int position = FrameCodec.HEADER_SIZE;
+        buffer[position++] = (byte) mode;
+        while ((length & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        buffer[position++] = (byte) length;
+        return position;
+    }
+    
+    private void ensureCapacity(int used, int wanted) {
+        if (buffer.length - used < wanted) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, used + wanted));
+        }
+    }
+    
+    private byte[] finishFrame(int end) {
+        byte[] frame = Arrays.copyOf(buffer, end);
+        writeHeader(frame, end - FrameCodec.HEADER_SIZE);
+        if (buffer.length > MAX_KEPT_BUFFER_SIZE) {
+            buffer = new byte[INITIAL_BUFFER_SIZE]; // Don't hold on to the room an unusually big frame needed
+        }
+        return frame;
+    }
+    
+    private static void writeHeader(byte[] frame, int length) {
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+    }
+    
+    /**
+     * The original body of a compressed frame body
+     */
+    public byte[] decompress(byte[] body, int offset, int length) throws IOException {
+        if (length < 1) {
+            throw new IOException("Empty compressed frame");
+        }
+        long start = System.nanoTime();
+        int mode = body[offset];
+        byte[] plain;
+        if (mode == STORED) {
+            plain = Arrays.copyOfRange(body, offset + 1, offset + length);
+        } else if (mode == STREAM || mode == BLOCK) {
+            int position = offset + 1;
+            int end = offset + length;
+            int plainLength = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (position >= end || shift > 28) {
+                    throw new IOException("Malformed compressed frame");
+                }
+                int b = body[position++] & 0xFF;
+                plainLength |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            FrameCodec.checkLength(plainLength);
+            plain = mode == STREAM ? inflateStream(body, position, end - position, plainLength)
+                                   : inflateBlock(body, position, end - position, plainLength);
+        } else {
+            throw new IOException("Unknown compression mode " + mode);
+        }
+        stats.decompressNanos.add(System.nanoTime() - start);
+        stats.wireBytesReceived.add(FrameCodec.HEADER_SIZE + length);
+        stats.plainBytesReceived.add(plain.length);
+        return plain;
+    }
+    
+    private byte[] inflateStream(byte[] data, int offset, int length, int plainLength) throws IOException {
+        byte[] input = Arrays.copyOfRange(data, offset, offset + length + FLUSH_MARKER.length);
+        System.arraycopy(FLUSH_MARKER, 0, input, length, FLUSH_MARKER.length);
+        streamInflater.setInput(input);
+        byte[] plain = new byte[plainLength];
+        try {
+            int inflated = 0;
+            while (inflated < plainLength) {
+                int count = streamInflater.inflate(plain, inflated, plainLength - inflated);
+                if (count == 0 && (streamInflater.needsInput() || streamInflater.finished() || streamInflater.needsDictionary())) {
+                    throw new IOException("Compressed frame is shorter than announced");
+                }
+                inflated += count;
+            }
+            // The flush marker yields nothing but has to be consumed to keep the stream in step
+            byte[] rest = new byte[1];
+            while (!streamInflater.needsInput()) {
+                if (streamInflater.inflate(rest) > 0 || streamInflater.finished() || streamInflater.needsDictionary()) {
+                    throw new IOException("Compressed frame is longer than announced");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame: " + e.getMessage());
+        }
+        return plain;
+    }
+    
+    private byte[] inflateBlock(byte[] data, int offset, int length, int plainLength) throws IOException {
+        if (blockInflater == null) {
+            blockInflater = new Inflater(true);
+        }
+        blockInflater.reset();
+        blockInflater.setInput(data, offset, length);
+        byte[] plain = new byte[plainLength];
+        try {
+            int inflated = 0;
+            while (!blockInflater.finished()) {
+                int count = blockInflater.inflate(plain, inflated, plainLength - inflated);
+                if (count == 0 && (blockInflater.needsInput() || blockInflater.needsDictionary() || inflated == plainLength)) {
+                    throw new IOException("Compressed block does not match its announced length");
+                }
+                inflated += count;
+            }
+            if (inflated != plainLength) {
+                throw new IOException("Compressed block is shorter than announced");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block: " + e.getMessage());
+        }
+        return plain;
+    }
+    
+    /**
+     * Reads one compressed frame from a stream and returns its original body
+     */
+    public byte[] readFrame(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        FrameCodec.checkLength(length);
+        byte[] body = new byte[length];
+        input.readFully(body);
+        return decompress(body, 0, length);
+    }
+    
+    /**
+     * Frees the native zlib state of the sending side; compress can't be called afterwards
+     */
+    public void closeOutput() {
+        streamDeflater.end();
+        if (blockDeflater != null) {
+            blockDeflater.end();
+        }
+    }
+    
+    /**
+     * Frees the native zlib state of the receiving side; decompress can't be called afterwards.
+     * Either side left open is freed by the garbage collector instead, just later.
+     */
+    public void closeInput() {
+        streamInflater.end();
+        if (blockInflater != null) {
+            blockInflater.end();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package shared;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in log-linear buckets: every power of two is split into 32 equal buckets, so any
+ * recorded value is known to within about 3% while the whole range of a long fits in under 2,000
+ * counters. Recording is one atomic increment and never allocates, so many threads can share a histogram.
+ * Values are usually nanoseconds, but any non-negative long works.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+    
+    private final AtomicLongArray counts;
+    private final AtomicLong total;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+    
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.total = new AtomicLong();
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+    
+    public void record(long value) {
+        if (value < 0) {
+            value = 0; // Clock skew between threads; count it as instant
+        }
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long seen;
+        while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+            // Retry against the newer maximum
+        }
+    }
+    
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int bucket = exponent - SUB_BITS + 1;
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return bucket * SUB_COUNT + sub;
+    }
+    
+    private static long lowestValueAt(int index) {
+        int bucket = index / SUB_COUNT;
+        int sub = index % SUB_COUNT;
+        return bucket == 0 ? sub : (long) (SUB_COUNT + sub) << (bucket - 1);
+    }
+    
+    private static long highestValueAt(int index) {
+        int bucket = index / SUB_COUNT;
+        return bucket == 0 ? lowestValueAt(index) : lowestValueAt(index) + (1L << (bucket - 1)) - 1;
+    }
+    
+    public long getCount() {
+        return total.get();
+    }
+    
+    public long getMax() {
+        return max.get();
+    }
+    
+    public double getMean() {
+        long count = total.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+    
+    /**
+     * The value below which the given percentage (0-100) of recordings fall, rounded up to the end of its bucket
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), max.get());
+            }
+        }
+        return max.get();
+    }
+    
+    /**
+     * Adds another histogram's recordings to this one
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        long seen;
+        long otherMax = other.max.get();
+        while (otherMax > (seen = max.get()) && !max.compareAndSet(seen, otherMax)) {
+            // Retry against the newer maximum
+        }
+    }
+    
+    /**
+     * Moves everything recorded so far into a new histogram and starts this one again from empty,
+     * e.g. for per-interval reports. Recordings made meanwhile land in one or the other.
+     */
+    public LatencyHistogram drain() {
+        LatencyHistogram drained = new LatencyHistogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.getAndSet(i, 0);
+            if (count > 0) {
+                drained.counts.set(i, count);
+            }
+        }
+        drained.total.set(total.getAndSet(0));
+        drained.sum.set(sum.getAndSet(0));
+        drained.max.set(max.getAndSet(0));
+        return drained;
+    }
+    
+    /**
+     * Prints the distribution at the usual percentiles, dividing values by scale (e.g. 1000 for nanoseconds as us)
+     */
+    public void printPercentiles(PrintStream out, double scale, String unit) {
+        double[] percentiles = {50, 75, 90, 99, 99.9, 99.99, 100};
+        out.printf(Locale.ROOT, "%12s %14s %14s%n", "percentile", "value (" + unit + ")", "count");
+        for (double percentile : percentiles) {
+            long value = getValueAtPercentile(percentile);
+            String label = percentile == 100 ? "max" : percentile == (long) percentile ? "p" + (long) percentile : "p" + percentile;
+            out.printf(Locale.ROOT, "%12s %14.1f %14d%n", label, value / scale, countAtOrBelow(value));
+        }
+    }
+    
+    private long countAtOrBelow(long value) {
+        long seen = 0;
+        for (int i = 0; i < BUCKETS && lowestValueAt(i) <= value; i++) {
+            seen += counts.get(i);
+        }
+        return seen;
+    }
+}
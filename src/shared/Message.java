@@ -11,20 +11,46 @@ public class Message implements Serializable {
     private static final long serialVersionUID = 1L;
     
     public enum MessageType {
-        TEXT, FILE, USER_JOIN, USER_LEAVE, SERVER_MESSAGE
+        TEXT, FILE, USER_JOIN, USER_LEAVE, SERVER_MESSAGE,
+        FILE_OFFER, FILE_RESUME, FILE_CHUNK, FILE_DOWNLOAD, // file transfers, only used on framed connections
+        PRIVATE, // direct message to one user
+        USER_LIST, // one page of /users: names one per line in content
+        PRESENCE, // roster feed: a snapshot page, a single join/leave delta, or a digest's batch of deltas
+        PING, PONG // heartbeat on a quiet connection, only with FEATURE_HEARTBEAT
     }
     
+    // Content of a PRESENCE delta; the user it is about is in username. A batch has a line per user
+    // instead, the sign followed by that change's version and the username: "+42 alice".
+    public static final String PRESENCE_ONLINE = "+";
+    public static final String PRESENCE_OFFLINE = "-";
+    
     private String content;
     private String username;
     private LocalDateTime timestamp;
     private MessageType type;
     private String filename; // for file messages
     private byte[] fileData; // for file messages
+    private String transferId; // for chunked file transfers
+    private long offset; // for chunked file transfers
+    private long fileSize; // for chunked file transfers
+    private String fileHash; // SHA-256 identifying a shared file on the server
+    private String room; // room the message belongs to, null for server-wide messages
+    private String recipient; // for private messages
+    private long presenceVersion; // for user lists and presence updates
+    private int page; // for user lists and presence snapshots, starting at 1
+    private int pageCount; // for user lists and presence snapshots
+    private int userCount; // for user lists: users matching the filter
+    private long sentTime; // epoch ms when the sender created the message
+    private long sequence; // per-room order assigned by the server, 0 outside rooms
+    private long serverReceivedTime; // epoch ms when the server read it from the sender
+    private long serverSentTime; // epoch ms when the server handed it to the recipients' queues
+    private transient long receivedTime; // epoch ms when this client read it; never sent
     
     public Message(String content, String username, MessageType type) {
         this.content = content;
         this.username = username;
         this.timestamp = LocalDateTime.now();
+        this.sentTime = System.currentTimeMillis();
         this.type = type;
     }
     
@@ -33,6 +59,7 @@ public class Message implements Serializable {
         this.fileData = fileData;
         this.username = username;
         this.timestamp = LocalDateTime.now();
+        this.sentTime = System.currentTimeMillis();
         this.type = MessageType.FILE;
         this.content = "Sent file: " + filename;
     }
@@ -86,13 +113,166 @@ public class Message implements Serializable {
         this.fileData = fileData;
     }
     
+    public String getTransferId() {
+        return transferId;
+    }
+    
+    public void setTransferId(String transferId) {
+        this.transferId = transferId;
+    }
+    
+    public long getOffset() {
+        return offset;
+    }
+    
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+    
+    public long getFileSize() {
+        return fileSize;
+    }
+    
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+    
+    public String getFileHash() {
+        return fileHash;
+    }
+    
+    public void setFileHash(String fileHash) {
+        this.fileHash = fileHash;
+    }
+    
+    public String getRoom() {
+        return room;
+    }
+    
+    public void setRoom(String room) {
+        this.room = room;
+    }
+    
     public String getFormattedTimestamp() {
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss");
         return timestamp.format(formatter);
     }
     
+    public String getRecipient() {
+        return recipient;
+    }
+    
+    public void setRecipient(String recipient) {
+        this.recipient = recipient;
+    }
+    
+    public long getPresenceVersion() {
+        return presenceVersion;
+    }
+    
+    public void setPresenceVersion(long presenceVersion) {
+        this.presenceVersion = presenceVersion;
+    }
+    
+    public int getPage() {
+        return page;
+    }
+    
+    public void setPage(int page) {
+        this.page = page;
+    }
+    
+    public int getPageCount() {
+        return pageCount;
+    }
+    
+    public void setPageCount(int pageCount) {
+        this.pageCount = pageCount;
+    }
+    
+    public int getUserCount() {
+        return userCount;
+    }
+    
+    public void setUserCount(int userCount) {
+        this.userCount = userCount;
+    }
+    
+    public long getSentTime() {
+        return sentTime;
+    }
+    
+    public void setSentTime(long sentTime) {
+        this.sentTime = sentTime;
+    }
+    
+    /**
+     * Position in its room's stream, counting up from 1; 0 for messages outside rooms
+     */
+    public long getSequence() {
+        return sequence;
+    }
+    
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+    
+    public long getServerReceivedTime() {
+        return serverReceivedTime;
+    }
+    
+    public void setServerReceivedTime(long serverReceivedTime) {
+        this.serverReceivedTime = serverReceivedTime;
+    }
+    
+    public long getServerSentTime() {
+        return serverSentTime;
+    }
+    
+    public void setServerSentTime(long serverSentTime) {
+        this.serverSentTime = serverSentTime;
+    }
+    
+    public long getReceivedTime() {
+        return receivedTime;
+    }
+    
+    public void setReceivedTime(long receivedTime) {
+        this.receivedTime = receivedTime;
+    }
+    
+    /**
+     * A USER_LIST page as one line of text, e.g. "Online users (120, page 1/2): alice, bob"
+     */
+    public String formatUserList() {
+        String names = content == null || content.isEmpty() ? "none" : content.replace("\n", ", ");
+        String pages = pageCount > 1 ? ", page " + page + "/" + pageCount : "";
+        return "Online users (" + userCount + pages + "): " + names;
+    }
+    
+    /**
+     * Who the message is from, plus who it is to for private messages ("alice -> bob")
+     */
+    public String getSenderLabel() {
+        return type == MessageType.PRIVATE ? username + " -> " + recipient : username;
+    }
+    
+    /**
+     * Label shown before the sender, e.g. "#team ", for messages outside the default room
+     */
+    public String getRoomLabel() {
+        return room != null && !room.equals(Constants.DEFAULT_ROOM) ? "#" + room + " " : "";
+    }
+    
+    /**
+     * The content as it should be shown to a user
+     */
+    public String getDisplayContent() {
+        return type == MessageType.USER_LIST ? formatUserList() : content;
+    }
+    
     @Override
     public String toString() {
-        return String.format("[%s] %s: %s", getFormattedTimestamp(), username, content);
+        return String.format("[%s] %s%s: %s", getFormattedTimestamp(), getRoomLabel(), getSenderLabel(), getDisplayContent());
     }
 }
@@ -0,0 +1,27 @@
+package shared;
+
+import java.io.*;
+
+/**
+ * ObjectInputStream that only resolves the classes a Message is made of,
+ * so a peer can't make us instantiate arbitrary serializable classes.
+ */
+public class MessageInputStream extends ObjectInputStream {
+    public MessageInputStream(InputStream in) throws IOException {
+        super(in);
+    }
+    
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        switch (desc.getName()) {
+            case "shared.Message":
+            case "shared.Message$MessageType":
+            case "java.lang.Enum":
+            case "java.time.Ser": // LocalDateTime's serialized form
+            case "[B":
+                return super.resolveClass(desc);
+            default:
+                throw new InvalidClassException(desc.getName(), "not allowed in a message");
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package shared;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel: a ring of slots that one thread walks at a fixed tick, running the timeouts
+ * in the slot it reaches. A timeout is hashed into the slot of its deadline tick, with a count of
+ * whole turns still to wait, so scheduling and cancelling are O(1) and a tick only touches one slot,
+ * however many timeouts are pending. That makes one wheel cheap enough to watch every connection,
+ * where a timer each would cost a heap entry (or a thread) per connection.
+ * Timeouts fire up to one tick late. Tasks run on the wheel's thread and must not block.
+ */
+public class TimingWheel {
+    /**
+     * A scheduled task. Linked into its slot by the wheel thread only; other threads hand
+     * schedules and cancels over through queues, so the slots need no lock.
+     */
+    public static final class Timeout {
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadlineTick;
+        private long rounds;
+        private int slot = -1; // -1 while not linked into a slot
+        private Timeout previous;
+        private Timeout next;
+        private volatile boolean cancelled;
+        
+        private Timeout(TimingWheel wheel, Runnable task, long deadlineTick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+        
+        /**
+         * Stops the task from running if it hasn't yet. Safe from any thread and more than once.
+         */
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                wheel.cancelled.add(this);
+            }
+        }
+        
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+    
+    private final long tickNanos;
+    private final Timeout[] slots; // head of each slot's list; wheel thread only
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> added;
+    private final ConcurrentLinkedQueue<Timeout> cancelled;
+    private final Thread worker;
+    private final long startTime;
+    private long tick; // ticks completed; wheel thread only
+    private volatile boolean running;
+    
+    /**
+     * A wheel of slotCount slots (rounded up to a power of two) advancing every tickMillis.
+     * One turn of the wheel should cover the usual timeout, so most timeouts fire on their first pass.
+     */
+    public TimingWheel(String name, long tickMillis, int slotCount) {
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        this.added = new ConcurrentLinkedQueue<>();
+        this.cancelled = new ConcurrentLinkedQueue<>();
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+    
+    public void start() {
+        running = true;
+        worker.start();
+    }
+    
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+    
+    /**
+     * Runs the task on the wheel thread once delayMillis have passed
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(this, task, (deadline + tickNanos - 1) / tickNanos);
+        added.add(timeout);
+        return timeout;
+    }
+    
+    private void run() {
+        while (running) {
+            long wake = startTime + (tick + 1) * tickNanos;
+            long sleep = wake - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue; // Stopping, or a spurious interrupt; running decides
+                }
+            }
+            removeCancelled();
+            addScheduled();
+            expire(slots[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+    
+    private void addScheduled() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // A deadline already passed goes into the slot about to be expired
+            long target = Math.max(timeout.deadlineTick, tick);
+            timeout.rounds = (target - tick) / slots.length;
+            timeout.slot = (int) (target & mask);
+            timeout.next = slots[timeout.slot];
+            if (timeout.next != null) {
+                timeout.next.previous = timeout;
+            }
+            slots[timeout.slot] = timeout;
+        }
+    }
+    
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.slot >= 0) {
+                unlink(timeout);
+            }
+        }
+    }
+    
+    private void expire(Timeout timeout) {
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                unlink(timeout);
+                if (!timeout.cancelled) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Timeout task failed on " + worker.getName() + ": " + e);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+    
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.slot = -1;
+    }
+}